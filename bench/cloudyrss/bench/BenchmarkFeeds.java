@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+
+import cloudypeer.store.Store;
+import cloudypeer.store.StoreException;
+import cloudyrss.CloudyFeedReader;
+import cloudyrss.RSSEntry;
+import cloudyrss.RSSFeedBridge;
+
+/**
+ * Fixtures shared by the benchmarks: synthetic entries and feed readers
+ * holding them.
+ * <p>
+ * Readers are never started; they sample peers with the in-JVM CloudCast
+ * and keep their cloud in an in-memory HSQLDB database, so no native
+ * library nor remote service is needed.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class BenchmarkFeeds {
+
+  public static String FEED_NAME = "benchmark";
+  public static String CLOUD_PROVIDER = "hsqldb";
+  public static String CLOUD_URI = "hsqldb://mem/benchmark/feeds";
+
+  /* Body length of the entries, about the size of a news abstract */
+  public static int DESCRIPTION_LENGTH = 400;
+
+  private static final long START = 1300000000000L;
+
+  /**
+   * Creates the i-th entry of a feed publishing one entry per minute
+   */
+  public static RSSEntry newEntry(int i) {
+    StringBuilder description = new StringBuilder(DESCRIPTION_LENGTH);
+    while (description.length() < DESCRIPTION_LENGTH) description.append("Benchmark entry ").append(i).append(". ");
+    description.setLength(DESCRIPTION_LENGTH);
+
+    try {
+      return new RSSEntry("Benchmark entry number " + i, description.toString(),
+                          new URL("http://localhost/" + FEED_NAME + "/entries/" + i), new Date(START + i * 60000L));
+    } catch (IOException e) {
+      throw new IllegalStateException("Invalid entry link", e);
+    }
+  }
+
+  /**
+   * Creates a reader exporting its feed in the given directory
+   */
+  public static CloudyFeedReader newReader(File dir) {
+    CloudyFeedReader.PEER_SAMPLING = "local";
+    CloudyFeedReader.SEGMENT_BOOTSTRAP = false;
+    /* The entries are published in 2011, keep them all */
+    CloudyFeedReader.RETENTION = Long.MAX_VALUE / 2;
+    try {
+      return new CloudyFeedReader(InetAddress.getByName("127.0.0.1"), 25000, new File(dir, FEED_NAME + ".rss"),
+                                  FEED_NAME, "Benchmark feed", CLOUD_PROVIDER, new URI(CLOUD_URI));
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot resolve the loopback address", e);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException("Invalid cloud URI", e);
+    }
+  }
+
+  /**
+   * Stores entries in the local store of the reader, without letting the
+   * reader export the feed after each of them
+   *
+   * @return The keys of the stored entries
+   */
+  public static String[] fill(CloudyFeedReader reader, int entries) throws IOException, StoreException {
+    Store store = reader.getLocalStore();
+    String keys[] = new String[entries];
+
+    store.removeUpdateHandler(reader);
+    try {
+      for (int i = 0; i < entries; i++) {
+        RSSEntry entry = newEntry(i);
+        keys[i] = entry.getKey();
+        store.putStoreEntry(keys[i], new ByteArrayInputStream(RSSFeedBridge.encodeEntry(entry)),
+                            "test.simple.RSSEntry", new HashMap<String, String>());
+      }
+    } finally {
+      store.addUpdateHandler(reader);
+    }
+    return keys;
+  }
+
+  /**
+   * Creates an empty temporary directory
+   */
+  public static File newDirectory() throws IOException {
+    File dir = File.createTempFile("cloudyrss-bench", "");
+    if (!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create directory " + dir);
+    return dir;
+  }
+
+  /**
+   * Deletes a directory created by {@link #newDirectory()}
+   */
+  public static void deleteDirectory(File dir) {
+    File files[] = dir.listFiles();
+    if (files != null) {
+      for (File f: files) f.delete();
+    }
+    dir.delete();
+  }
+}
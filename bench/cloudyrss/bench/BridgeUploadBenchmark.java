@@ -0,0 +1,56 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cloudyrss.ChannelWorkQueue;
+import cloudyrss.RSSEntry;
+import cloudyrss.RSSFeedBridge;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding done by the bridge before uploading a batch of entries: the
+ * serialized form and the cloud key of every entry
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BridgeUploadBenchmark {
+
+  private RSSEntry batch[];
+
+  @Setup
+  public void setup() {
+    batch = new RSSEntry[ChannelWorkQueue.DEFAULT_BATCH_SIZE];
+    for (int i = 0; i < batch.length; i++) batch[i] = BenchmarkFeeds.newEntry(i);
+  }
+
+  @Benchmark
+  public void encodeBatch(Blackhole blackhole) throws IOException {
+    for (RSSEntry entry: batch) {
+      blackhole.consume(BenchmarkFeeds.FEED_NAME + "/" + entry.getKey());
+      blackhole.consume(RSSFeedBridge.encodeEntry(entry));
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloudyrss.ChannelWorkQueue;
+import cloudyrss.ChannelWorkQueue.Batch;
+import cloudyrss.RSSEntry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hand-off of entries from the pollers to the upload loop of the bridge,
+ * comparing the {@link ChannelWorkQueue} with the synchronized map guarded
+ * by wait()/notify() it replaced. Every poller thread feeds its own channel
+ * while a single consumer drains the entries, as the upload loop does; both
+ * hand-offs hold at most {@link #CAPACITY} entries and a poller finding the
+ * hand-off full drops the entry and tries again.
+ * <p>
+ * The score to look at is what the consumer receives: <tt>entries</tt> is
+ * the number of entries received, <tt>leastServed</tt> and
+ * <tt>mostServed</tt> the entries received from the least and the most
+ * served channel, all per millisecond. Their ratio to <tt>entries</tt> is
+ * the share of the channel; a starved channel shows as a
+ * <tt>leastServed</tt> near zero. Run with <tt>-tg N,1</tt> to change the
+ * number of pollers.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChannelWorkQueueBenchmark {
+
+  public static int CAPACITY = ChannelWorkQueue.DEFAULT_CAPACITY;
+
+  /* The consumer gives up waiting after this many milliseconds, so that
+   * an iteration can end while no entry is pending */
+  private static final long POLL_TIMEOUT = 10;
+
+  /**
+   * Common interface of the compared hand-offs
+   */
+  interface HandOff {
+    /**
+     * Adds the entry unless the hand-off is full
+     *
+     * @return True if the entry was added
+     */
+    public boolean offer(Integer channel, RSSEntry entry);
+
+    /**
+     * Waits at most {@link ChannelWorkQueueBenchmark#POLL_TIMEOUT}
+     * milliseconds for entries and removes them
+     *
+     * @return The entries removed, or null if none arrived
+     */
+    public Batch<Integer, RSSEntry> poll() throws InterruptedException;
+  }
+
+  /**
+   * Hand-off through the channel work queue
+   */
+  static class QueueHandOff implements HandOff {
+    private ChannelWorkQueue<Integer, RSSEntry> queue =
+      new ChannelWorkQueue<Integer, RSSEntry>(CAPACITY, ChannelWorkQueue.DEFAULT_BATCH_SIZE);
+
+    public boolean offer(Integer channel, RSSEntry entry) {
+      return queue.offer(channel, entry);
+    }
+
+    public Batch<Integer, RSSEntry> poll() throws InterruptedException {
+      return queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Hand-off used by the bridge before the channel work queue: entries are
+   * cached per channel in a synchronized map and the consumer removes the
+   * entries of the first channel found. The bound on the pending entries is
+   * not in the original, it is there to compare like with like.
+   */
+  static class WaitNotifyHandOff implements HandOff {
+    private HashMap<Integer, List<RSSEntry>> entryCache = new HashMap<Integer, List<RSSEntry>>();
+    private int pending = 0;
+
+    public boolean offer(Integer channel, RSSEntry entry) {
+      synchronized (entryCache) {
+        if (pending >= CAPACITY) return false;
+
+        List<RSSEntry> cache = entryCache.get(channel);
+        if (cache == null) {
+          cache = new ArrayList<RSSEntry>();
+          entryCache.put(channel, cache);
+        }
+
+        cache.add(entry);
+        pending++;
+        entryCache.notify();
+        return true;
+      }
+    }
+
+    public Batch<Integer, RSSEntry> poll() throws InterruptedException {
+      synchronized (entryCache) {
+        if (entryCache.size() == 0) entryCache.wait(POLL_TIMEOUT);
+        if (entryCache.size() == 0) return null;
+
+        Integer channel = entryCache.keySet().iterator().next();
+        List<RSSEntry> entries = entryCache.remove(channel);
+        pending -= entries.size();
+        return new Batch<Integer, RSSEntry>(channel, entries);
+      }
+    }
+  }
+
+  /**
+   * Channel fed by a poller thread
+   */
+  @State(Scope.Thread)
+  public static class Poller {
+    Integer channel;
+
+    @Setup
+    public void setup(ChannelWorkQueueBenchmark benchmark) {
+      channel = benchmark.pollers.getAndIncrement();
+    }
+  }
+
+  /**
+   * Entries received by the consumer during an iteration, reported by JMH
+   * per unit of time
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Received {
+    public long entries;
+    public long leastServed;
+    public long mostServed;
+
+    private long[] perChannel = new long[0];
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      entries = leastServed = mostServed = 0;
+      perChannel = new long[perChannel.length];
+    }
+
+    void add(Batch<Integer, RSSEntry> batch, int channels) {
+      if (perChannel.length < channels) {
+        long[] grown = new long[channels];
+        System.arraycopy(perChannel, 0, grown, 0, perChannel.length);
+        perChannel = grown;
+      }
+
+      int channel = batch.getChannel();
+      perChannel[channel] += batch.getEntries().size();
+      entries += batch.getEntries().size();
+      if (perChannel[channel] > mostServed) mostServed = perChannel[channel];
+
+      long least = Long.MAX_VALUE;
+      for (int i = 0; i < channels; i++) {
+        if (perChannel[i] < least) least = perChannel[i];
+      }
+      leastServed = least;
+    }
+  }
+
+  @Param({ "queue", "waitnotify" })
+  public String handOff;
+
+  private AtomicInteger pollers = new AtomicInteger();
+  private HandOff entries;
+  private RSSEntry entry;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    entries = handOff.equals("queue") ? new QueueHandOff() : new WaitNotifyHandOff();
+    entry = new RSSEntry("Entry", "Description of the entry", null, new Date());
+  }
+
+  @Benchmark
+  @Group("handOff")
+  @GroupThreads(32)
+  public boolean offer(Poller poller) {
+    return entries.offer(poller.channel, entry);
+  }
+
+  @Benchmark
+  @Group("handOff")
+  @GroupThreads(1)
+  public void consume(Received received) throws InterruptedException {
+    Batch<Integer, RSSEntry> batch = entries.poll();
+    if (batch != null) received.add(batch, pollers.get());
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import cloudyrss.RSSEntry;
+import cloudyrss.RSSFeedBridge;
+
+/**
+ * Measures the heap retained by decoded entries, as readers keep them.
+ * Entries are decoded from their serialized form, so fields repeated
+ * across entries are not shared unless the decoding shares them.
+ * <p>
+ * Three sets are measured: distinct entries, entries of a feed repeating
+ * the same few descriptions, and distinct entries each decoded twice in a
+ * row, as two readers of the same feed receive it. Run with a fixed heap,
+ * e.g. <tt>java -Xmx2g -Xms2g cloudyrss.bench.EntryFootprint [entries]</tt>
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class EntryFootprint {
+
+  public static int DEFAULT_ENTRIES = 200000;
+  public static int REPEATED_DESCRIPTIONS = 100;
+
+  public static void main(String args[]) throws Exception {
+    int entries = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+
+    byte distinct[][] = new byte[entries][];
+    byte repeated[][] = new byte[entries][];
+    for (int i = 0; i < entries; i++) {
+      RSSEntry entry = BenchmarkFeeds.newEntry(i);
+      distinct[i] = RSSFeedBridge.encodeEntry(entry);
+      repeated[i] = RSSFeedBridge.encodeEntry(new RSSEntry(entry.getTitle(),
+                                                           BenchmarkFeeds.newEntry(i % REPEATED_DESCRIPTIONS).getDescription(),
+                                                           entry.getLink(), entry.publicationDate()));
+    }
+
+    report("distinct", entries, footprint(distinct, 1));
+    report("repeated descriptions", entries, footprint(repeated, 1));
+    report("decoded twice", entries, footprint(distinct, 2));
+  }
+
+  /**
+   * Decodes each entry the given number of times in a row, keeping them
+   * all
+   *
+   * @return The bytes of heap retained
+   */
+  private static long footprint(byte serialized[][], int copies) throws IOException, ClassNotFoundException {
+    Object kept[] = new Object[serialized.length * copies];
+    long before = usedHeap();
+    for (int i = 0; i < serialized.length; i++) {
+      for (int c = 0; c < copies; c++) {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized[i]));
+        kept[i * copies + c] = in.readObject();
+      }
+    }
+    long after = usedHeap();
+    if (kept[kept.length - 1] == null) throw new IllegalStateException("Entry not decoded");
+    return after - before;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void report(String name, int entries, long bytes) {
+    System.out.println(String.format("%-22s %10d entries %8.1f bytes/entry", name, entries, (double) bytes / entries));
+  }
+}
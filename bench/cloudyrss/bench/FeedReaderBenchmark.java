@@ -0,0 +1,92 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import cloudypeer.store.StoreException;
+import cloudyrss.CloudyFeedReader;
+import cloudyrss.RSSEntry;
+import cloudyrss.RSSFeedBridge;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading entries out of the local store of a reader, rebuilding its index
+ * and exporting it, and receiving a new entry, for feeds of different sizes.
+ * Receiving an entry exports only the most recent ones, so its cost should
+ * not depend on the size of the feed
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FeedReaderBenchmark {
+
+  @Param({ "100", "10000", "100000" })
+  public int entries;
+
+  private File dir;
+  private CloudyFeedReader reader;
+  private String keys[];
+  private int next = 0;
+  private int received;
+
+  @Setup
+  public void setup() throws IOException, StoreException {
+    dir = BenchmarkFeeds.newDirectory();
+    reader = BenchmarkFeeds.newReader(dir);
+    keys = BenchmarkFeeds.fill(reader, entries);
+    reader.forceUpdate();
+    received = entries;
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkFeeds.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public RSSEntry readRSSEntry() {
+    next = (next + 1) % keys.length;
+    return reader.readRSSEntry(keys[next]);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public boolean generateRSS() {
+    return reader.forceUpdate();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void receiveEntry() throws IOException, StoreException {
+    RSSEntry entry = BenchmarkFeeds.newEntry(received++);
+    reader.getLocalStore().putStoreEntry(entry.getKey(), new ByteArrayInputStream(RSSFeedBridge.encodeEntry(entry)),
+                                         "test.simple.RSSEntry", new HashMap<String, String>());
+  }
+}
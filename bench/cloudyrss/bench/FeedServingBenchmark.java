@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import cloudypeer.store.StoreException;
+import cloudyrss.CloudyFeedReader;
+import cloudyrss.FeedHttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving an exported feed through the embedded web server, as feed
+ * readers download it. Run with more threads (<tt>-t</tt>) to measure
+ * concurrent clients.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FeedServingBenchmark {
+
+  @Param({ "100", "10000", "100000" })
+  public int entries;
+
+  private File dir;
+  private URL feedURL;
+
+  @Setup
+  public void setup() throws IOException, StoreException {
+    dir = BenchmarkFeeds.newDirectory();
+    CloudyFeedReader reader = BenchmarkFeeds.newReader(dir);
+    BenchmarkFeeds.fill(reader, entries);
+    if (!reader.forceUpdate()) throw new IOException("Cannot export the benchmark feed");
+
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+
+    /* The server runs until the benchmark JVM exits */
+    new FeedHttpServer(dir, port, null);
+    feedURL = new URL("http://localhost:" + port + "/" + reader.getFeedRssFileName());
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkFeeds.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public long download() throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) feedURL.openConnection();
+    InputStream in = conn.getInputStream();
+    byte buffer[] = new byte[8192];
+    long size = 0;
+    try {
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) size += n;
+    } finally {
+      in.close();
+      conn.disconnect();
+    }
+    return size;
+  }
+}
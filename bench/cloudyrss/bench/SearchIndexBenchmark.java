@@ -0,0 +1,82 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cloudyrss.FeedSearchIndex;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries on the search index, sampled to report the latency percentiles.
+ * Selective queries match a single entry; broad ones match every entry of
+ * the index, the worst case for ranking.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchIndexBenchmark {
+
+  @Param({ "100000", "1000000" })
+  public int entries;
+
+  private File dir;
+  private FeedSearchIndex index;
+  private Random random = new Random(42);
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    dir = BenchmarkFeeds.newDirectory();
+    index = new FeedSearchIndex(FSDirectory.getDirectory(dir, true), Long.MAX_VALUE / 2, 500);
+    index.start();
+    for (int i = 0; i < entries; i++) index.add(BenchmarkFeeds.FEED_NAME, BenchmarkFeeds.newEntry(i));
+    while (index.size() < entries) Thread.sleep(500);
+  }
+
+  @TearDown
+  public void tearDown() {
+    index.terminate();
+    BenchmarkFeeds.deleteDirectory(dir);
+  }
+
+  @Benchmark
+  public List<FeedSearchIndex.Result> selective() throws IOException, ParseException {
+    return index.search("number " + random.nextInt(entries), null, 20, false);
+  }
+
+  @Benchmark
+  public List<FeedSearchIndex.Result> broad() throws IOException, ParseException {
+    return index.search("entry", null, 20, false);
+  }
+
+  @Benchmark
+  public List<FeedSearchIndex.Result> broadByDate() throws IOException, ParseException {
+    return index.search("entry", null, 20, true);
+  }
+}
@@ -4,6 +4,11 @@
 #   create-mysqlcloud.sh -h mysql-user -h mysql-host -d mysql-db <bucket1> <bucket2> ...
 #
 # You will be asked for mysql password as many times as the number of buckets you are creating
+#
+# Entry keys start with their publication day (feed/yyyyMMdd-HHmmss/digest),
+# so listing a day partition is a range scan of the primary key. The index on
+# cloud_timestamp serves listings since a date. For existing buckets run:
+#   ALTER TABLE <bucket> ADD INDEX (cloud_timestamp)
 
 MYSQL_CLOUD_TABLE_DEFINITION="cloud_key VARCHAR(500) PRIMARY KEY,
 cloud_value BLOB,
@@ -11,7 +16,8 @@ cloud_timestamp INT UNSIGNED,
 cloud_content_md5 VARCHAR(32),
 cloud_content_length INT UNSIGNED,
 cloud_content_type VARCHAR(128),
-counter INT UNSIGNED"
+counter INT UNSIGNED,
+INDEX (cloud_timestamp)"
 
 MYSQL_HOST="localhost"
 MYSQL_USER=$USER
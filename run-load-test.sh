@@ -0,0 +1,19 @@
+#!/bin/sh
+
+# The load test needs no native library: the bridge polls a local
+# feed server and stores entries in an in-memory cloud
+CONF_FILE=load-test.properties
+#============================================================
+# DON'T EDIT PAST THIS UNLESS YOU KNOW WHAT YOU'RE DOING
+#============================================================
+BUILD_DIR="./build"
+LIB_DIRS="./lib ./lib/informa-deps"
+
+CLASSPATH="$CLASSPATH:$BUILD_DIR"
+for dir in $LIB_DIRS; do
+    for jar in `ls $dir/*.jar`; do
+        CLASSPATH+=:$jar
+    done
+done
+
+java -cp $CLASSPATH cloudyrss.sim.BridgeLoadDriver $CONF_FILE
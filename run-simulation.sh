@@ -0,0 +1,19 @@
+#!/bin/sh
+
+# The simulator needs no native library: readers sample their peers
+# within the JVM and store entries in a local cloud
+CONF_FILE=simulation.properties
+#============================================================
+# DON'T EDIT PAST THIS UNLESS YOU KNOW WHAT YOU'RE DOING
+#============================================================
+BUILD_DIR="./build"
+LIB_DIRS="./lib ./lib/informa-deps"
+
+CLASSPATH="$CLASSPATH:$BUILD_DIR"
+for dir in $LIB_DIRS; do
+    for jar in `ls $dir/*.jar`; do
+        CLASSPATH+=:$jar
+    done
+done
+
+java -cp $CLASSPATH cloudyrss.sim.PropagationSimulator $CONF_FILE
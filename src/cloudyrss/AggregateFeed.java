@@ -0,0 +1,205 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.nava.informa.core.ChannelExporterIF;
+import de.nava.informa.core.ChannelIF;
+import de.nava.informa.exporters.RSS_1_0_Exporter;
+import de.nava.informa.impl.basic.ChannelBuilder;
+import org.apache.log4j.Logger;
+
+/**
+ * Feed merging the most recent entries of all the running feeds into a
+ * single timeline, exported as any other feed.
+ * <p>
+ * Each reader keeps its entries sorted from the newest, so the timeline is
+ * built by a k-way merge of their heads, touching only the entries which
+ * end up in it. Updates of the readers are coalesced: while an export is
+ * pending further updates only mark it dirty, and a single thread merges
+ * and exports the latest state.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class AggregateFeed implements CloudyFeedUpdateHandler {
+
+  static Logger logger = Logger.getLogger(AggregateFeed.class);
+
+  public static int DEFAULT_SIZE = 200;
+
+  /**
+   * Position in the entries of a reader
+   */
+  private static class Cursor implements Comparable<Cursor> {
+    private Iterator<RSSEntry> entries;
+    private RSSEntry head;
+
+    public Cursor(Iterator<RSSEntry> entries) {
+      this.entries = entries;
+    }
+
+    public RSSEntry head() {
+      return head;
+    }
+
+    /**
+     * Moves to the next entry
+     *
+     * @return False if there are no more entries
+     */
+    public boolean advance() {
+      head = entries.hasNext() ? entries.next() : null;
+      return head != null;
+    }
+
+    public int compareTo(Cursor other) {
+      return CloudyFeedReader.NEWEST_FIRST.compare(head(), other.head());
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private FeedRegistry registry;
+  private File rssFile;
+  private String name;
+  private int size;
+
+  private ExecutorService executor;
+  private AtomicBoolean scheduled = new AtomicBoolean(false);
+  private Runnable export = new Runnable() {
+      public void run() {
+        scheduled.set(false);
+        generateRSS();
+      }
+    };
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new aggregate feed
+   *
+   * @param registry Registry of the feeds merged
+   * @param rssFile File the aggregate feed is exported to
+   * @param name Name of the aggregate feed
+   * @param size Maximum number of entries of the aggregate feed
+   */
+  public AggregateFeed(FeedRegistry registry, File rssFile, String name, int size) {
+    this.registry = registry;
+    this.rssFile = rssFile;
+    this.name = name;
+    this.size = size;
+
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "aggregate-feed");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public String getName() {
+    return name;
+  }
+
+  public File getRSSFile() {
+    return rssFile;
+  }
+
+  /**
+   * Schedules an export of the aggregate feed, unless one is already
+   * pending
+   */
+  public void update() {
+    if (scheduled.compareAndSet(false, true)) executor.execute(export);
+  }
+
+  public void terminate() {
+    executor.shutdown();
+  }
+
+  /**
+   * Merges the entries of the running feeds
+   *
+   * @return The most recent entries, newest first
+   */
+  public List<RSSEntry> merge() {
+    PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>();
+    for (FeedRegistry.Feed feed: registry.getFeeds()) {
+      if (feed.getState() != FeedRegistry.State.RUNNING) continue;
+      Cursor cursor = new Cursor(feed.getReader().getEntries());
+      if (cursor.advance()) heads.add(cursor);
+    }
+
+    List<RSSEntry> merged = new ArrayList<RSSEntry>(size);
+    Set<String> keys = new HashSet<String>();
+    while (merged.size() < size && !heads.isEmpty()) {
+      Cursor cursor = heads.poll();
+      RSSEntry entry = cursor.head();
+
+      /* The same entry may be published by several feeds */
+      if (keys.add(entry.getKey())) merged.add(entry);
+      if (cursor.advance()) heads.add(cursor);
+    }
+    return merged;
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  private void generateRSS() {
+    long start = System.currentTimeMillis();
+    try {
+      List<RSSEntry> entries = merge();
+
+      ChannelBuilder builder = new ChannelBuilder();
+      ChannelIF channel = builder.createChannel(name);
+      channel.setDescription("Most recent entries of all the feeds");
+      for (RSSEntry entry: entries) {
+        builder.createItem(channel, entry.getTitle(), entry.getDescription(), entry.getLink());
+      }
+
+      ChannelExporterIF exporter = new RSS_1_0_Exporter(rssFile);
+      exporter.write(channel);
+      logger.debug(String.format("Aggregate feed exported: %s entries in %s ms", entries.size(),
+                                 System.currentTimeMillis() - start));
+    } catch (IOException e) {
+      logger.error("Input/Output error exporting aggregate feed", e);
+    } catch (RuntimeException e) {
+      logger.error("Uncatched exception exporting aggregate feed", e);
+    }
+  }
+
+  /* ***********************************************************
+   *  CloudyFeedUpdateHandler implementation
+   *************************************************************/
+
+  public void notifyUpdate(Date update, CloudyFeedReader reader) {
+    update();
+  }
+}
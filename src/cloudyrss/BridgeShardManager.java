@@ -0,0 +1,354 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.StorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * Splits the sources monitored by several bridge instances.
+ * <p>
+ * Every instance periodically writes a heartbeat object in the coordination
+ * bucket. Instances whose heartbeat is not older than the lease timeout are
+ * placed on a consistent hashing ring, which assigns each source to exactly
+ * one of them. Before polling a source its owner holds a lease object in the
+ * bucket; an instance takes over a source only when the lease is free,
+ * expired or already its own, so that ownership moves cleanly when instances
+ * join or die.
+ * <p>
+ * As storage clouds offer no conditional writes, a newly written lease is
+ * considered held only once it is read back unchanged on the following
+ * heartbeat.
+ * <p>
+ * The item window of a source moves with its lease, so that the new owner
+ * does not upload again the items the previous one already found: the
+ * owner writes the window in an object next to the lease whenever it
+ * changed since the previous heartbeat and when releasing the source, and a
+ * new owner merges it into its own window before its first poll. Only the
+ * items found by an instance dying between two heartbeats are lost.
+ * <p>
+ * The heartbeats of dead instances are removed once their lease expired,
+ * by whichever instance lists them first. When the cloud lists by date
+ * only recent heartbeats are listed, and all of them once per lease timeout.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class BridgeShardManager {
+
+  static Logger logger = Logger.getLogger(BridgeShardManager.class);
+
+  public static String KEY_PREFIX = ".cloudyrss-bridge/";
+  public static int VIRTUAL_NODES = 64;
+
+  private static final String CONTENT_TYPE = "text/plain";
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private String instanceId;
+  private StorageCloud cloud;
+  private long leaseTimeout;
+
+  private Collection<FeedSource> sources;
+  private volatile Set<FeedSource> owned = new HashSet<FeedSource>();
+  private Set<FeedSource> claimed = new HashSet<FeedSource>();
+  private Map<FeedSource, String> savedWindows = new HashMap<FeedSource, String>();
+  private SortedMap<Long, String> ring = new TreeMap<Long, String>();
+  private long lastCollection = 0;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public BridgeShardManager(String instanceId, StorageCloud cloud, Collection<FeedSource> sources,
+                            long leaseTimeout)
+  {
+    this.instanceId = instanceId;
+    this.cloud = cloud;
+    this.sources = sources;
+    this.leaseTimeout = leaseTimeout;
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public String getInstanceId() {
+    return instanceId;
+  }
+
+  /**
+   * Checks whether this instance currently holds the lease of the source
+   */
+  public boolean owns(FeedSource source) {
+    return owned.contains(source);
+  }
+
+  /**
+   * Checks whether this instance is in charge of a periodic task, such as the
+   * garbage collection of a feed. Tasks are assigned through the same ring
+   * as sources, but without leases.
+   */
+  public synchronized boolean ownsTask(String task) {
+    return instanceId.equals(ownerOf(task));
+  }
+
+  /**
+   * Returns the number of sources owned by this instance
+   */
+  public int getOwnedCount() {
+    return owned.size();
+  }
+
+  /**
+   * Writes the heartbeat of this instance, refreshes the membership and
+   * updates the leases accordingly. Meant to be called periodically, at
+   * intervals well below the lease timeout.
+   */
+  public synchronized void heartbeat() {
+    long now = System.currentTimeMillis();
+    try {
+      write(KEY_PREFIX + "members/" + instanceId, instanceId + "\n" + now);
+      refreshRing(now);
+    } catch (IOException e) {
+      logger.error("I/O error updating bridge membership", e);
+      return;
+    } catch (CloudException e) {
+      logger.error("Cloud error updating bridge membership", e);
+      return;
+    }
+
+    Set<FeedSource> newOwned = new HashSet<FeedSource>();
+    Set<FeedSource> newClaimed = new HashSet<FeedSource>();
+
+    for (FeedSource source: sources) {
+      String leaseKey = leaseKey(source);
+      try {
+        String lease[] = read(leaseKey);
+        boolean mine = lease != null && lease[0].equals(instanceId);
+        boolean free = lease == null || Long.parseLong(lease[1]) < now;
+
+        if (!instanceId.equals(ownerOf(source.toString()))) {
+          /* Release sources assigned to someone else */
+          if (mine) {
+            saveWindow(source);
+            cloud.remove(leaseKey);
+            logger.info("Released source " + source);
+          }
+          continue;
+        }
+
+        if (mine && (owned.contains(source) || claimed.contains(source))) {
+          if (claimed.contains(source)) restoreWindow(source);
+          else saveWindow(source);
+          newOwned.add(source);
+        } else if (!mine && !free) {
+          logger.debug(String.format("Waiting for lease of %s held by %s", source, lease[0]));
+          continue;
+        } else {
+          newClaimed.add(source);
+        }
+        write(leaseKey, instanceId + "\n" + (now + leaseTimeout));
+      } catch (IOException e) {
+        logger.error("I/O error managing lease of " + source, e);
+      } catch (CloudException e) {
+        logger.error("Cloud error managing lease of " + source, e);
+      } catch (NumberFormatException e) {
+        logger.warn("Ignoring malformed lease of " + source);
+      }
+    }
+
+    if (!newOwned.equals(owned))
+      logger.info(String.format("Instance %s now owns %s of %s sources", instanceId, newOwned.size(),
+                                sources.size()));
+    owned = newOwned;
+    claimed = newClaimed;
+  }
+
+  /**
+   * Releases the leases held by this instance
+   */
+  public synchronized void release() {
+    for (FeedSource source: owned) {
+      try {
+        saveWindow(source);
+        cloud.remove(leaseKey(source));
+      } catch (Exception e) {
+        logger.warn("Error releasing lease of " + source, e);
+      }
+    }
+    try {
+      cloud.remove(KEY_PREFIX + "members/" + instanceId);
+    } catch (Exception e) {
+      logger.warn("Error removing heartbeat of " + instanceId, e);
+    }
+    owned = new HashSet<FeedSource>();
+    claimed.clear();
+  }
+
+  /* ***********************************************************
+   *  Item windows
+   *************************************************************/
+
+  /**
+   * Writes the item window of the source, unless it did not change since
+   * last written
+   */
+  private void saveWindow(FeedSource source) {
+    String window = source.getWindow().export();
+    if (window.equals(savedWindows.get(source))) return;
+
+    try {
+      write(windowKey(source), window);
+      savedWindows.put(source, window);
+    } catch (IOException e) {
+      logger.error("I/O error saving item window of " + source, e);
+    } catch (CloudException e) {
+      logger.error("Cloud error saving item window of " + source, e);
+    }
+  }
+
+  /**
+   * Merges the item window written by the previous owner of the source, if
+   * any, into the local one
+   */
+  private void restoreWindow(FeedSource source) {
+    savedWindows.remove(source);
+    try {
+      String window = readText(windowKey(source));
+      if (window == null) return;
+
+      source.getWindow().merge(window);
+      logger.debug("Restored item window of " + source);
+    } catch (IOException e) {
+      logger.error("I/O error restoring item window of " + source, e);
+    } catch (CloudException e) {
+      logger.error("Cloud error restoring item window of " + source, e);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Ignoring malformed item window of " + source);
+    }
+  }
+
+  /* ***********************************************************
+   *  Consistent hashing
+   *************************************************************/
+
+  private void refreshRing(long now) throws IOException, CloudException {
+    String prefix = KEY_PREFIX + "members/";
+    boolean collect = now - lastCollection >= leaseTimeout;
+    Date since = (cloud.supportsListByDate() && !collect) ? new Date(now - leaseTimeout) : null;
+    String keys[] = cloud.list(since, prefix);
+    if (since == null) lastCollection = now;
+
+    ring.clear();
+    for (String key: keys) {
+      String member[] = read(key);
+      if (member == null) continue;
+      try {
+        if (Long.parseLong(member[1]) < now - leaseTimeout) {
+          collect(key, member[0]);
+          continue;
+        }
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(hash(member[0] + "#" + i), member[0]);
+      }
+    }
+  }
+
+  /**
+   * Removes the heartbeat of a dead instance
+   */
+  private void collect(String key, String member) {
+    if (member.equals(instanceId)) return;
+    try {
+      cloud.remove(key);
+      logger.info("Removed heartbeat of dead bridge instance " + member);
+    } catch (Exception e) {
+      logger.warn("Error removing heartbeat of " + member, e);
+    }
+  }
+
+  private String ownerOf(String name) {
+    if (ring.isEmpty()) return null;
+    SortedMap<Long, String> tail = ring.tailMap(hash(name));
+    return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+  }
+
+  private static long hash(String s) {
+    SeenItemIndex.ItemId id = SeenItemIndex.ItemId.forIdentity(s);
+    return id.getHigh();
+  }
+
+  /* ***********************************************************
+   *  Cloud objects
+   *************************************************************/
+
+  private static String leaseKey(FeedSource source) {
+    return KEY_PREFIX + "leases/" + SeenItemIndex.ItemId.forIdentity(source.toString());
+  }
+
+  private static String windowKey(FeedSource source) {
+    return KEY_PREFIX + "windows/" + SeenItemIndex.ItemId.forIdentity(source.toString());
+  }
+
+  private void write(String key, String value) throws IOException, CloudException {
+    byte data[] = value.getBytes("UTF-8");
+    cloud.put(key, CONTENT_TYPE, new ByteArrayInputStream(data), null);
+  }
+
+  /**
+   * Reads a two lines object
+   *
+   * @return The two lines or null if the object does not exist
+   */
+  private String[] read(String key) throws IOException, CloudException {
+    String text = readText(key);
+    if (text == null) return null;
+
+    String lines[] = text.split("\n");
+    return (lines.length == 2) ? lines : null;
+  }
+
+  /**
+   * Reads a text object
+   *
+   * @return The text or null if the object does not exist
+   */
+  private String readText(String key) throws IOException, CloudException {
+    CloudObject obj = cloud.get(key);
+    if (obj == null) return null;
+
+    InputStream in = obj.getInputStream();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[256];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool sharing a single copy of equal byte arrays, used to intern the
+ * fields repeated across entries.
+ * <p>
+ * The pool is a direct-mapped cache: each array hashes to a single slot
+ * holding the last array interned there. Memory is bounded by the number
+ * of slots and no lock is taken; a collision or a race between threads only
+ * loses the chance of sharing an array.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class BytePool {
+
+  public static int DEFAULT_SLOTS = 4096;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private AtomicReferenceArray<byte[]> slots;
+  private int mask;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  public BytePool() {
+    this(DEFAULT_SLOTS);
+  }
+
+  /**
+   * Creates a new pool
+   *
+   * @param slots Number of arrays retained, rounded up to a power of two
+   */
+  public BytePool(int slots) {
+    int size = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+    this.slots = new AtomicReferenceArray<byte[]>(size);
+    this.mask = size - 1;
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  /**
+   * Returns the pooled array equal to the given one, or pools the given
+   * array and returns it
+   */
+  public byte[] intern(byte value[]) {
+    if (value == null) return null;
+
+    int hash = Arrays.hashCode(value);
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    byte pooled[] = slots.get(slot);
+    if (pooled != null && Arrays.equals(pooled, value)) return pooled;
+
+    slots.set(slot, value);
+    return value;
+  }
+}
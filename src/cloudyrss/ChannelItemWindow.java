@@ -0,0 +1,154 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * Fixed size window over the most recent items of a channel.
+ * <p>
+ * Items are kept in a set ordered by date, next to a hash set of their ids
+ * for membership checks. Once the window is full the oldest item is evicted;
+ * the date of the newest evicted item is the threshold under which further
+ * items are considered stale.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class ChannelItemWindow {
+
+  public static int DEFAULT_CAPACITY = 5;
+
+  /**
+   * Item of the window, ordered by date and then by id
+   */
+  private static class Item implements Comparable<Item> {
+    private final long date;
+    private final SeenItemIndex.ItemId id;
+
+    public Item(long date, SeenItemIndex.ItemId id) {
+      this.date = date;
+      this.id = id;
+    }
+
+    public int compareTo(Item o) {
+      if (date != o.date) return (date < o.date) ? -1 : 1;
+      return id.compareTo(o.id);
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private final int capacity;
+  private final TreeSet<Item> items = new TreeSet<Item>();
+  private final HashSet<SeenItemIndex.ItemId> ids = new HashSet<SeenItemIndex.ItemId>();
+  private long threshold = Long.MIN_VALUE;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public ChannelItemWindow() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ChannelItemWindow(int capacity) throws IllegalArgumentException {
+    if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+    this.capacity = capacity;
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized int size() {
+    return items.size();
+  }
+
+  /**
+   * Returns the date under which items are rejected, or null if no item was
+   * evicted yet
+   */
+  public synchronized Date getThreshold() {
+    return (threshold == Long.MIN_VALUE) ? null : new Date(threshold);
+  }
+
+  /**
+   * Checks whether the specified item is neither in the window nor older than
+   * the threshold
+   */
+  public synchronized boolean isCandidate(SeenItemIndex.ItemId id, long date) {
+    if (date <= threshold) return false;
+    return !ids.contains(id);
+  }
+
+  /**
+   * Adds an item to the window, evicting the oldest one if the window is full.
+   *
+   * @return false if the item was already present or too old to enter the
+   * window
+   */
+  public synchronized boolean add(SeenItemIndex.ItemId id, long date) {
+    if (!isCandidate(id, date)) return false;
+
+    if (items.size() == capacity) {
+      Item oldest = items.first();
+      if (date <= oldest.date) {
+        threshold = Math.max(threshold, date);
+        return false;
+      }
+
+      items.pollFirst();
+      ids.remove(oldest.id);
+      threshold = Math.max(threshold, oldest.date);
+    }
+
+    items.add(new Item(date, id));
+    ids.add(id);
+    return true;
+  }
+
+  /**
+   * Returns the state of the window as text: the threshold on the first
+   * line, then the date and the id of an item per line
+   */
+  public synchronized String export() {
+    StringBuilder out = new StringBuilder();
+    out.append(threshold);
+    for (Item item: items) {
+      out.append('\n').append(item.date).append(' ').append(item.id);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Merges a state returned by {@link #export} into the window: the
+   * threshold is raised to the exported one and the exported items added.
+   *
+   * @throws IllegalArgumentException if the state is malformed
+   */
+  public synchronized void merge(String state) throws IllegalArgumentException {
+    String lines[] = state.split("\n");
+    long exportedThreshold = Long.parseLong(lines[0].trim());
+    long exportedDates[] = new long[lines.length - 1];
+    SeenItemIndex.ItemId exportedIds[] = new SeenItemIndex.ItemId[lines.length - 1];
+    for (int i = 1; i < lines.length; i++) {
+      String item[] = lines[i].trim().split(" ");
+      if (item.length != 2) throw new IllegalArgumentException("Malformed window item: " + lines[i]);
+      exportedDates[i - 1] = Long.parseLong(item[0]);
+      exportedIds[i - 1] = SeenItemIndex.ItemId.parse(item[1]);
+    }
+
+    threshold = Math.max(threshold, exportedThreshold);
+    for (int i = 0; i < exportedIds.length; i++) add(exportedIds[i], exportedDates[i]);
+  }
+}
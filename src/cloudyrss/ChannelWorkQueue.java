@@ -0,0 +1,243 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free work queue which groups pending entries by channel.
+ * <p>
+ * Producers append entries to the slot of their channel; a slot is placed on
+ * the ready queue at most once, so a single consumer serves channels in
+ * round-robin order and receives their entries in batches. The total number
+ * of pending entries never exceeds the configured capacity.
+ * <p>
+ * Any number of producers is supported, but only one consumer thread may call
+ * {@link #take()} at a time.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class ChannelWorkQueue<K, E> {
+
+  public static int DEFAULT_CAPACITY = 10000;
+  public static int DEFAULT_BATCH_SIZE = 100;
+
+  /* ***********************************************************
+   *  Inner classes
+   *************************************************************/
+
+  /**
+   * Entries pending for a channel
+   */
+  private static class Slot<K, E> {
+    private final K channel;
+    private final ConcurrentLinkedQueue<E> entries = new ConcurrentLinkedQueue<E>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    public Slot(K channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * Entries of a single channel handed to the consumer
+   */
+  public static class Batch<K, E> {
+    private K channel;
+    private List<E> entries;
+
+    public Batch(K channel, List<E> entries) {
+      this.channel = channel;
+      this.entries = entries;
+    }
+
+    public K getChannel() {
+      return channel;
+    }
+
+    public List<E> getEntries() {
+      return entries;
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private final ConcurrentHashMap<K, Slot<K, E>> slots = new ConcurrentHashMap<K, Slot<K, E>>();
+  private final ConcurrentLinkedQueue<Slot<K, E>> ready = new ConcurrentLinkedQueue<Slot<K, E>>();
+  private final AtomicInteger pending = new AtomicInteger(0);
+
+  private final int capacity;
+  private final int batchSize;
+
+  private volatile Thread waiter = null;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public ChannelWorkQueue() {
+    this(DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+  }
+
+  public ChannelWorkQueue(int capacity, int batchSize) throws IllegalArgumentException {
+    if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+    if (batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive");
+
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+  }
+
+  /* ***********************************************************
+   *  Getters
+   *************************************************************/
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Returns the number of entries waiting to be consumed
+   */
+  public int size() {
+    return pending.get();
+  }
+
+  /* ***********************************************************
+   *  Producer side
+   *************************************************************/
+
+  /**
+   * Enqueues an entry for the specified channel without blocking.
+   *
+   * @return false if the queue is full and the entry was not enqueued
+   */
+  public boolean offer(K channel, E entry) {
+    int n;
+    do {
+      n = pending.get();
+      if (n >= capacity) return false;
+    } while (!pending.compareAndSet(n, n + 1));
+
+    Slot<K, E> slot = slots.get(channel);
+    if (slot == null) {
+      Slot<K, E> newSlot = new Slot<K, E>(channel);
+      slot = slots.putIfAbsent(channel, newSlot);
+      if (slot == null) slot = newSlot;
+    }
+
+    slot.entries.offer(entry);
+    schedule(slot);
+    return true;
+  }
+
+  /**
+   * Enqueues an entry for the specified channel, backing off while the queue
+   * is full.
+   */
+  public void put(K channel, E entry) throws InterruptedException {
+    long backoff = 1000;
+    while (!offer(channel, entry)) {
+      if (Thread.interrupted()) throw new InterruptedException();
+      LockSupport.parkNanos(this, backoff);
+      if (backoff < 10000000) backoff <<= 1;
+    }
+  }
+
+  private void schedule(Slot<K, E> slot) {
+    if (slot.scheduled.compareAndSet(false, true)) {
+      ready.offer(slot);
+      Thread w = waiter;
+      if (w != null) LockSupport.unpark(w);
+    }
+  }
+
+  /* ***********************************************************
+   *  Consumer side
+   *************************************************************/
+
+  /**
+   * Retrieves the next batch without blocking.
+   *
+   * @return The batch for the next channel in round-robin order, or null if
+   * no entry is pending
+   */
+  public Batch<K, E> poll() {
+    Slot<K, E> slot;
+    List<E> entries;
+
+    while ((slot = ready.poll()) != null) {
+      /* Clearing the flag before draining lets producers reschedule the slot */
+      slot.scheduled.set(false);
+
+      entries = new ArrayList<E>(Math.min(batchSize, 16));
+      E e;
+      while (entries.size() < batchSize && (e = slot.entries.poll()) != null) {
+        entries.add(e);
+      }
+
+      /* Unfinished channels go back to the tail of the ready queue */
+      if (!slot.entries.isEmpty()) schedule(slot);
+
+      if (entries.size() > 0) {
+        pending.addAndGet(-entries.size());
+        return new Batch<K, E>(slot.channel, entries);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Retrieves the next batch, waiting for one to become available.
+   */
+  public Batch<K, E> take() throws InterruptedException {
+    return poll(-1, null);
+  }
+
+  /**
+   * Retrieves the next batch, waiting up to the specified time for one to
+   * become available.
+   *
+   * @return The next batch or null if the timeout expired
+   */
+  public Batch<K, E> poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = (unit == null) ? 0 : System.nanoTime() + unit.toNanos(timeout);
+    Batch<K, E> batch;
+
+    while ((batch = poll()) == null) {
+      if (Thread.interrupted()) throw new InterruptedException();
+
+      waiter = Thread.currentThread();
+      try {
+        if (!ready.isEmpty()) continue;
+
+        if (unit == null) {
+          LockSupport.park(this);
+        } else {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) return null;
+          LockSupport.parkNanos(this, remaining);
+        }
+      } finally {
+        waiter = null;
+      }
+    }
+
+    return batch;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * Removes from the cloud the entries of a feed older than its retention.
+ * <p>
+ * The age of an entry is the publication time encoded in its key; objects
+ * whose key does not encode a time, such as the coordination objects, are
+ * left untouched.
+ * <p>
+ * Only the day partitions which expired since the previous run are listed,
+ * so the cost of a run follows the entries expiring and not the size of the
+ * feed; the first run of a collector lists the whole feed once. The size of
+ * the removed entries costs a request per entry, so it is only looked up
+ * when measuring sizes, as dry runs and the standalone tool do. The collector
+ * can be run periodically by the bridge or as a standalone tool:
+ * <pre>
+ *   java cloudyrss.CloudGarbageCollector provider cloudURI feed retentionDays [--dry-run]
+ * </pre>
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CloudGarbageCollector {
+
+  static Logger logger = Logger.getLogger(CloudGarbageCollector.class);
+
+  private static final long DAY = 24L * 3600 * 1000;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private StorageCloud cloud;
+  private String feedName;
+  private long retention;
+  private boolean dryRun;
+  private boolean measureSizes;
+
+  /* Start of the first day partition not collected yet, -1 before the first run */
+  private long collectedUntil = -1;
+
+  private int reclaimedEntries;
+  private long reclaimedBytes;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new collector
+   *
+   * @param cloud The storage cloud holding the feed
+   * @param feedName Name of the feed, i.e. the prefix of its keys
+   * @param retention Age in milliseconds past which entries are removed
+   * @param dryRun If true entries are only counted
+   */
+  public CloudGarbageCollector(StorageCloud cloud, String feedName, long retention, boolean dryRun) {
+    this.cloud = cloud;
+    this.feedName = feedName;
+    this.retention = retention;
+    this.dryRun = dryRun;
+    this.measureSizes = dryRun;
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public String getFeedName() {
+    return feedName;
+  }
+
+  public boolean isMeasureSizes() {
+    return measureSizes;
+  }
+
+  /**
+   * Sets whether the size of the removed entries is looked up, at the cost
+   * of a request per entry. Enabled by default for dry runs only.
+   */
+  public void setMeasureSizes(boolean measureSizes) {
+    this.measureSizes = measureSizes;
+  }
+
+  /**
+   * Returns the number of entries removed by the last run
+   */
+  public int getReclaimedEntries() {
+    return reclaimedEntries;
+  }
+
+  /**
+   * Returns the size of the entries removed by the last run, 0 unless sizes
+   * are measured
+   */
+  public long getReclaimedBytes() {
+    return reclaimedBytes;
+  }
+
+  /**
+   * Removes the expired entries of the feed
+   *
+   * @return The number of entries removed
+   */
+  public synchronized int collect() throws IOException, CloudException {
+    long horizon = System.currentTimeMillis() - retention;
+    String prefix = feedName + "/";
+    List<String> keys = new ArrayList<String>();
+
+    if (collectedUntil < 0) {
+      addKeys(keys, prefix);
+    } else {
+      Set<String> prefixes = new HashSet<String>();
+      for (long t = collectedUntil; t <= horizon; t += DAY) {
+        String partition = prefix + RSSEntry.getPartition(t);
+        if (prefixes.add(partition)) addKeys(keys, partition);
+      }
+
+      /* Legacy partitions are local days: one more day on each side covers the time zone */
+      if (PartitionedCloudPersistenceHandler.LIST_LEGACY_PARTITIONS) {
+        for (long t = collectedUntil - DAY; t <= horizon + DAY; t += DAY) {
+          String partition = prefix + RSSEntry.getLegacyPartition(t);
+          if (prefixes.add(partition)) addKeys(keys, partition);
+        }
+      }
+    }
+
+    reclaimedEntries = 0;
+    reclaimedBytes = 0;
+    for (String key: keys) {
+      long timestamp = RSSEntry.parseKeyTimestamp(key);
+      if (timestamp < 0 || timestamp >= horizon) continue;
+
+      if (measureSizes) {
+        CloudMetadata meta = cloud.getMetadata(key);
+        if (meta == null) continue;
+        reclaimedBytes += meta.getContentLength();
+      }
+      if (!dryRun) cloud.remove(key);
+
+      reclaimedEntries++;
+      logger.trace("Removed expired entry " + key);
+    }
+
+    /* The partition of the horizon is listed again by the next run, as it is only partly expired */
+    collectedUntil = horizon - horizon % DAY;
+
+    logger.info(String.format("%s feed %s: %s of %s listed entries expired%s",
+                              dryRun ? "Checked" : "Collected", feedName, reclaimedEntries, keys.size(),
+                              measureSizes ? ", " + reclaimedBytes + " bytes reclaimed" : ""));
+    return reclaimedEntries;
+  }
+
+  private void addKeys(List<String> keys, String prefix) throws IOException, CloudException {
+    for (String key: cloud.list(null, prefix)) {
+      if (key != null && key.startsWith(prefix)) keys.add(key);
+    }
+  }
+
+  /* ***********************************************************
+   *  Main
+   *************************************************************/
+
+  public static void main(String args[]) {
+    if (args.length < 4) {
+      System.err.println("Usage: CloudGarbageCollector <provider> <cloudURI> <feed> <retention-days> [--dry-run]");
+      System.exit(1);
+    }
+
+    try {
+      CloudURI cloudURI = CloudURI.getInstance(args[0], new URI(args[1]));
+      StorageCloud cloud = StorageCloud.getInstance(args[0], cloudURI);
+      long retention = Long.parseLong(args[3]) * 24 * 3600 * 1000;
+      boolean dryRun = args.length > 4 && args[4].equals("--dry-run");
+
+      CloudGarbageCollector gc = new CloudGarbageCollector(cloud, args[2], retention, dryRun);
+      gc.setMeasureSizes(true);
+      gc.collect();
+      System.out.println(String.format("%s entries, %s bytes %s", gc.getReclaimedEntries(),
+                                       gc.getReclaimedBytes(), dryRun ? "expired" : "reclaimed"));
+    } catch (Exception e) {
+      logger.error("Garbage collection failed", e);
+      System.exit(1);
+    }
+  }
+}
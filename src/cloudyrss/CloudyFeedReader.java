@@ -12,6 +12,7 @@ import java.net.URISyntaxException;
 
 import cloudypeer.PeerNode;
 import cloudypeer.PeerSelector;
+import cloudypeer.cloud.CloudException;
 import cloudypeer.cloud.CloudURI;
 import cloudypeer.cloud.StorageCloud;
 import cloudypeer.epidemicbcast.antientropy.CloudEnabledAntiEntropyBroadcast;
@@ -20,12 +21,14 @@ import cloudypeer.peersampling.RandomPeerSelector;
 import cloudypeer.peersampling.cloudcast.CloudCast;
 import cloudypeer.store.Store;
 import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreException;
 import cloudypeer.store.StoreUpdateHandler;
 import cloudypeer.store.diff.FakeDiffHandler;
-import cloudypeer.store.persistence.BasicCloudPersistenceHandler;
 import cloudypeer.store.persistence.InMemoryPersistenceHandler;
 import cloudypeer.store.simple.SimpleStore;
 import cloudypeer.store.simple.StoreEntryDiffHandler;
+import cloudyrss.cloud.AsyncStorageCloud;
+import cloudyrss.cloud.CachingStorageCloud;
 import de.nava.informa.core.ChannelExporterIF;
 import de.nava.informa.core.ChannelIF;
 import de.nava.informa.exporters.RSS_1_0_Exporter;
@@ -33,14 +36,25 @@ import de.nava.informa.impl.basic.ChannelBuilder;
 import org.apache.log4j.Logger;
 import java.util.Set;
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 import cloudypeer.network.NetworkHelper;
 import java.net.InetAddress;
 import cloudypeer.network.NetworkException;
 
 /**
  * Cloudcast based feed reader
+ * <p>
+ * The entries received are kept in an index ordered by publication date,
+ * updated as they arrive. The rss file exports the head of the index: all
+ * the entries by default, or the EXPORT_ENTRIES most recent ones published
+ * within EXPORT_WINDOW when set, so that the cost of an export does not grow
+ * with the history of the feed.
  *
  * @author Andrea Zito <zito.andrea@gmail.com>
  * @version 1.0
@@ -50,18 +64,45 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
   static Logger logger = Logger.getLogger(CloudyFeedReader.class);
 
   public static int PERSISTENCE = 5;
+  public static boolean CLOUD_CACHE = false;
+  public static boolean CLOUD_ASYNC = false;
+  public static int CLOUD_CONCURRENCY = AsyncStorageCloud.DEFAULT_CONCURRENCY;
+  public static long CLOUD_TIMEOUT = AsyncStorageCloud.DEFAULT_TIMEOUT;
+  public static long RETENTION = 30L * 24 * 3600 * 1000;
+  public static boolean SEGMENT_BOOTSTRAP = false;
+  public static String ANTI_ENTROPY = "pushpull";
+  public static String NETWORK = "default";
+  public static String PEER_SAMPLING = "default";
+  public static int EXPORT_ENTRIES = 0;
+  public static long EXPORT_WINDOW = 0;
 
   public static int DEFAULT_PERIOD_ANTI_ENTROPY = 3600;
   public static int DEFAULT_PERIOD_RUMOR_MONGERING = 10;
 
+  /**
+   * Orders entries from the most recently published
+   */
+  public static final Comparator<RSSEntry> NEWEST_FIRST = new Comparator<RSSEntry>() {
+      public int compare(RSSEntry e1, RSSEntry e2) {
+        if (e1.getPublicationTime() != e2.getPublicationTime())
+          return (e2.getPublicationTime() < e1.getPublicationTime()) ? -1 : 1;
+        return e1.getKey().compareTo(e2.getKey());
+      }
+    };
+
+  /* Ports chosen by readers, which bind them only when started */
+  private static Set<Integer> reservedPorts = new HashSet<Integer>();
+
   /* ***********************************************************
    * Instance variables
    *************************************************************/
   private NetworkHelper netHelper;
+  private int port;
   private StorageCloud storageCloud;
 
   private Store localStore;
   private Store cloudStore;
+  private PartitionedCloudPersistenceHandler cloudPersistence;
 
   private CloudCast cloudCast;
   private CloudEnabledAntiEntropyBroadcast antiEntropy;
@@ -69,17 +110,26 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
 
   private File rssFile;
   private String feedName;
-  private String feedDescription;
+  private volatile String feedDescription;
   private String feedCloudProvider;
   private URI feedCloudURI;
+  private FeedSearchIndex searchIndex;
 
+  /* Entries received, newest first. The same entry stored under both its
+     legacy and digest key compares equal, so it is indexed once. */
+  private ConcurrentSkipListSet<RSSEntry> index = new ConcurrentSkipListSet<RSSEntry>(NEWEST_FIRST);
   private volatile Date lastUpdate = null;
   private volatile boolean rssRefreshedSinceUpdate = false;
 
-  private Set<CloudyFeedUpdateHandler> updateHandlers = new HashSet<CloudyFeedUpdateHandler>();
+  private Set<CloudyFeedUpdateHandler> updateHandlers = new CopyOnWriteArraySet<CloudyFeedUpdateHandler>();
 
   private volatile boolean terminated = false;
 
+  /* Activity counters, sampled by monitors */
+  private AtomicLong entriesReceived = new AtomicLong();
+  private AtomicLong exports = new AtomicLong();
+  private AtomicLong exportTime = new AtomicLong();
+
   /* ***********************************************************
    * Constructor
    *************************************************************/
@@ -118,9 +168,11 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
     try {
       try {
         /* Configuring Network Helper */
-        int port = NetworkHelper.findFreePort(basePort, 0);
+        port = reservePort(basePort);
         if (port < 0) throw new NetworkException("Cannot find a free port");
-        netHelper = NetworkHelper.getDefaultInstance(ip, port);
+        netHelper = NetworkHelper.getInstance(NETWORK, ip, port);
+      } catch (InstantiationException e) {
+        throw new CloudyRSSException("Problem loading the network provider " + NETWORK, e);
       } catch (NetworkException e) {
         throw new CloudyRSSException("Error configuring network helper", e);
       } catch (IOException e) {
@@ -140,21 +192,29 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
         throw new CloudyRSSException("Invalid cloud store URI", e);
       }
 
-      /* Setup storage cloud*/
+      /* Setup storage cloud, sharing the requests pool and the cache of its bucket with the other feeds */
       this.storageCloud = StorageCloud.getInstance(cloudProvider, storeCloudURI);
+      if (CLOUD_ASYNC)
+        this.storageCloud = AsyncStorageCloud.getShared(this.storageCloud, CLOUD_CONCURRENCY, CLOUD_TIMEOUT);
+      if (CLOUD_CACHE) this.storageCloud = CachingStorageCloud.getShared(this.storageCloud);
     } catch (InstantiationException e) {
       throw new CloudyRSSException("Problem loading the specified cloud provider", e);
     }
 
     /* Setup the peer sampling */
-    this.cloudCast = CloudCast.getDefaultInstance(netHelper.getLocalNode(), psCloudURI);
+    try {
+      this.cloudCast = CloudCast.getInstance(PEER_SAMPLING, netHelper.getLocalNode(), psCloudURI);
+    } catch (InstantiationException e) {
+      throw new CloudyRSSException("Problem loading the peer sampling provider " + PEER_SAMPLING, e);
+    }
 
     /* Setup the store */
     diffHandler = new FakeDiffHandler();
     this.localStore = new SimpleStore(new InMemoryPersistenceHandler(), diffHandler);
     this.localStore.addUpdateHandler(this);
 
-    this.cloudStore = new SimpleStore(new BasicCloudPersistenceHandler(storageCloud, (feedName + "/")), diffHandler);
+    this.cloudPersistence = new PartitionedCloudPersistenceHandler(storageCloud, (feedName + "/"), RETENTION);
+    this.cloudStore = new SimpleStore(cloudPersistence, diffHandler);
 
     /* Setup the peer selectors */
     antiEntropyPeerSelector = new RandomPeerSelector(this.cloudCast);
@@ -166,10 +226,15 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
     rumorMongeringPeerSelector.excludeCloud(true);
 
     /* Setup the epidemic broadcast protocols */
-    this.antiEntropy = CloudEnabledAntiEntropyBroadcast.getDefaultInstance(netHelper.getLocalNode(),
-                                                                           antiEntropyPeerSelector,
-                                                                           localStore,
-                                                                           cloudStore);
+    try {
+      this.antiEntropy = CloudEnabledAntiEntropyBroadcast.getInstance(ANTI_ENTROPY,
+                                                                      netHelper.getLocalNode(),
+                                                                      antiEntropyPeerSelector,
+                                                                      localStore,
+                                                                      cloudStore);
+    } catch (InstantiationException e) {
+      throw new CloudyRSSException("Problem loading the anti-entropy provider " + ANTI_ENTROPY, e);
+    }
 
     this.rumorMongering = RumorMongeringBroadcast.getDefaultInstance(netHelper.getLocalNode(),
                                                                      rumorMongeringPeerSelector,
@@ -183,6 +248,23 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
     this.rumorMongering.setProtocolData("nethelper", netHelper);
   }
 
+  /**
+   * Finds a free port not chosen by another reader yet, so that readers
+   * created concurrently do not pick the same port before binding it
+   *
+   * @return The port or -1 if no port is free
+   */
+  private static int reservePort(int basePort) {
+    synchronized (reservedPorts) {
+      int port = basePort;
+      while (true) {
+        port = NetworkHelper.findFreePort(port, 0);
+        if (port < 0 || reservedPorts.add(port)) return port;
+        port++;
+      }
+    }
+  }
+
   /* ***********************************************************
    * Update handlers management
    *************************************************************/
@@ -207,6 +289,17 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
     return feedDescription;
   }
 
+  /**
+   * Changes the description of the feed and exports it again
+   */
+  public void setFeedDescription(String feedDescription) {
+    if (feedDescription == null) feedDescription = "";
+    if (feedDescription.equals(this.feedDescription)) return;
+
+    this.feedDescription = feedDescription;
+    generateRSS();
+  }
+
   public String getCloudProvider() {
     return feedCloudProvider;
   }
@@ -227,6 +320,85 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
     return lastUpdate;
   }
 
+  public NetworkHelper getNetworkHelper() {
+    return netHelper;
+  }
+
+  public Store getLocalStore() {
+    return localStore;
+  }
+
+  /**
+   * Returns the entries of the feed, newest first. The iterator is weakly
+   * consistent: it reflects entries received while iterating only if they
+   * come after its position.
+   */
+  public Iterator<RSSEntry> getEntries() {
+    return index.iterator();
+  }
+
+  /**
+   * Returns the number of entries in the index of the feed
+   */
+  public int getEntriesCount() {
+    return index.size();
+  }
+
+  /**
+   * Sets the index the entries received are added to
+   */
+  public void setSearchIndex(FeedSearchIndex searchIndex) {
+    this.searchIndex = searchIndex;
+  }
+
+  /* ***********************************************************
+   * Activity counters
+   *************************************************************/
+
+  /**
+   * Returns the number of entries received so far, from peers or the cloud
+   */
+  public long getEntriesReceived() {
+    return entriesReceived.get();
+  }
+
+  /**
+   * Returns the number of times the rss file was generated
+   */
+  public long getExports() {
+    return exports.get();
+  }
+
+  /**
+   * Returns the total time spent generating the rss file, in milliseconds
+   */
+  public long getExportTime() {
+    return exportTime.get();
+  }
+
+  /**
+   * Returns the bytes received from the other peers, or 0 if the network
+   * does not count them
+   */
+  public long getGossipBytesIn() {
+    return (netHelper instanceof MeteredNetworkHelper) ? ((MeteredNetworkHelper) netHelper).getBytesIn() : 0;
+  }
+
+  /**
+   * Returns the bytes sent to the other peers, or 0 if the network does not
+   * count them
+   */
+  public long getGossipBytesOut() {
+    return (netHelper instanceof MeteredNetworkHelper) ? ((MeteredNetworkHelper) netHelper).getBytesOut() : 0;
+  }
+
+  /**
+   * Returns the number of reads and listings sent to the cloud
+   */
+  public long getCloudFetches() {
+    return cloudPersistence.getFetches();
+  }
+
   /* ***********************************************************
    * RSSEntry managements
    *************************************************************/
@@ -245,22 +417,27 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
 
   private synchronized boolean generateRSS() {
     logger.info("Exporting feed " + feedName);
+    long start = System.currentTimeMillis();
     try {
       ChannelBuilder builder = new ChannelBuilder();
       ChannelIF channel = builder.createChannel(feedName);
       channel.setDescription(feedDescription);
 
-      String keys[] = localStore.listStoreEntries();
-
-      for (String key: keys) {
-        RSSEntry rssEntry = readRSSEntry(key);
+      long oldest = (EXPORT_WINDOW > 0) ? System.currentTimeMillis() - EXPORT_WINDOW : Long.MIN_VALUE;
+      int n = 0;
+      for (RSSEntry rssEntry: index) {
+        if (EXPORT_ENTRIES > 0 && n == EXPORT_ENTRIES) break;
+        if (rssEntry.getPublicationTime() < oldest) break;
         builder.createItem(channel, rssEntry.getTitle(), rssEntry.getDescription(), rssEntry.getLink());
+        n++;
       }
 
       ChannelExporterIF exporter = new RSS_1_0_Exporter(rssFile);
 
       exporter.write(channel);
       rssRefreshedSinceUpdate = true;
+      exports.incrementAndGet();
+      exportTime.addAndGet(System.currentTimeMillis() - start);
       return true;
     } catch (IOException e) {
       logger.error("Input/Output error exporting rss feed", e);
@@ -275,31 +452,107 @@ public class CloudyFeedReader  implements StoreUpdateHandler {
     return false;
   }
 
+  /**
+   * Rebuilds the index from all the entries of the store and exports the
+   * feed
+   */
   public boolean forceUpdate() {
+    for (String key: localStore.listStoreEntries()) {
+      RSSEntry rssEntry = readRSSEntry(key);
+      if (rssEntry != null) index.add(rssEntry);
+    }
+    expire();
     return generateRSS();
   }
 
   public void notifyUpdate(String[] keys, Store store) {
     logger.info("Received keys update. Size: " + keys.length);
+    entriesReceived.addAndGet(keys.length);
     lastUpdate = new Date();
     rssRefreshedSinceUpdate = false;
 
+    RSSEntry received[] = new RSSEntry[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      received[i] = readRSSEntry(keys[i]);
+      if (received[i] != null) index.add(received[i]);
+    }
+    expire();
+
     generateRSS();
+
+    if (searchIndex != null) {
+      for (RSSEntry rssEntry: received) {
+        if (rssEntry == null) continue;
+        try {
+          searchIndex.add(feedName, rssEntry);
+        } catch (RuntimeException e) {
+          logger.error("Error indexing entry " + rssEntry, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops from the index the entries older than the retention, which are
+   * no longer synchronized with the cloud
+   */
+  private void expire() {
+    long oldest = System.currentTimeMillis() - RETENTION;
+    RSSEntry last;
+    while ((last = index.pollLast()) != null) {
+      if (last.getPublicationTime() >= oldest) {
+        index.add(last);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Loads the entries rolled into segments, leaving the remaining ones to
+   * the anti-entropy
+   */
+  private void bootstrap() {
+    FeedSegmentManager segments = new FeedSegmentManager(storageCloud, feedName, RETENTION);
+    try {
+      segments.bootstrap(localStore);
+    } catch (IOException e) {
+      logger.warn("Input/Output error bootstrapping feed " + feedName + " from segments", e);
+    } catch (CloudException e) {
+      logger.warn("Cloud error bootstrapping feed " + feedName + " from segments", e);
+    } catch (StoreException e) {
+      logger.warn("Store error bootstrapping feed " + feedName + " from segments", e);
+    }
   }
 
   /* ***********************************************************
    * Thread managements
    *************************************************************/
   public void start() throws CloudyRSSException {
+    try {
+      netHelper.start();
+    } catch (NetworkException e) {
+      throw new CloudyRSSException("Error starting network helper", e);
+    } catch (IOException e) {
+      throw new CloudyRSSException("Input/Output error starting network helper", e);
+    }
+
+    if (SEGMENT_BOOTSTRAP) bootstrap();
     this.cloudCast.start();
     this.antiEntropy.start();
     this.rumorMongering.start();
   }
 
   public void terminate() throws CloudyRSSException {
-    this.cloudCast.terminate();
-    this.antiEntropy.terminate();
-    this.rumorMongering.terminate();
+    try {
+      this.cloudCast.terminate();
+      this.antiEntropy.terminate();
+      this.rumorMongering.terminate();
+      this.netHelper.terminate();
+    } finally {
+      synchronized (reservedPorts) {
+        reservedPorts.remove(port);
+      }
+    }
     this.terminated = true;
     logger.info("Terminating feed " + feedName);
   }
@@ -13,8 +13,19 @@ import java.util.Properties;
 import java.io.File;
 import java.io.FileInputStream;
 import cloudyrss.CloudyFeedReader;
-import java.util.HashMap;
-import org.jibble.simplewebserver.SimpleWebServer;
+import cloudyrss.cloud.CachingStorageCloud;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.net.URISyntaxException;
@@ -30,11 +41,56 @@ public class CloudyRSS {
 
   static Logger logger = Logger.getLogger(CloudyRSS.class);
 
+  public static int DEFAULT_BOOTSTRAP_THREADS = 4;
+
+  /**
+   * Configuration of a feed read from the feeds configuration file
+   */
+  private static class FeedConfiguration {
+    private String name;
+    private String description;
+    private String cloudProvider;
+    private URI cloudURI;
+
+    public FeedConfiguration(String name, String description, String cloudProvider, URI cloudURI) {
+      this.name = name;
+      this.description = description;
+      this.cloudProvider = cloudProvider;
+      this.cloudURI = cloudURI;
+    }
+
+    /**
+     * Checks whether the reader uses the cloud of this configuration
+     */
+    public boolean sameCloud(CloudyFeedReader reader) {
+      return cloudProvider.equals(reader.getCloudProvider()) && cloudURI.equals(reader.getCloudURI());
+    }
+  }
+
+  /**
+   * Feed reader being bootstrapped, with the time spent in each phase
+   */
+  private static class FeedBootstrap {
+    private String name;
+    private File rssFile;
+    private CloudyFeedReader reader;
+    private long setupTime;
+    private long startTime;
+    private long exportTime;
+    private boolean reused;
+
+    public FeedBootstrap(String name, File rssFile) {
+      this.name = name;
+      this.rssFile = rssFile;
+    }
+  }
+
   /* ***********************************************************
    *  Instance variables
    *************************************************************/
 
-  private SimpleWebServer httpServer;
+  private FeedHttpServer httpServer;
+  private FeedSearchIndex searchIndex;
   private File baseDir;
   private File feedsConfFile;
 
@@ -42,9 +98,16 @@ public class CloudyRSS {
   private int port;
   private int httpServerPort;
   private int fetchPeriod;
+  private int bootstrapThreads;
+  private boolean watchFeeds;
+  private FeedsConfigurationWatcher watcher;
+  private Object reloadLock = new Object();
+  private Set<FeedsConfigurationHandler> configurationHandlers = new HashSet<FeedsConfigurationHandler>();
 
-  private HashMap<String, CloudyFeedReader> feedMap = new HashMap<String, CloudyFeedReader>();
-  private HashMap<String, File> rssFileMap = new HashMap<String, File>();
+  private FeedRegistry registry = new FeedRegistry();
+  /* Every configured feed, whether running or not, as written back to the feeds configuration file */
+  private Map<String, FeedConfiguration> feedsConfiguration = new LinkedHashMap<String, FeedConfiguration>();
+  private AggregateFeed aggregate;
 
   /* ***********************************************************
    *  Constructor
@@ -83,47 +146,143 @@ public class CloudyRSS {
       this.httpServerPort = Integer.parseInt(confhttpport);
     }
 
+    String confretention = conf.getProperty("retention");
+    if (confretention != null) CloudyFeedReader.RETENTION = Long.parseLong(confretention) * 24 * 3600 * 1000;
+
+    CloudyFeedReader.EXPORT_ENTRIES = Integer.parseInt(conf.getProperty("exportEntries", "" + CloudyFeedReader.EXPORT_ENTRIES));
+    String confwindow = conf.getProperty("exportWindow");
+    if (confwindow != null) CloudyFeedReader.EXPORT_WINDOW = Long.parseLong(confwindow) * 3600 * 1000;
+
+    CloudyFeedReader.NETWORK = conf.getProperty("network", CloudyFeedReader.NETWORK);
+    CloudyFeedReader.SEGMENT_BOOTSTRAP = Boolean.parseBoolean(conf.getProperty("segmentBootstrap", "" + CloudyFeedReader.SEGMENT_BOOTSTRAP));
+    PartitionedCloudPersistenceHandler.LIST_LEGACY_PARTITIONS =
+      Boolean.parseBoolean(conf.getProperty("legacyKeys", "false"));
+    CloudyFeedReader.ANTI_ENTROPY = conf.getProperty("antiEntropy", CloudyFeedReader.ANTI_ENTROPY);
+    CloudyFeedReader.CLOUD_CACHE = Boolean.parseBoolean(conf.getProperty("cloudCache", "" + CloudyFeedReader.CLOUD_CACHE));
+    String confcache = conf.getProperty("cloudCacheListingTTL");
+    if (confcache != null) CachingStorageCloud.DEFAULT_LISTING_TTL = Long.parseLong(confcache) * 1000;
+    confcache = conf.getProperty("cloudCacheObjectTTL");
+    if (confcache != null) CachingStorageCloud.DEFAULT_OBJECT_TTL = Long.parseLong(confcache) * 1000;
+    confcache = conf.getProperty("cloudCacheMemory");
+    if (confcache != null) CachingStorageCloud.DEFAULT_MEMORY_SIZE = Long.parseLong(confcache) * 1024;
+    confcache = conf.getProperty("cloudCacheDir");
+    if (confcache != null) CachingStorageCloud.DEFAULT_DISK_DIRECTORY = new File(confcache);
+    confcache = conf.getProperty("cloudCacheDiskSize");
+    if (confcache != null) CachingStorageCloud.DEFAULT_DISK_SIZE = Long.parseLong(confcache) * 1024;
+
+    CloudyFeedReader.CLOUD_ASYNC = Boolean.parseBoolean(conf.getProperty("cloudAsync", "" + CloudyFeedReader.CLOUD_ASYNC));
+    String confasync = conf.getProperty("cloudConcurrency");
+    if (confasync != null) CloudyFeedReader.CLOUD_CONCURRENCY = Integer.parseInt(confasync);
+    confasync = conf.getProperty("cloudTimeout");
+    if (confasync != null) CloudyFeedReader.CLOUD_TIMEOUT = Long.parseLong(confasync) * 1000;
+
+    this.bootstrapThreads = Integer.parseInt(conf.getProperty("bootstrapThreads", "" + DEFAULT_BOOTSTRAP_THREADS));
+    this.watchFeeds = Boolean.parseBoolean(conf.getProperty("watchFeeds", "false"));
+
     this.baseDir = new File(conf.getProperty("basedir", ""));
     if (!baseDir.isDirectory())
       throw new IllegalArgumentException("Configured base directory not found!");
 
-    httpServer = new SimpleWebServer(baseDir, httpServerPort);
+    if (Boolean.parseBoolean(conf.getProperty("searchIndex", "false"))) {
+      String indexDir = conf.getProperty("searchIndexDir");
+      if (indexDir == null) searchIndex = new FeedSearchIndex(CloudyFeedReader.RETENTION);
+      else searchIndex = new FeedSearchIndex(new File(indexDir), CloudyFeedReader.RETENTION);
+      searchIndex.start();
+    }
+
+    String aggregateName = conf.getProperty("aggregateFeed", "");
+    if (!aggregateName.equals("")) {
+      int aggregateSize = Integer.parseInt(conf.getProperty("aggregateSize", "" + AggregateFeed.DEFAULT_SIZE));
+      aggregate = new AggregateFeed(registry, new File(baseDir, aggregateName + ".rss"), aggregateName, aggregateSize);
+    }
+
+    httpServer = new FeedHttpServer(baseDir, httpServerPort, searchIndex);
+  }
+
+  /**
+   * Creates and starts the reader of a feed, registering it as running
+   * once ready.
+   * <p>
+   * The rss file left by a previous run is kept and served until the reader
+   * receives its first entries, instead of being replaced by an empty feed.
+   */
+  private FeedBootstrap bootstrapFeed(String name, String description, String cloudProvider, URI cloudURI)
+    throws CloudyRSSException, IllegalArgumentException
+  {
+    if (aggregate != null && aggregate.getName().equals(name))
+      throw new IllegalArgumentException("Feed name " + name + " reserved for the aggregate feed");
+    if (!registry.reserve(name)) throw new IllegalArgumentException("Feed " + name + " already configured");
+    logger.info("Configuring feed " + name);
+    FeedBootstrap b = new FeedBootstrap(name, new File(baseDir.getPath() + File.separator + name + ".rss"));
+
+    try {
+      long t = System.currentTimeMillis();
+      b.reader = new CloudyFeedReader(ip, port, b.rssFile, name, description, cloudProvider, cloudURI);
+      b.reader.setSearchIndex(searchIndex);
+      if (aggregate != null) b.reader.addUpdateHandler(aggregate);
+      b.setupTime = System.currentTimeMillis() - t;
+
+      t = System.currentTimeMillis();
+      try {
+        b.reader.start();
+      } catch (RuntimeException e) {
+        try {
+          b.reader.terminate();
+        } catch (RuntimeException ex) {
+          logger.debug("Error terminating feed " + name + " after failed start", ex);
+        }
+        throw e;
+      }
+      b.startTime = System.currentTimeMillis() - t;
+
+      t = System.currentTimeMillis();
+      b.reused = b.rssFile.length() > 0;
+      if (!b.reused) b.reader.forceUpdate();
+      b.exportTime = System.currentTimeMillis() - t;
+    } catch (RuntimeException e) {
+      registry.stopped(name);
+      throw e;
+    }
+    registry.running(name, b.reader, b.rssFile);
+
+    logger.info(String.format("Feed %s ready: setup %s ms, start %s ms, %s", name, b.setupTime, b.startTime,
+                              b.reused ? "serving previous rss file" : "export " + b.exportTime + " ms"));
+    return b;
   }
 
   private CloudyFeedReader configureNewFeed(String name, String description, String cloudProvider,
                                   URI cloudURI) throws Exception
   {
-    CloudyFeedReader feedReader;
-    File rssFile;
     try {
-      logger.info("Configuring feed " + name);
-      rssFile = new File(baseDir.getPath() + File.separator + name + ".rss");
-      feedReader= new CloudyFeedReader(ip, port, rssFile , name, description, cloudProvider,
-                                       cloudURI);
-      feedReader.start();
-      feedReader.forceUpdate();
-      feedMap.put(name, feedReader);
-      rssFileMap.put(name, rssFile);
-      return feedReader;
+      return bootstrapFeed(name, description, cloudProvider, cloudURI).reader;
     } catch (IllegalArgumentException e) {
       logger.error("Error in feed configuration", e);
       return null;
     }
   }
 
-  /* ***********************************************************
-   *  Public methods
-   *************************************************************/
-  public void loadFeedsConfiguration() throws RuntimeException {
+  /**
+   * Reads the feeds configuration file, skipping the feeds whose
+   * configuration is not valid
+   */
+  private Map<String, FeedConfiguration> readFeedsConfiguration() throws RuntimeException {
     Properties conf =  new Properties();
+    FileInputStream in = null;
     try {
-      conf.load(new FileInputStream(feedsConfFile));
+      in = new FileInputStream(feedsConfFile);
+      conf.load(in);
     } catch (IOException e) {
       throw new RuntimeException("Error loading feeds configuration", e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {}
+      }
     }
 
+    Map<String, FeedConfiguration> feedsConf = new LinkedHashMap<String, FeedConfiguration>();
     String feeds[] = conf.getProperty("feeds", "").split(";");
-
     for (String feed: feeds) {
       if (feed.trim().equals("")) continue;
       String description = conf.getProperty(feed + ".description", null);
@@ -134,13 +293,13 @@ public class CloudyRSS {
 
       String cloudProvider = conf.getProperty(feed + ".cloudProvider", null);
       if (cloudProvider == null) {
-        logger.warn("Missing cloud provider for feed " + cloudProvider);
+        logger.warn("Missing cloud provider for feed " + feed);
         continue;
       }
 
       String cloudURIString = conf.getProperty(feed + ".cloudURI", null);
-      if (cloudProvider == null) {
-        logger.warn("Missing cloud URI for feed " + cloudURIString);
+      if (cloudURIString == null) {
+        logger.warn("Missing cloud URI for feed " + feed);
         continue;
       }
 
@@ -148,39 +307,242 @@ public class CloudyRSS {
       try {
         cloudURI = new URI(cloudURIString);
       } catch (URISyntaxException e) {
-        throw new RuntimeException("Cloud URI not valid for feed " + feed);
+        logger.error("Cloud URI not valid for feed " + feed);
+        continue;
       }
 
+      feedsConf.put(feed, new FeedConfiguration(feed, description, cloudProvider, cloudURI));
+    }
+    return feedsConf;
+  }
+
+  /**
+   * Bootstraps the feeds concurrently by up to <tt>bootstrapThreads</tt>
+   * threads, each registered as soon as it is running. A feed which
+   * cannot be configured is logged and skipped, without affecting the
+   * others.
+   *
+   * @return The readers started
+   */
+  private List<CloudyFeedReader> bootstrapFeeds(Collection<FeedConfiguration> feeds) {
+    List<CloudyFeedReader> readers = new ArrayList<CloudyFeedReader>();
+    if (feeds.isEmpty()) return readers;
+
+    List<String> names = new ArrayList<String>();
+    List<Future<FeedBootstrap>> bootstraps = new ArrayList<Future<FeedBootstrap>>();
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, bootstrapThreads));
+
+    for (final FeedConfiguration feed: feeds) {
+      names.add(feed.name);
+      bootstraps.add(executor.submit(new Callable<FeedBootstrap>() {
+          public FeedBootstrap call() throws Exception {
+            return bootstrapFeed(feed.name, feed.description, feed.cloudProvider, feed.cloudURI);
+          }
+        }));
+    }
+    executor.shutdown();
+
+    long setupTime = 0;
+    long startTime = 0;
+    long exportTime = 0;
+    int reused = 0;
+    int failed = 0;
+    for (int i = 0; i < bootstraps.size(); i++) {
       try {
-        configureNewFeed(feed, description, cloudProvider, cloudURI);
-      } catch (Exception e) {
-        throw new RuntimeException("Error configuring feed " + feed, e);
+        FeedBootstrap b = bootstraps.get(i).get();
+        readers.add(b.reader);
+        setupTime += b.setupTime;
+        startTime += b.startTime;
+        exportTime += b.exportTime;
+        if (b.reused) reused++;
+      } catch (ExecutionException e) {
+        logger.error("Error configuring feed " + names.get(i), e.getCause());
+        failed++;
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while configuring feeds");
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        return readers;
       }
     }
+
+    logger.info(String.format("Configured %s feeds in %s ms using %s threads, %s failed. Total time spent: "
+                              + "setup %s ms, start %s ms, export %s ms; %s previous rss files served",
+                              bootstraps.size() - failed, System.currentTimeMillis() - start,
+                              Math.max(1, bootstrapThreads), failed, setupTime, startTime, exportTime, reused));
+    return readers;
+  }
+
+  private void setFeedsConfiguration(Map<String, FeedConfiguration> feedsConf) {
+    synchronized (feedsConfiguration) {
+      feedsConfiguration.clear();
+      feedsConfiguration.putAll(feedsConf);
+    }
   }
 
+  private void notifyFeedAdded(CloudyFeedReader reader) {
+    FeedsConfigurationHandler handlers[];
+    synchronized (configurationHandlers) {
+      handlers = configurationHandlers.toArray(new FeedsConfigurationHandler[configurationHandlers.size()]);
+    }
+    for (FeedsConfigurationHandler handler: handlers) handler.feedAdded(reader);
+  }
+
+  private void notifyFeedRemoved(CloudyFeedReader reader) {
+    FeedsConfigurationHandler handlers[];
+    synchronized (configurationHandlers) {
+      handlers = configurationHandlers.toArray(new FeedsConfigurationHandler[configurationHandlers.size()]);
+    }
+    for (FeedsConfigurationHandler handler: handlers) handler.feedRemoved(reader);
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public void addConfigurationHandler(FeedsConfigurationHandler handler) {
+    synchronized (configurationHandlers) {
+      configurationHandlers.add(handler);
+    }
+  }
+
+  public void removeConfigurationHandler(FeedsConfigurationHandler handler) {
+    synchronized (configurationHandlers) {
+      configurationHandlers.remove(handler);
+    }
+  }
+
+  /**
+   * Configures the feeds listed in the feeds configuration file.
+   */
+  public void loadFeedsConfiguration() throws RuntimeException {
+    synchronized (reloadLock) {
+      Map<String, FeedConfiguration> feedsConf = readFeedsConfiguration();
+      setFeedsConfiguration(feedsConf);
+      bootstrapFeeds(feedsConf.values());
+    }
+  }
+
+  /**
+   * Applies the changes of the feeds configuration file to the running
+   * feeds.
+   * <p>
+   * Only the feeds added are started and only the ones removed are
+   * terminated. A new description is applied in place; a feed moved to a
+   * different cloud is restarted, as the cloud backs both its store and
+   * its peer sampling. The other feeds keep running untouched, with their
+   * peer views and stores. Feeds which failed to start are started again.
+   */
+  public void reloadFeedsConfiguration() throws RuntimeException {
+    synchronized (reloadLock) {
+      Map<String, FeedConfiguration> feedsConf = readFeedsConfiguration();
+      setFeedsConfiguration(feedsConf);
+      List<FeedConfiguration> toStart = new ArrayList<FeedConfiguration>();
+      int removed = 0;
+      int updated = 0;
+      int restarted = 0;
+
+      for (String feed: getConfiguredFeeds()) {
+        if (feedsConf.containsKey(feed)) continue;
+        CloudyFeedReader reader = getCloudyFeedReaderForFeed(feed);
+        if (removeFeed(feed)) {
+          notifyFeedRemoved(reader);
+          removed++;
+        }
+      }
+
+      for (FeedConfiguration feed: feedsConf.values()) {
+        FeedRegistry.Feed registered = registry.get(feed.name);
+        if (registered == null) {
+          toStart.add(feed);
+          continue;
+        }
+
+        /* Feeds being started or removed from the GUI are left alone */
+        if (registered.getState() != FeedRegistry.State.RUNNING) continue;
+
+        CloudyFeedReader reader = registered.getReader();
+        if (!feed.sameCloud(reader)) {
+          logger.info("Cloud of feed " + feed.name + " changed, restarting it");
+          if (registry.drain(feed.name) == null) continue;
+          try {
+            reader.terminate();
+          } finally {
+            registry.stopped(feed.name);
+          }
+          notifyFeedRemoved(reader);
+          toStart.add(feed);
+          restarted++;
+        } else if (!feed.description.equals(reader.getFeedDescription())) {
+          reader.setFeedDescription(feed.description);
+          updated++;
+        }
+      }
+
+      int added = toStart.size() - restarted;
+      for (CloudyFeedReader reader: bootstrapFeeds(toStart)) notifyFeedAdded(reader);
+
+      logger.info(String.format("Feeds configuration reloaded: %s added, %s removed, %s updated, %s restarted",
+                                added, removed, updated, restarted));
+    }
+  }
+
+  /**
+   * Starts watching the feeds configuration file, reloading it when
+   * changed, unless disabled by the <tt>watchFeeds</tt> configuration
+   */
+  public void startFeedsConfigurationWatcher() throws RuntimeException {
+    if (!watchFeeds || watcher != null) return;
+
+    try {
+      watcher = new FeedsConfigurationWatcher(this, feedsConfFile);
+    } catch (IOException e) {
+      throw new RuntimeException("Error watching feeds configuration", e);
+    }
+    watcher.start();
+  }
+
+  public void stopFeedsConfigurationWatcher() {
+    if (watcher == null) return;
+    watcher.terminate();
+    watcher = null;
+  }
+
+  /**
+   * Writes the configuration of every configured feed, including the ones
+   * which failed to start or are still starting
+   */
   public void writeFeedsConfiguration() throws RuntimeException {
+    FeedConfiguration configured[];
+    synchronized (feedsConfiguration) {
+      configured = feedsConfiguration.values().toArray(new FeedConfiguration[feedsConfiguration.size()]);
+    }
+
     Properties prop = new Properties();
     String feeds = null;
-    for (String feed: getConfiguredFeeds()) {
-      if (feeds == null) feeds = feed;
-      else feeds += ";" + feed;
-
-      CloudyFeedReader reader = getCloudyFeedReaderForFeed(feed);
-      String description = reader.getFeedDescription();
-      String cloudProvider = reader.getCloudProvider();
-      String cloudURI = reader.getCloudURI().toString();
+    for (FeedConfiguration feed: configured) {
+      if (feeds == null) feeds = feed.name;
+      else feeds += ";" + feed.name;
 
-      prop.setProperty(feed + ".description", description);
-      prop.setProperty(feed + ".cloudProvider", cloudProvider);
-      prop.setProperty(feed + ".cloudURI", cloudURI);
+      prop.setProperty(feed.name + ".description", feed.description);
+      prop.setProperty(feed.name + ".cloudProvider", feed.cloudProvider);
+      prop.setProperty(feed.name + ".cloudURI", feed.cloudURI.toString());
     }
     if (feeds == null) feeds = "";
     prop.setProperty("feeds", feeds);
+    FileOutputStream out = null;
     try {
-      prop.store(new FileOutputStream(feedsConfFile), "Automatically generated by CloudyRSS. Don't edit manually");
+      out = new FileOutputStream(feedsConfFile);
+      prop.store(out, "Automatically generated by CloudyRSS");
     } catch (IOException e) {
       throw new RuntimeException("Error saving feeds configuration", e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {}
+      }
     }
   }
 
@@ -197,34 +559,77 @@ public class CloudyRSS {
     String cloudProvider = feedConf.getProperty("cloudProvider", null);
     String cloudURI = feedConf.getProperty("cloudURI", null);
 
+    CloudyFeedReader reader;
     try {
-      return configureNewFeed(feedName, feedDescription, cloudProvider, new URI(cloudURI));
+      reader = configureNewFeed(feedName, feedDescription, cloudProvider, new URI(cloudURI));
     } catch (Exception e) {
       throw new RuntimeException("Error configuring feed");
     }
+
+    if (reader != null) {
+      synchronized (feedsConfiguration) {
+        feedsConfiguration.put(feedName, new FeedConfiguration(feedName, reader.getFeedDescription(),
+                                                               reader.getCloudProvider(), reader.getCloudURI()));
+      }
+    }
+    return reader;
   }
 
+  /**
+   * Removes a feed from the configuration, terminating it if running
+   *
+   * @return False if the feed is not configured or is still starting
+   */
   public boolean removeFeed(String name) throws RuntimeException {
-    CloudyFeedReader toRemove = feedMap.get(name);
-    if (toRemove == null) return false;
+    FeedRegistry.Feed toRemove = registry.drain(name);
+    if (toRemove == null) {
+      /* A feed which failed to start is only configured */
+      if (registry.get(name) != null) return false;
+      synchronized (feedsConfiguration) {
+        return feedsConfiguration.remove(name) != null;
+      }
+    }
+    synchronized (feedsConfiguration) {
+      feedsConfiguration.remove(name);
+    }
 
-    toRemove.terminate();
-    feedMap.remove(name);
-    File rss = rssFileMap.remove(name);
-    System.out.println(rss.delete());
+    try {
+      toRemove.getReader().terminate();
+      toRemove.getRSSFile().delete();
+      if (searchIndex != null) searchIndex.removeFeed(name);
+    } finally {
+      registry.stopped(name);
+    }
+    if (aggregate != null) aggregate.update();
     return true;
   }
 
+  /**
+   * Returns the names of the running feeds, sorted. The array is shared
+   * and must not be modified.
+   */
   public String[] getConfiguredFeeds() {
-    return feedMap.keySet().toArray(new String[feedMap.size()]);
+    return registry.getRunningFeeds();
   }
 
   public CloudyFeedReader getCloudyFeedReaderForFeed(String feed) {
-    return feedMap.get(feed);
+    return registry.getReader(feed);
   }
 
   public File getRSSFileForFeed(String feed) {
-    return rssFileMap.get(feed);
+    return registry.getRSSFile(feed);
+  }
+
+  public FeedRegistry.State getFeedState(String feed) {
+    return registry.getState(feed);
+  }
+
+  /**
+   * Returns the name of the rss file of the aggregate feed, or null if
+   * disabled
+   */
+  public String getAggregateRssFileName() {
+    return (aggregate != null) ? aggregate.getRSSFile().getName() : null;
   }
 
   public String getWebServerURL() {
@@ -253,6 +658,7 @@ public class CloudyRSS {
     try {
       CloudyRSS cloudyRSS = new CloudyRSS(conf, new File(feedsConfFilePath));
       cloudyRSS.loadFeedsConfiguration();
+      cloudyRSS.startFeedsConfigurationWatcher();
       Thread.currentThread().join();
     } catch (Exception e) {
       logger.error("Main app exception", e);
@@ -18,9 +18,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
@@ -30,9 +36,11 @@ import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.AbstractTableModel;
@@ -63,7 +71,13 @@ class SavePreferenceOnShutdown extends Thread {
 public class CloudyRSSGui extends JFrame implements ClipboardOwner {
 
   /**
-   * Mondel/ontroller for the feeds table
+   * Mondel/ontroller for the feeds table.
+   * <p>
+   * Rows are a snapshot of the configured readers sorted by feed name,
+   * changed only on the event dispatch thread when readers are added or
+   * removed. Updates notified by the readers, usually from gossip threads,
+   * are collected and applied in a single pass on the event dispatch
+   * thread, repainting only the rows of the updated readers.
    */
   private class FeedTableModelController extends AbstractTableModel
     implements CloudyFeedUpdateHandler, ListSelectionListener
@@ -76,6 +90,22 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     private ImageIcon iconWait;
     private JTable table;
 
+    private List<CloudyFeedReader> rows = new ArrayList<CloudyFeedReader>();
+    private Comparator<CloudyFeedReader> byName = new Comparator<CloudyFeedReader>() {
+        public int compare(CloudyFeedReader r1, CloudyFeedReader r2) {
+          return r1.getFeedName().compareTo(r2.getFeedName());
+        }
+      };
+
+    /* Readers updated since the last flush, guarded by itself */
+    private Set<CloudyFeedReader> updated = new HashSet<CloudyFeedReader>();
+    private boolean flushScheduled = false;
+    private Runnable flush = new Runnable() {
+        public void run() {
+          flushUpdates();
+        }
+      };
+
     public FeedTableModelController(CloudyRSS cloudyRSS) {
       this.cloudyRSS = cloudyRSS;
       this.iconOK = new ImageIcon(CloudyRSSGui.class.getResource("icons/ok.gif"));
@@ -88,7 +118,7 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     }
 
     public int getRowCount() {
-      return cloudyRSS.getConfiguredFeeds().length;
+      return rows.size();
     }
 
     public String getColumnName(int column) {
@@ -112,10 +142,16 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     }
 
     private CloudyFeedReader getCloudyFeedReaderAtRow(int row) {
-      String feeds[] = cloudyRSS.getConfiguredFeeds();
-      if (row >= feeds.length) return null;
-      Arrays.sort(feeds);
-      return cloudyRSS.getCloudyFeedReaderForFeed(feeds[row]);
+      if (row < 0 || row >= rows.size()) return null;
+      return rows.get(row);
+    }
+
+    /**
+     * Returns the row of a reader, or a negative value if it is not shown
+     */
+    private int rowOf(CloudyFeedReader reader) {
+      int row = Collections.binarySearch(rows, reader, byName);
+      return (row >= 0 && rows.get(row) == reader) ? row : -1;
     }
 
     public Object getValueAt(int row, int column) {
@@ -135,17 +171,69 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
       }
     }
 
+    /**
+     * Rebuilds the rows from the readers configured in CloudyRSS
+     */
     public void refresh() {
+      rows.clear();
+      for (String feed: cloudyRSS.getConfiguredFeeds()) {
+        CloudyFeedReader r = cloudyRSS.getCloudyFeedReaderForFeed(feed);
+        if (r != null) rows.add(r);
+      }
+      Collections.sort(rows, byName);
       super.fireTableDataChanged();
     }
 
     public void notifyUpdate(Date update, CloudyFeedReader reader) {
-      super.fireTableDataChanged();
+      synchronized (updated) {
+        updated.add(reader);
+        if (flushScheduled) return;
+        flushScheduled = true;
+      }
+      SwingUtilities.invokeLater(flush);
+    }
+
+    /**
+     * Repaints the rows of the readers updated since the last flush, firing
+     * one event per run of adjacent rows
+     */
+    private void flushUpdates() {
+      CloudyFeedReader readers[];
+      synchronized (updated) {
+        readers = updated.toArray(new CloudyFeedReader[updated.size()]);
+        updated.clear();
+        flushScheduled = false;
+      }
+
+      int changed[] = new int[readers.length];
+      int n = 0;
+      for (CloudyFeedReader r: readers) {
+        int row = rowOf(r);
+        if (row >= 0) changed[n++] = row;
+      }
+      Arrays.sort(changed, 0, n);
+
+      for (int i = 0; i < n; ) {
+        int j = i;
+        while (j + 1 < n && changed[j + 1] == changed[j] + 1) j++;
+        super.fireTableRowsUpdated(changed[i], changed[j]);
+        i = j + 1;
+      }
     }
 
     public void addCloudyFeedReader(CloudyFeedReader r) {
       r.addUpdateHandler(this);
-      super.fireTableDataChanged();
+      int row = Collections.binarySearch(rows, r, byName);
+      if (row >= 0) {
+        /* A feed configured again replaces its reader */
+        rows.get(row).removeUpdateHandler(this);
+        rows.set(row, r);
+        super.fireTableRowsUpdated(row, row);
+      } else {
+        row = -row - 1;
+        rows.add(row, r);
+        super.fireTableRowsInserted(row, row);
+      }
     }
 
     public CloudyFeedReader getSelectedCloudyFeedReader() {
@@ -155,15 +243,30 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     }
 
     public void removeSelectedCloudyFeedReader() {
-      super.fireTableDataChanged();
+      int row = table.getSelectionModel().getLeadSelectionIndex();
+      CloudyFeedReader r = getCloudyFeedReaderAtRow(row);
+      if (r == null) return;
+
+      r.removeUpdateHandler(this);
+      rows.remove(row);
+      super.fireTableRowsDeleted(row, row);
+    }
+
+    public void removeCloudyFeedReader(CloudyFeedReader r) {
+      int row = Collections.binarySearch(rows, r, byName);
+      if (row < 0 || rows.get(row) != r) return;
+
+      r.removeUpdateHandler(this);
+      rows.remove(row);
+      super.fireTableRowsDeleted(row, row);
     }
 
     public void valueChanged(ListSelectionEvent e) {
       int row = table.getSelectionModel().getLeadSelectionIndex();
-      if (row < 0 || row >= getRowCount()) {
+      CloudyFeedReader feedReader = getCloudyFeedReaderAtRow(row);
+      if (feedReader == null) {
         updateUrlDisplay(null);
       } else {
-        CloudyFeedReader feedReader = getCloudyFeedReaderAtRow(row);
         updateUrlDisplay(feedReader.getFeedRssFileName());
       }
     }
@@ -178,6 +281,7 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
   private JPanel controlsCP;
   private JTable feedTable;
   private FeedTableModelController feedTableModelController;
+  private FeedMonitorPanel feedMonitor;
   private JTextField urlDisplay;
   private JButton copyURLBtn;
   private JButton removeFeedBtn;
@@ -196,15 +300,40 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     this.feedTableModelController = new FeedTableModelController(cloudyRSS);
     this.feedTable = new JTable(feedTableModelController);
     this.feedTableModelController.setTable(feedTable);
+    this.feedMonitor = new FeedMonitorPanel();
     this.controlsCP = new JPanel();
 
     this.httpServerURL = cloudyRSS.getWebServerURL();
     String feeds[] = cloudyRSS.getConfiguredFeeds();
     for (String feed: feeds) {
-      feedTableModelController.addCloudyFeedReader(cloudyRSS.getCloudyFeedReaderForFeed(feed));
+      CloudyFeedReader reader = cloudyRSS.getCloudyFeedReaderForFeed(feed);
+      feedTableModelController.addCloudyFeedReader(reader);
+      feedMonitor.addCloudyFeedReader(reader);
     }
 
     initGUI();
+    feedMonitor.start();
+
+    /* Feeds changed by reloading the configuration file */
+    cloudyRSS.addConfigurationHandler(new FeedsConfigurationHandler() {
+        public void feedAdded(final CloudyFeedReader reader) {
+          SwingUtilities.invokeLater(new Runnable() {
+              public void run() {
+                feedTableModelController.addCloudyFeedReader(reader);
+                feedMonitor.addCloudyFeedReader(reader);
+              }
+            });
+        }
+
+        public void feedRemoved(final CloudyFeedReader reader) {
+          SwingUtilities.invokeLater(new Runnable() {
+              public void run() {
+                feedTableModelController.removeCloudyFeedReader(reader);
+                feedMonitor.removeCloudyFeedReader(reader);
+              }
+            });
+        }
+      });
   }
 
   private final void initGUI() {
@@ -275,7 +404,11 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     bottomCP.add(displayCP);
     bottomCP.add(controlsCP);
 
-    mainCP.add(tableScroll, BorderLayout.CENTER);
+    JTabbedPane tabs = new JTabbedPane();
+    tabs.addTab("Feeds", tableScroll);
+    tabs.addTab("Monitor", new JScrollPane(feedMonitor));
+
+    mainCP.add(tabs, BorderLayout.CENTER);
     mainCP.add(bottomCP, BorderLayout.SOUTH);
 
     // Set dimensions
@@ -327,6 +460,8 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
         CloudyFeedReader reader = cloudyRSS.configureFeed(fileURL);
         if (reader != null) {
           feedTableModelController.addCloudyFeedReader(reader);
+          feedMonitor.addCloudyFeedReader(reader);
+          cloudyRSS.writeFeedsConfiguration();
         }
       } catch (RuntimeException e) {
         JOptionPane.showMessageDialog(this, "Error configuring cloudyrss feed: " + file.getName(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -337,8 +472,11 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
 
   private void removeFeed(){
     CloudyFeedReader r = feedTableModelController.getSelectedCloudyFeedReader();
-    if (cloudyRSS.removeFeed(r.getFeedName()))
+    if (cloudyRSS.removeFeed(r.getFeedName())) {
       feedTableModelController.removeSelectedCloudyFeedReader();
+      feedMonitor.removeCloudyFeedReader(r);
+      cloudyRSS.writeFeedsConfiguration();
+    }
   }
 
   public static void main(String args[]) {
@@ -357,11 +495,21 @@ public class CloudyRSSGui extends JFrame implements ClipboardOwner {
     }
 
     try {
-      CloudyRSS cloudyRSS = new CloudyRSS(conf, new File(feedsConfFilePath));
+      final CloudyRSS cloudyRSS = new CloudyRSS(conf, new File(feedsConfFilePath));
       cloudyRSS.loadFeedsConfiguration();
-      CloudyRSSGui gui = new CloudyRSSGui(cloudyRSS);
       Runtime.getRuntime().addShutdownHook(new SavePreferenceOnShutdown(cloudyRSS));
-      gui.setVisible(true);
+
+      /* The table model is only touched by the event dispatch thread */
+      SwingUtilities.invokeAndWait(new Runnable() {
+          public void run() {
+            try {
+              new CloudyRSSGui(cloudyRSS).setVisible(true);
+            } catch (Exception e) {
+              throw new RuntimeException("Error creating the GUI", e);
+            }
+          }
+        });
+      cloudyRSS.startFeedsConfigurationWatcher();
     } catch (Exception e) {
       System.err.println("Uncatched exception");
       e.printStackTrace();
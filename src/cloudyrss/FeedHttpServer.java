@@ -0,0 +1,216 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import de.nava.informa.core.ChannelExporterIF;
+import de.nava.informa.core.ChannelIF;
+import de.nava.informa.exporters.RSS_1_0_Exporter;
+import de.nava.informa.impl.basic.ChannelBuilder;
+import org.apache.log4j.Logger;
+import org.apache.lucene.queryParser.ParseException;
+import org.jibble.simplewebserver.SimpleWebServer;
+
+/**
+ * HTTP server of CloudyRSS, serving the rss files of the feeds and the
+ * search over the entries received.
+ * <p>
+ * Files are served from the base directory, as SimpleWebServer did, with
+ * the same content types. When a search index is given, queries are
+ * answered at <tt>/search?q=query</tt> with an RSS feed of the matching
+ * entries, so a search can be subscribed to like any other feed. The
+ * optional parameters <tt>feed</tt> restrict the search to one feed,
+ * <tt>n</tt> sets the number of results and <tt>sort=date</tt> sorts them
+ * by publication date instead of relevance.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedHttpServer {
+
+  static Logger logger = Logger.getLogger(FeedHttpServer.class);
+
+  public static int DEFAULT_THREADS = 8;
+  public static int DEFAULT_RESULTS = 20;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private File rootDir;
+  private FeedSearchIndex searchIndex;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates and starts a new server
+   *
+   * @param rootDir Directory of the files served
+   * @param port Port listened to
+   * @param searchIndex Index answering the searches, or null to disable them
+   */
+  public FeedHttpServer(File rootDir, int port, FeedSearchIndex searchIndex) throws IOException {
+    this.rootDir = rootDir.getCanonicalFile();
+    this.searchIndex = searchIndex;
+
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.server.createContext("/", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          try {
+            serveFile(exchange);
+          } finally {
+            exchange.close();
+          }
+        }
+      });
+    if (searchIndex != null) {
+      this.server.createContext("/search", new HttpHandler() {
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              serveSearch(exchange);
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+    }
+
+    this.executor = Executors.newFixedThreadPool(DEFAULT_THREADS);
+    this.server.setExecutor(executor);
+    this.server.start();
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public void terminate() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  private void serveFile(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    boolean head = method.equals("HEAD");
+    if (!head && !method.equals("GET")) {
+      exchange.sendResponseHeaders(405, -1);
+      return;
+    }
+
+    File file = new File(rootDir, exchange.getRequestURI().getPath()).getCanonicalFile();
+    if (file.isDirectory()) file = new File(file, "index.html");
+    if (!file.getPath().startsWith(rootDir.getPath() + File.separator) || !file.isFile()) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+
+    String contentType = (String) SimpleWebServer.MIME_TYPES.get(SimpleWebServer.getExtension(file));
+    if (contentType == null) contentType = "application/octet-stream";
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+
+    if (head) {
+      exchange.getResponseHeaders().set("Content-Length", Long.toString(file.length()));
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+
+    InputStream in = new FileInputStream(file);
+    try {
+      exchange.sendResponseHeaders(200, file.length());
+      OutputStream out = exchange.getResponseBody();
+      byte buffer[] = new byte[8192];
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) out.write(buffer, 0, n);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void serveSearch(HttpExchange exchange) throws IOException {
+    Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+    String query = params.get("q");
+    if (query == null || query.trim().equals("")) {
+      sendError(exchange, 400, "Missing query");
+      return;
+    }
+
+    int maxResults = DEFAULT_RESULTS;
+    try {
+      if (params.get("n") != null) maxResults = Integer.parseInt(params.get("n"));
+    } catch (NumberFormatException e) {
+      sendError(exchange, 400, "Invalid number of results");
+      return;
+    }
+
+    List<FeedSearchIndex.Result> results;
+    try {
+      results = searchIndex.search(query, params.get("feed"), maxResults, "date".equals(params.get("sort")));
+    } catch (ParseException e) {
+      sendError(exchange, 400, "Invalid query: " + e.getMessage());
+      return;
+    }
+
+    ChannelBuilder builder = new ChannelBuilder();
+    ChannelIF channel = builder.createChannel("Search: " + query);
+    channel.setDescription(results.size() + " entries matching " + query);
+    for (FeedSearchIndex.Result result: results) {
+      RSSEntry entry = result.getEntry();
+      builder.createItem(channel, entry.getTitle(), entry.getDescription(), entry.getLink());
+    }
+
+    StringWriter writer = new StringWriter();
+    ChannelExporterIF exporter = new RSS_1_0_Exporter(writer, "UTF-8");
+    exporter.write(channel);
+
+    byte body[] = writer.toString().getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/rss+xml; charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+    byte body[] = message.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(code, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (rawQuery == null) return params;
+
+    for (String param: rawQuery.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq <= 0) continue;
+      params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                 URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+/**
+ * Panel drawing the recent activity of every feed as sparklines.
+ * <p>
+ * The counters of the readers are sampled every tick on the event dispatch
+ * thread; the rate of each metric over the tick is stored in a ring buffer
+ * allocated when the reader is added. Each metric is scaled on the highest
+ * value shown for any feed, so hot feeds stand out and stalled ones stay
+ * flat. Labels are formatted when sampling, so painting allocates nothing
+ * and only draws the rows within the clip.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedMonitorPanel extends JPanel {
+
+  private static final long serialVersionUID = 1L;
+
+  public static int DEFAULT_TICK = 5000;
+  public static int DEFAULT_HISTORY = 60;
+
+  private static final int ENTRIES = 0;
+  private static final int EXPORT_LATENCY = 1;
+  private static final int GOSSIP_IN = 2;
+  private static final int GOSSIP_OUT = 3;
+  private static final int CLOUD_FETCHES = 4;
+  private static final int METRICS = 5;
+
+  private static final String METRIC_NAMES[] = new String[] {
+    "Entries/min", "Export ms", "Gossip in B/s", "Gossip out B/s", "Cloud fetches/min"
+  };
+
+  private static final int ROW_HEIGHT = 22;
+  private static final int NAME_WIDTH = 140;
+  private static final int CELL_WIDTH = 150;
+  private static final int LABEL_WIDTH = 50;
+  private static final int PADDING = 3;
+
+  private static final Color LINE_COLOR = new Color(40, 90, 160);
+  private static final Color GRID_COLOR = new Color(225, 225, 225);
+
+  /**
+   * Ring buffers of the samples of a reader
+   */
+  private static class Series {
+    private CloudyFeedReader reader;
+    private long samples[][];
+    private int head = 0;
+    private int size = 0;
+
+    private long counters[] = new long[METRICS + 1];
+    private String labels[] = new String[METRICS];
+
+    public Series(CloudyFeedReader reader, int history) {
+      this.reader = reader;
+      this.samples = new long[METRICS][history];
+      readCounters(counters);
+      for (int m = 0; m < METRICS; m++) labels[m] = "-";
+    }
+
+    /**
+     * Reads the counters of the reader: the metrics plus the number of
+     * exports, needed to average their latency
+     */
+    private void readCounters(long c[]) {
+      c[ENTRIES] = reader.getEntriesReceived();
+      c[EXPORT_LATENCY] = reader.getExportTime();
+      c[GOSSIP_IN] = reader.getGossipBytesIn();
+      c[GOSSIP_OUT] = reader.getGossipBytesOut();
+      c[CLOUD_FETCHES] = reader.getCloudFetches();
+      c[METRICS] = reader.getExports();
+    }
+
+    /**
+     * Stores the rates since the previous sample
+     */
+    public void sample(long current[], long tick) {
+      readCounters(current);
+      int capacity = samples[0].length;
+      int pos = (head + size) % capacity;
+      if (size == capacity) head = (head + 1) % capacity;
+      else size++;
+
+      long exports = current[METRICS] - counters[METRICS];
+      samples[ENTRIES][pos] = (current[ENTRIES] - counters[ENTRIES]) * 60000 / tick;
+      samples[EXPORT_LATENCY][pos] = (exports > 0) ? (current[EXPORT_LATENCY] - counters[EXPORT_LATENCY]) / exports : 0;
+      samples[GOSSIP_IN][pos] = (current[GOSSIP_IN] - counters[GOSSIP_IN]) * 1000 / tick;
+      samples[GOSSIP_OUT][pos] = (current[GOSSIP_OUT] - counters[GOSSIP_OUT]) * 1000 / tick;
+      samples[CLOUD_FETCHES][pos] = (current[CLOUD_FETCHES] - counters[CLOUD_FETCHES]) * 60000 / tick;
+
+      for (int m = 0; m < METRICS; m++) labels[m] = format(samples[m][pos]);
+      System.arraycopy(current, 0, counters, 0, counters.length);
+    }
+
+    public long get(int metric, int i) {
+      return samples[metric][(head + i) % samples[metric].length];
+    }
+
+    public long max(int metric) {
+      long max = 0;
+      for (int i = 0; i < size; i++) max = Math.max(max, get(metric, i));
+      return max;
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private List<Series> series = new ArrayList<Series>();
+  private int history;
+  private int tick;
+  private Timer timer;
+
+  private long scale[] = new long[METRICS];
+  private long current[] = new long[METRICS + 1];
+  private int xs[];
+  private int ys[];
+  private Rectangle clip = new Rectangle();
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public FeedMonitorPanel() {
+    this(DEFAULT_TICK, DEFAULT_HISTORY);
+  }
+
+  /**
+   * Creates a new panel
+   *
+   * @param tick Milliseconds between two samples
+   * @param history Number of samples shown
+   */
+  public FeedMonitorPanel(int tick, int history) {
+    this.tick = tick;
+    this.history = history;
+    this.xs = new int[history];
+    this.ys = new int[history];
+    setBackground(Color.WHITE);
+    setOpaque(true);
+
+    this.timer = new Timer(tick, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+          sample();
+        }
+      });
+  }
+
+  /* ***********************************************************
+   *  Readers management, on the event dispatch thread
+   *************************************************************/
+
+  public void addCloudyFeedReader(CloudyFeedReader reader) {
+    for (int i = 0; i < series.size(); i++) {
+      if (series.get(i).reader.getFeedName().equals(reader.getFeedName())) {
+        series.set(i, new Series(reader, history));
+        repaint();
+        return;
+      }
+    }
+
+    int i = 0;
+    while (i < series.size() && series.get(i).reader.getFeedName().compareTo(reader.getFeedName()) < 0) i++;
+    series.add(i, new Series(reader, history));
+    updateSize();
+  }
+
+  public void removeCloudyFeedReader(CloudyFeedReader reader) {
+    for (int i = 0; i < series.size(); i++) {
+      if (series.get(i).reader == reader) {
+        series.remove(i);
+        updateSize();
+        return;
+      }
+    }
+  }
+
+  public void start() {
+    timer.start();
+  }
+
+  public void stop() {
+    timer.stop();
+  }
+
+  private void updateSize() {
+    setPreferredSize(new Dimension(NAME_WIDTH + METRICS * CELL_WIDTH, (series.size() + 1) * ROW_HEIGHT));
+    revalidate();
+    repaint();
+  }
+
+  /* ***********************************************************
+   *  Sampling
+   *************************************************************/
+
+  private void sample() {
+    for (Series s: series) s.sample(current, tick);
+
+    for (int m = 0; m < METRICS; m++) {
+      long max = 0;
+      for (Series s: series) max = Math.max(max, s.max(m));
+      scale[m] = max;
+    }
+    repaint();
+  }
+
+  private static String format(long value) {
+    if (value >= 10000000) return (value / 1000000) + "M";
+    if (value >= 10000) return (value / 1000) + "k";
+    return Long.toString(value);
+  }
+
+  /* ***********************************************************
+   *  Painting
+   *************************************************************/
+
+  protected void paintComponent(Graphics g) {
+    super.paintComponent(g);
+    g.getClipBounds(clip);
+    FontMetrics fm = g.getFontMetrics();
+    int baseline = (ROW_HEIGHT + fm.getAscent() - fm.getDescent()) / 2;
+
+    /* Header */
+    if (clip.y < ROW_HEIGHT) {
+      g.setColor(Color.DARK_GRAY);
+      g.drawString("Feed", PADDING, baseline);
+      for (int m = 0; m < METRICS; m++) g.drawString(METRIC_NAMES[m], NAME_WIDTH + m * CELL_WIDTH + PADDING, baseline);
+    }
+
+    int first = Math.max(0, clip.y / ROW_HEIGHT - 1);
+    int last = Math.min(series.size() - 1, (clip.y + clip.height) / ROW_HEIGHT);
+    for (int row = first; row <= last; row++) {
+      Series s = series.get(row);
+      int y = (row + 1) * ROW_HEIGHT;
+
+      g.setColor(GRID_COLOR);
+      g.drawLine(0, y, getWidth(), y);
+      g.setColor(Color.BLACK);
+      g.drawString(s.reader.getFeedName(), PADDING, y + baseline);
+
+      for (int m = 0; m < METRICS; m++) {
+        int x = NAME_WIDTH + m * CELL_WIDTH;
+        paintSparkline(g, s, m, x + PADDING, y + PADDING, CELL_WIDTH - LABEL_WIDTH - 2 * PADDING,
+                       ROW_HEIGHT - 2 * PADDING);
+        g.setColor(Color.DARK_GRAY);
+        g.drawString(s.labels[m], x + CELL_WIDTH - LABEL_WIDTH, y + baseline);
+      }
+    }
+  }
+
+  private void paintSparkline(Graphics g, Series s, int metric, int x, int y, int width, int height) {
+    if (s.size == 0) return;
+
+    long max = Math.max(1, scale[metric]);
+    int n = s.size;
+    for (int i = 0; i < n; i++) {
+      xs[i] = x + (int) ((long) width * (history - n + i) / Math.max(1, history - 1));
+      ys[i] = y + height - (int) (height * Math.min(max, s.get(metric, i)) / max);
+    }
+
+    g.setColor(LINE_COLOR);
+    if (n == 1) g.fillRect(xs[0] - 1, ys[0] - 1, 2, 2);
+    else g.drawPolyline(xs, ys, n);
+  }
+}
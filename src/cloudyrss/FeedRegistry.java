@@ -0,0 +1,226 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Registry of the feeds configured in CloudyRSS and of the state of each.
+ * <p>
+ * The registry is an immutable snapshot, sorted by feed name, replaced as a
+ * whole on every change. Changes are serialized; reads take the current
+ * snapshot and never lock nor allocate, so the GUI and the web server can
+ * read the feeds while others are being added or removed.
+ * <p>
+ * A feed is reserved in the STARTING state while its reader is created,
+ * which prevents the same feed from being configured twice. It then becomes
+ * RUNNING, the only state in which it is visible to readers of the
+ * registry, until it is DRAINING while its reader terminates. Once STOPPED
+ * it leaves the registry and its name can be reused.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedRegistry {
+
+  /**
+   * Lifecycle states of a feed
+   */
+  public static enum State { STARTING, RUNNING, DRAINING, STOPPED }
+
+  /**
+   * Immutable registration of a feed
+   */
+  public static class Feed {
+    private String name;
+    private State state;
+    private CloudyFeedReader reader;
+    private File rssFile;
+
+    private Feed(String name, State state, CloudyFeedReader reader, File rssFile) {
+      this.name = name;
+      this.state = state;
+      this.reader = reader;
+      this.rssFile = rssFile;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    public CloudyFeedReader getReader() {
+      return reader;
+    }
+
+    public File getRSSFile() {
+      return rssFile;
+    }
+  }
+
+  /**
+   * Feeds in every state, and names of the running ones, both sorted by name
+   */
+  private static class Snapshot {
+    private Feed feeds[];
+    private String feedNames[];
+    private String running[];
+
+    public Snapshot(Feed feeds[]) {
+      this.feeds = feeds;
+      this.feedNames = new String[feeds.length];
+      int n = 0;
+      for (int i = 0; i < feeds.length; i++) {
+        feedNames[i] = feeds[i].name;
+        if (feeds[i].state == State.RUNNING) n++;
+      }
+
+      this.running = new String[n];
+      n = 0;
+      for (Feed f: feeds) {
+        if (f.state == State.RUNNING) running[n++] = f.name;
+      }
+    }
+
+    public int indexOf(String name) {
+      return Arrays.binarySearch(feedNames, name);
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private volatile Snapshot snapshot = new Snapshot(new Feed[0]);
+
+  /* ***********************************************************
+   *  Changes, serialized
+   *************************************************************/
+
+  /**
+   * Reserves a feed about to be started
+   *
+   * @return False if the feed is already registered, in any state
+   */
+  public synchronized boolean reserve(String name) {
+    if (snapshot.indexOf(name) >= 0) return false;
+    put(new Feed(name, State.STARTING, null, null));
+    return true;
+  }
+
+  /**
+   * Marks a reserved feed as running
+   *
+   * @throws IllegalStateException If the feed has not been reserved
+   */
+  public synchronized void running(String name, CloudyFeedReader reader, File rssFile) {
+    Feed feed = get(name);
+    if (feed == null || feed.state != State.STARTING)
+      throw new IllegalStateException("Feed " + name + " not starting");
+    put(new Feed(name, State.RUNNING, reader, rssFile));
+  }
+
+  /**
+   * Marks a running feed as draining, hiding it from the readers of the
+   * registry
+   *
+   * @return The registration of the running feed or null if the feed is
+   * not running
+   */
+  public synchronized Feed drain(String name) {
+    Feed feed = get(name);
+    if (feed == null || feed.state != State.RUNNING) return null;
+    put(new Feed(name, State.DRAINING, feed.reader, feed.rssFile));
+    return feed;
+  }
+
+  /**
+   * Removes a feed, either draining or whose start failed
+   */
+  public synchronized void stopped(String name) {
+    Snapshot s = snapshot;
+    int i = s.indexOf(name);
+    if (i < 0) return;
+
+    Feed feeds[] = new Feed[s.feeds.length - 1];
+    System.arraycopy(s.feeds, 0, feeds, 0, i);
+    System.arraycopy(s.feeds, i + 1, feeds, i, feeds.length - i);
+    snapshot = new Snapshot(feeds);
+  }
+
+  private void put(Feed feed) {
+    Snapshot s = snapshot;
+    int i = s.indexOf(feed.name);
+    Feed feeds[];
+    if (i >= 0) {
+      feeds = s.feeds.clone();
+      feeds[i] = feed;
+    } else {
+      i = -i - 1;
+      feeds = new Feed[s.feeds.length + 1];
+      System.arraycopy(s.feeds, 0, feeds, 0, i);
+      feeds[i] = feed;
+      System.arraycopy(s.feeds, i, feeds, i + 1, s.feeds.length - i);
+    }
+    snapshot = new Snapshot(feeds);
+  }
+
+  /* ***********************************************************
+   *  Reads, lock-free
+   *************************************************************/
+
+  /**
+   * Returns the registration of a feed in any state, or null
+   */
+  public Feed get(String name) {
+    Snapshot s = snapshot;
+    int i = s.indexOf(name);
+    return (i >= 0) ? s.feeds[i] : null;
+  }
+
+  /**
+   * Returns the state of a feed, STOPPED if not registered
+   */
+  public State getState(String name) {
+    Feed feed = get(name);
+    return (feed == null) ? State.STOPPED : feed.state;
+  }
+
+  /**
+   * Returns the reader of a running feed, or null
+   */
+  public CloudyFeedReader getReader(String name) {
+    Feed feed = get(name);
+    return (feed != null && feed.state == State.RUNNING) ? feed.reader : null;
+  }
+
+  /**
+   * Returns the rss file of a running feed, or null
+   */
+  public File getRSSFile(String name) {
+    Feed feed = get(name);
+    return (feed != null && feed.state == State.RUNNING) ? feed.rssFile : null;
+  }
+
+  /**
+   * Returns the names of the running feeds, sorted. The array is shared by
+   * all the callers and must not be modified.
+   */
+  public String[] getRunningFeeds() {
+    return snapshot.running;
+  }
+
+  /**
+   * Returns the registrations of all the feeds, sorted by name. The array
+   * is shared by all the callers and must not be modified.
+   */
+  public Feed[] getFeeds() {
+    return snapshot.feeds;
+  }
+}
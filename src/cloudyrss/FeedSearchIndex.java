@@ -0,0 +1,449 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.DateField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Full-text index of the entries received by the feeds.
+ * <p>
+ * Entries are queued by the feed readers and written in batches by a
+ * background thread, which then opens a new searcher over the index and
+ * swaps it in, so queries never wait for the writer and see new entries
+ * within a commit period. Searchers are reference counted and closed once
+ * the last query using them completes.
+ * <p>
+ * Title, description and link are indexed together in a single field,
+ * searched by default; the title and the feed can also be queried by
+ * name. Entries are identified by feed and key, so an entry received
+ * twice replaces itself, and are removed once older than the retention.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedSearchIndex implements Runnable {
+
+  static Logger logger = Logger.getLogger(FeedSearchIndex.class);
+
+  public static long DEFAULT_COMMIT_PERIOD = 1000;
+  public static long DEFAULT_PURGE_PERIOD = 3600 * 1000;
+  public static int DEFAULT_MAX_RESULTS = 100;
+
+  /* Documents buffered in memory by the writer; each addition scans them */
+  public static int DEFAULT_BUFFERED_DOCUMENTS = 100;
+
+  private static final String KEY = "key";
+  private static final String FEED = "feed";
+  private static final String TITLE = "title";
+  private static final String DESCRIPTION = "description";
+  private static final String LINK = "link";
+  private static final String DATE = "date";
+  private static final String TEXT = "text";
+
+  private static final Sort BY_DATE = new Sort(new SortField(DATE, SortField.STRING, true));
+
+  /**
+   * Entry matching a query
+   */
+  public static class Result {
+    private String feed;
+    private RSSEntry entry;
+    private float score;
+
+    public Result(String feed, RSSEntry entry, float score) {
+      this.feed = feed;
+      this.entry = entry;
+      this.score = score;
+    }
+
+    public String getFeed() {
+      return feed;
+    }
+
+    public RSSEntry getEntry() {
+      return entry;
+    }
+
+    public float getScore() {
+      return score;
+    }
+  }
+
+  /**
+   * Searcher shared by the queries running on it
+   */
+  private static class SearcherReference {
+    private IndexReader reader;
+    private IndexSearcher searcher;
+    private int references = 1;
+
+    public SearcherReference(Directory directory) throws IOException {
+      this.reader = IndexReader.open(directory);
+      this.searcher = new IndexSearcher(reader);
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private Directory directory;
+  private Analyzer analyzer = new StandardAnalyzer();
+  private long retention;
+  private long commitPeriod;
+  private long purgePeriod = DEFAULT_PURGE_PERIOD;
+
+  private Object lock = new Object();
+  private Map<String, Document> pendingDocuments = new LinkedHashMap<String, Document>();
+  private Set<String> pendingFeedRemovals = new HashSet<String>();
+  private SearcherReference current;
+  private volatile boolean sortedByDate = false;
+
+  private Thread thread;
+  private volatile boolean terminated = false;
+  private long lastPurge = 0;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates an index kept in memory
+   *
+   * @param retention Milliseconds after publication entries are removed
+   */
+  public FeedSearchIndex(long retention) throws IOException {
+    this(new RAMDirectory(), retention, DEFAULT_COMMIT_PERIOD);
+  }
+
+  /**
+   * Creates an index stored in a directory, reusing the index found in it
+   *
+   * @param indexDir Directory of the index
+   * @param retention Milliseconds after publication entries are removed
+   */
+  public FeedSearchIndex(File indexDir, long retention) throws IOException {
+    this(FSDirectory.getDirectory(indexDir, !IndexReader.indexExists(indexDir)), retention, DEFAULT_COMMIT_PERIOD);
+  }
+
+  /**
+   * Creates a new index
+   *
+   * @param directory Directory of the index
+   * @param retention Milliseconds after publication entries are removed
+   * @param commitPeriod Milliseconds between two batches written to the index
+   */
+  public FeedSearchIndex(Directory directory, long retention, long commitPeriod) throws IOException {
+    this.directory = directory;
+    this.retention = retention;
+    this.commitPeriod = commitPeriod;
+
+    /* This is the only writer: a lock left over is stale */
+    if (IndexReader.isLocked(directory)) IndexReader.unlock(directory);
+    if (!IndexReader.indexExists(directory)) new IndexWriter(directory, analyzer, true).close();
+
+    this.current = new SearcherReference(directory);
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public void start() {
+    thread = new Thread(this, "feed-search-index");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Writes the entries queued and closes the index
+   */
+  public void terminate() {
+    terminated = true;
+    if (thread == null) return;
+
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queues an entry received by a feed
+   */
+  public void add(String feed, RSSEntry entry) {
+    String key = feed + "/" + entry.getKey();
+    /* Fields cannot be null; items may have no title, description or link */
+    String title = (entry.getTitle() != null) ? entry.getTitle() : "";
+    String description = (entry.getDescription() != null) ? entry.getDescription() : "";
+    String link = (entry.getLink() != null) ? entry.getLink().toString() : "";
+    /* Dates cannot be negative; such entries are indexed at the epoch, the first purged */
+    long date = Math.max(0, entry.getPublicationTime());
+
+    Document doc = new Document();
+    doc.add(Field.Keyword(KEY, key));
+    doc.add(Field.Keyword(FEED, feed));
+    doc.add(Field.Text(TITLE, title));
+    doc.add(Field.UnIndexed(DESCRIPTION, description));
+    doc.add(Field.UnIndexed(LINK, link));
+    doc.add(Field.Keyword(DATE, DateField.timeToString(date)));
+    doc.add(Field.UnStored(TEXT, title + " " + description + " " + link));
+
+    synchronized (lock) {
+      pendingDocuments.put(key, doc);
+    }
+  }
+
+  /**
+   * Queues the removal of all the entries of a feed
+   */
+  public void removeFeed(String feed) {
+    synchronized (lock) {
+      for (Map.Entry<String, Document> e: new ArrayList<Map.Entry<String, Document>>(pendingDocuments.entrySet())) {
+        if (feed.equals(e.getValue().get(FEED))) pendingDocuments.remove(e.getKey());
+      }
+      pendingFeedRemovals.add(feed);
+    }
+  }
+
+  /**
+   * Searches the entries matching a query
+   *
+   * @param queryString Query in the Lucene syntax
+   * @param feed Feed to search, or null to search all of them
+   * @param maxResults Maximum number of results, limited to DEFAULT_MAX_RESULTS
+   * @param byDate Whether results are sorted by publication date rather than relevance
+   * @return The matching entries
+   */
+  public List<Result> search(String queryString, String feed, int maxResults, boolean byDate)
+    throws ParseException, IOException
+  {
+    Query query = QueryParser.parse(queryString, TEXT, analyzer);
+    if (feed != null) {
+      BooleanQuery inFeed = new BooleanQuery();
+      inFeed.add(query, true, false);
+      inFeed.add(new TermQuery(new Term(FEED, feed)), true, false);
+      query = inFeed;
+    }
+    maxResults = Math.max(1, Math.min(maxResults, DEFAULT_MAX_RESULTS));
+    if (byDate) sortedByDate = true;
+
+    SearcherReference ref = acquire();
+    try {
+      TopDocs top = byDate ? ref.searcher.search(query, null, maxResults, BY_DATE)
+                           : ref.searcher.search(query, null, maxResults);
+
+      List<Result> results = new ArrayList<Result>(top.scoreDocs.length);
+      for (ScoreDoc sd: top.scoreDocs) {
+        Document doc = ref.searcher.doc(sd.doc);
+        results.add(new Result(doc.get(FEED), toEntry(doc), sd.score));
+      }
+      return results;
+    } finally {
+      release(ref);
+    }
+  }
+
+  /**
+   * Returns the number of entries searchable
+   */
+  public int size() {
+    SearcherReference ref = acquire();
+    try {
+      return ref.reader.numDocs();
+    } finally {
+      release(ref);
+    }
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  private RSSEntry toEntry(Document doc) {
+    URL link = null;
+    String linkString = doc.get(LINK);
+    if (linkString != null && !linkString.equals("")) {
+      try {
+        link = new URL(linkString);
+      } catch (MalformedURLException e) {}
+    }
+    return new RSSEntry(doc.get(TITLE), doc.get(DESCRIPTION), link, new Date(DateField.stringToTime(doc.get(DATE))));
+  }
+
+  private SearcherReference acquire() {
+    synchronized (lock) {
+      current.references++;
+      return current;
+    }
+  }
+
+  private void release(SearcherReference ref) {
+    synchronized (lock) {
+      if (--ref.references > 0) return;
+    }
+    try {
+      ref.reader.close();
+    } catch (IOException e) {
+      logger.warn("Error closing search index searcher", e);
+    }
+  }
+
+  /**
+   * Writes the queued entries and removals and swaps in a searcher seeing
+   * them
+   */
+  private void commit() throws IOException {
+    Map<String, Document> documents;
+    Set<String> feedRemovals;
+    synchronized (lock) {
+      documents = pendingDocuments;
+      feedRemovals = pendingFeedRemovals;
+      pendingDocuments = new LinkedHashMap<String, Document>();
+      pendingFeedRemovals = new HashSet<String>();
+    }
+
+    long now = System.currentTimeMillis();
+    boolean purge = now - lastPurge >= purgePeriod;
+    if (documents.isEmpty() && feedRemovals.isEmpty() && !purge) return;
+
+    /* Entries received again replace the indexed ones */
+    List<Term> replaced = new ArrayList<Term>();
+    SearcherReference ref = acquire();
+    try {
+      for (String key: documents.keySet()) {
+        Term term = new Term(KEY, key);
+        if (ref.reader.docFreq(term) > 0) replaced.add(term);
+      }
+    } finally {
+      release(ref);
+    }
+
+    int deleted = 0;
+    if (!replaced.isEmpty() || !feedRemovals.isEmpty() || purge) {
+      IndexReader reader = IndexReader.open(directory);
+      try {
+        for (Term term: replaced) reader.delete(term);
+        for (String feed: feedRemovals) deleted += reader.delete(new Term(FEED, feed));
+        if (purge) {
+          deleted += purge(reader, now - retention);
+          lastPurge = now;
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    if (!documents.isEmpty()) {
+      IndexWriter writer = new IndexWriter(directory, analyzer, false);
+      writer.minMergeDocs = DEFAULT_BUFFERED_DOCUMENTS;
+      try {
+        for (Document doc: documents.values()) writer.addDocument(doc);
+      } finally {
+        writer.close();
+      }
+    }
+
+    SearcherReference fresh = new SearcherReference(directory);
+    if (sortedByDate) fresh.searcher.search(new TermQuery(new Term(KEY, "")), null, 1, BY_DATE);
+
+    SearcherReference old;
+    synchronized (lock) {
+      old = current;
+      current = fresh;
+    }
+    release(old);
+
+    logger.debug(String.format("Search index commit: %s entries indexed, %s removed in %s ms",
+                               documents.size(), deleted, System.currentTimeMillis() - now));
+  }
+
+  /**
+   * Removes the entries published before the cutoff
+   */
+  private int purge(IndexReader reader, long cutoff) throws IOException {
+    String limit = DateField.timeToString(Math.max(0, cutoff));
+    List<Term> expired = new ArrayList<Term>();
+    TermEnum terms = reader.terms(new Term(DATE, ""));
+    try {
+      do {
+        Term term = terms.term();
+        if (term == null || !DATE.equals(term.field()) || term.text().compareTo(limit) >= 0) break;
+        expired.add(term);
+      } while (terms.next());
+    } finally {
+      terms.close();
+    }
+
+    int deleted = 0;
+    for (Term term: expired) deleted += reader.delete(term);
+    if (deleted > 0) logger.info(String.format("Removed %s expired entries from the search index", deleted));
+    return deleted;
+  }
+
+  /* ***********************************************************
+   *  Runnable implementation
+   *************************************************************/
+
+  public void run() {
+    while (!terminated) {
+      try {
+        Thread.sleep(commitPeriod);
+      } catch (InterruptedException e) {
+        if (!terminated) continue;
+      }
+
+      try {
+        commit();
+      } catch (IOException e) {
+        logger.error("Input/Output error updating the search index", e);
+      } catch (RuntimeException e) {
+        logger.error("Uncatched exception updating the search index", e);
+      }
+    }
+
+    SearcherReference ref;
+    synchronized (lock) {
+      ref = current;
+    }
+    release(ref);
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.simple.SimpleStoreEntry;
+import cloudypeer.store.simple.SimpleStoreEntryMetadata;
+
+/**
+ * Immutable bundle of store entries kept in the cloud as a single object.
+ * <p>
+ * A segment starts with an index holding, for every entry, its key, the
+ * metadata it has in the cloud and the position of its content. Contents
+ * follow the index, each compressed on its own so that a single entry can be
+ * extracted without inflating the others:
+ * <pre>
+ *   "CRSG" version count
+ *   count x (key modified md5 type length offset compressedLength)
+ *   compressed contents
+ * </pre>
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedSegment {
+
+  private static final int MAGIC = 0x43525347;
+  private static final int VERSION = 1;
+
+  /**
+   * Position and metadata of an entry within the segment
+   */
+  private static class IndexEntry {
+    private StoreEntryMetadata metadata;
+    private int offset;
+    private int compressedLength;
+
+    public IndexEntry(StoreEntryMetadata metadata, int offset, int compressedLength) {
+      this.metadata = metadata;
+      this.offset = offset;
+      this.compressedLength = compressedLength;
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private byte data[];
+  private int dataStart;
+  private LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<String, IndexEntry>();
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Parses the index of a segment
+   *
+   * @param data The segment object content
+   */
+  public FeedSegment(byte data[]) throws IOException {
+    this.data = data;
+    ByteArrayInputStream bin = new ByteArrayInputStream(data);
+    DataInputStream in = new DataInputStream(bin);
+
+    if (in.readInt() != MAGIC) throw new IOException("Not a feed segment");
+    int version = in.readInt();
+    if (version != VERSION) throw new IOException("Unsupported segment version " + version);
+
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String key = in.readUTF();
+      Date modified = new Date(in.readLong());
+      String md5 = in.readUTF();
+      String type = in.readUTF();
+      long length = in.readLong();
+      int offset = in.readInt();
+      int compressedLength = in.readInt();
+
+      StoreEntryMetadata meta = new SimpleStoreEntryMetadata(modified, length, md5, type,
+                                                             new HashMap<String, String>());
+      index.put(key, new IndexEntry(meta, offset, compressedLength));
+    }
+    this.dataStart = data.length - bin.available();
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public int size() {
+    return index.size();
+  }
+
+  public String[] getKeys() {
+    return index.keySet().toArray(new String[index.size()]);
+  }
+
+  public StoreEntryMetadata getMetadata(String key) {
+    IndexEntry e = index.get(key);
+    return (e == null) ? null : e.metadata;
+  }
+
+  /**
+   * Extracts a single entry
+   *
+   * @return The entry or null if not in the segment
+   */
+  public StoreEntry getEntry(String key) throws IOException {
+    IndexEntry e = index.get(key);
+    if (e == null) return null;
+
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data, dataStart + e.offset, e.compressedLength);
+      byte content[] = new byte[(int) e.metadata.getContentLength()];
+      int n = 0;
+      while (n < content.length && !inflater.finished()) {
+        n += inflater.inflate(content, n, content.length - n);
+        if (inflater.needsInput()) break;
+      }
+      if (n != content.length) throw new IOException("Truncated entry " + key);
+      return new SimpleStoreEntry(key, new ByteArrayInputStream(content), e.metadata);
+    } catch (DataFormatException ex) {
+      throw new IOException("Corrupted entry " + key + ": " + ex.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Extracts all the entries
+   */
+  public List<StoreEntry> getEntries() throws IOException {
+    List<StoreEntry> entries = new ArrayList<StoreEntry>(index.size());
+    for (String key: index.keySet()) entries.add(getEntry(key));
+    return entries;
+  }
+
+  /* ***********************************************************
+   *  Segment creation
+   *************************************************************/
+
+  /**
+   * Builds the content of a segment holding the given entries. The metadata
+   * of each entry is stored along with it, so that the entries extracted
+   * from the segment are identical to the original ones.
+   */
+  public static byte[] build(List<StoreEntry> entries) throws IOException {
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(header);
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    byte buf[] = new byte[4096];
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(entries.size());
+
+    try {
+      for (StoreEntry entry: entries) {
+        byte content[] = readFully(entry.getInputStream());
+        StoreEntryMetadata meta = entry.getMetadata();
+
+        int offset = contents.size();
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buf);
+          contents.write(buf, 0, n);
+        }
+
+        out.writeUTF(entry.getKey());
+        out.writeLong(meta.getModifiedTimestamp().getTime());
+        out.writeUTF(meta.getContentMD5() == null ? "" : meta.getContentMD5());
+        out.writeUTF(meta.getContentType() == null ? "" : meta.getContentType());
+        out.writeLong(content.length);
+        out.writeInt(offset);
+        out.writeInt(contents.size() - offset);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    out.flush();
+    contents.writeTo(header);
+    return header.toByteArray();
+  }
+
+  static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.store.Store;
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreException;
+import cloudypeer.store.simple.SimpleStoreEntry;
+import cloudypeer.store.simple.SimpleStoreEntryMetadata;
+import cloudyrss.cloud.BatchStorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * Rolls the entries of a feed into daily {@link FeedSegment} objects and
+ * bootstraps stores from them.
+ * <p>
+ * Segments of feed <i>news</i> are stored under <tt>news.segments/</tt>,
+ * outside the prefix of the entries, along with a manifest listing them.
+ * Only days which are over are rolled; entries uploaded late for a day
+ * already rolled cause a new segment to replace the old one. A joining peer
+ * reads the manifest and one object per day instead of one per entry; the
+ * entries still missing are then fetched by the usual anti-entropy.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedSegmentManager {
+
+  static Logger logger = Logger.getLogger(FeedSegmentManager.class);
+
+  public static String SEGMENTS_SUFFIX = ".segments/";
+  public static String MANIFEST = "manifest";
+  public static long DEFAULT_RETENTION = 30L * 24 * 3600 * 1000;
+
+  /* Days are rolled only once entries uploaded late are unlikely */
+  public static long ROLL_DELAY = 24L * 3600 * 1000;
+
+  private static final String CONTENT_TYPE = "application/x-cloudyrss-segment";
+  private static final long DAY = 24L * 3600 * 1000;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private StorageCloud cloud;
+  private String feedName;
+  private long retention;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new manager
+   *
+   * @param cloud The storage cloud holding the feed
+   * @param feedName Name of the feed
+   * @param retention Age in milliseconds past which days are not rolled and
+   * their segments are removed
+   */
+  public FeedSegmentManager(StorageCloud cloud, String feedName, long retention) {
+    this.cloud = cloud;
+    this.feedName = feedName;
+    this.retention = retention;
+  }
+
+  public String getFeedName() {
+    return feedName;
+  }
+
+  /* ***********************************************************
+   *  Manifest
+   *************************************************************/
+
+  private String segmentKey(String name) {
+    return feedName + SEGMENTS_SUFFIX + name;
+  }
+
+  /**
+   * Reads the manifest of the feed
+   *
+   * @return Segment names by day, empty if there is no manifest
+   */
+  public TreeMap<String, String> readManifest() throws IOException, CloudException {
+    TreeMap<String, String> segments = new TreeMap<String, String>();
+    CloudObject obj = cloud.get(segmentKey(MANIFEST));
+    if (obj == null) return segments;
+
+    Properties manifest = new Properties();
+    manifest.load(new ByteArrayInputStream(FeedSegment.readFully(obj.getInputStream())));
+    for (String day: manifest.stringPropertyNames()) {
+      segments.put(day, manifest.getProperty(day));
+    }
+    return segments;
+  }
+
+  private void writeManifest(TreeMap<String, String> segments) throws IOException, CloudException {
+    Properties manifest = new Properties();
+    manifest.putAll(segments);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifest.store(out, "Segments of feed " + feedName + ": day=segment");
+    cloud.put(segmentKey(MANIFEST), "text/plain", new ByteArrayInputStream(out.toByteArray()), null);
+  }
+
+  /* ***********************************************************
+   *  Rolling
+   *************************************************************/
+
+  /**
+   * Rolls the days over which are not rolled yet or have new entries, and
+   * removes the segments of the days past the retention
+   *
+   * @return The number of segments written
+   */
+  public synchronized int roll() throws IOException, CloudException {
+    long now = System.currentTimeMillis();
+    TreeMap<String, String> segments = readManifest();
+    List<String> obsolete = new ArrayList<String>();
+    boolean changed = false;
+    int written = 0;
+
+    /* Drop expired segments */
+    String horizon = RSSEntry.getPartition(now - retention);
+    while (!segments.isEmpty() && segments.firstKey().compareTo(horizon) < 0) {
+      String day = segments.firstKey();
+      obsolete.add(segments.remove(day));
+      changed = true;
+      logger.debug(String.format("Removed expired segment %s of feed %s", day, feedName));
+    }
+
+    String last = RSSEntry.getPartition(now - ROLL_DELAY - DAY);
+    for (long t = now - retention; ; t += DAY) {
+      String day = RSSEntry.getPartition(t);
+      if (day.compareTo(last) > 0) break;
+
+      String prefix = feedName + "/" + day;
+      String keys[] = cloud.list(null, prefix);
+      if (keys.length == 0) continue;
+
+      /* Segment names carry a fingerprint of their keys: a changed day is rolled again */
+      Arrays.sort(keys);
+      String name = day + "-" + keys.length + "-" + Integer.toHexString(Arrays.hashCode(keys));
+      String old = segments.get(day);
+      if (name.equals(old)) continue;
+
+      List<StoreEntry> entries = new ArrayList<StoreEntry>(keys.length);
+      Map<String, CloudObject> objects = null;
+      if (cloud instanceof BatchStorageCloud) objects = ((BatchStorageCloud) cloud).getAll(keys);
+      for (String key: keys) {
+        CloudObject obj = (objects != null) ? objects.get(key) : cloud.get(key);
+        if (obj == null) continue;
+        CloudMetadata meta = obj.getMetadata();
+        SimpleStoreEntryMetadata storeMeta =
+          new SimpleStoreEntryMetadata(meta.getLastModified(), meta.getContentLength(), meta.getContentMD5(),
+                                       meta.getContentType(), new HashMap<String, String>(meta.getUserMetadata()));
+        entries.add(new SimpleStoreEntry(key.substring(feedName.length() + 1), obj.getInputStream(), storeMeta));
+      }
+
+      byte data[] = FeedSegment.build(entries);
+      cloud.put(segmentKey(name), CONTENT_TYPE, new ByteArrayInputStream(data), null);
+      segments.put(day, name);
+      if (old != null) obsolete.add(old);
+      changed = true;
+      written++;
+      logger.info(String.format("Rolled %s entries of feed %s into segment %s (%s bytes)", entries.size(),
+                                feedName, name, data.length));
+    }
+
+    if (changed) writeManifest(segments);
+
+    /* Replaced segments are removed only once the manifest no longer lists them */
+    for (String name: obsolete) cloud.remove(segmentKey(name));
+    return written;
+  }
+
+  /* ***********************************************************
+   *  Bootstrap
+   *************************************************************/
+
+  /**
+   * Loads into the store the entries of all the segments which are not
+   * already there
+   *
+   * @return The number of entries loaded
+   */
+  public int bootstrap(Store store) throws IOException, CloudException, StoreException {
+    long horizon = System.currentTimeMillis() - retention;
+    int loaded = 0;
+    TreeMap<String, String> segments = readManifest();
+
+    for (Map.Entry<String, String> e: segments.entrySet()) {
+      CloudObject obj = cloud.get(segmentKey(e.getValue()));
+      if (obj == null) {
+        logger.warn("Missing segment " + e.getValue() + " of feed " + feedName);
+        continue;
+      }
+
+      FeedSegment segment = new FeedSegment(FeedSegment.readFully(obj.getInputStream()));
+      List<StoreEntry> entries = new ArrayList<StoreEntry>(segment.size());
+      for (String key: segment.getKeys()) {
+        long timestamp = RSSEntry.parseKeyTimestamp(key);
+        if (timestamp >= 0 && timestamp < horizon) continue;
+        if (store.containsStoreEntry(key)) continue;
+        entries.add(segment.getEntry(key));
+      }
+
+      if (entries.size() > 0) {
+        store.updateStoreEntries(entries.toArray(new StoreEntry[entries.size()]));
+        loaded += entries.size();
+      }
+    }
+
+    logger.info(String.format("Bootstrapped %s entries of feed %s from %s segments", loaded, feedName,
+                              segments.size()));
+    return loaded;
+  }
+}
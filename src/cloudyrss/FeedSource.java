@@ -0,0 +1,147 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cloudypeer.cloud.StorageCloud;
+
+/**
+ * Upstream feed monitored by the bridge.
+ * <p>
+ * Holds the state needed to poll the feed: the window of its most recent
+ * items, the date its undated items were first seen, its parser and the
+ * validators used for conditional requests.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedSource {
+
+  public static int CONNECT_TIMEOUT = 30000;
+  public static int READ_TIMEOUT = 60000;
+  public static int DEFAULT_UNDATED_ITEMS = 1000;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private URL url;
+  private String feedName;
+  private StorageCloud storageCloud;
+  private ChannelItemWindow window;
+  private LinkedHashMap<SeenItemIndex.ItemId, Long> undatedItems;
+  private StreamingFeedParser parser = new StreamingFeedParser();
+
+  private String lastModified;
+  private String etag;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public FeedSource(URL url, String feedName, StorageCloud storageCloud, int windowSize) {
+    this.url = url;
+    this.feedName = feedName;
+    this.storageCloud = storageCloud;
+    this.window = new ChannelItemWindow(windowSize);
+
+    /* Access ordered: items still in the document are seen at every poll and never evicted */
+    this.undatedItems = new LinkedHashMap<SeenItemIndex.ItemId, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<SeenItemIndex.ItemId, Long> eldest) {
+          return size() > DEFAULT_UNDATED_ITEMS;
+        }
+      };
+  }
+
+  /* ***********************************************************
+   *  Getters
+   *************************************************************/
+
+  public URL getURL() {
+    return url;
+  }
+
+  public String getFeedName() {
+    return feedName;
+  }
+
+  public StorageCloud getStorageCloud() {
+    return storageCloud;
+  }
+
+  public ChannelItemWindow getWindow() {
+    return window;
+  }
+
+  public StreamingFeedParser getParser() {
+    return parser;
+  }
+
+  /**
+   * Returns the date an undated item was first seen, which stands for its
+   * publication date.
+   *
+   * @param id Identity of the item
+   * @param now Date recorded if the item was never seen
+   */
+  public synchronized long firstSeen(SeenItemIndex.ItemId id, long now) {
+    Long date = undatedItems.get(id);
+    if (date != null) return date;
+
+    undatedItems.put(id, now);
+    return now;
+  }
+
+  /* ***********************************************************
+   *  Fetching
+   *************************************************************/
+
+  /**
+   * Opens the feed document, using the validators of the previous response
+   * when the feed is served over HTTP.
+   *
+   * @return The document stream or null if the feed has not been modified
+   */
+  public InputStream open(String userAgent) throws IOException {
+    URLConnection conn = url.openConnection();
+    conn.setConnectTimeout(CONNECT_TIMEOUT);
+    conn.setReadTimeout(READ_TIMEOUT);
+
+    if (conn instanceof HttpURLConnection) {
+      HttpURLConnection http = (HttpURLConnection) conn;
+      if (userAgent != null) http.setRequestProperty("User-Agent", userAgent);
+      if (lastModified != null) http.setRequestProperty("If-Modified-Since", lastModified);
+      if (etag != null) http.setRequestProperty("If-None-Match", etag);
+
+      int status = http.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        http.disconnect();
+        return null;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        http.disconnect();
+        throw new IOException(String.format("Unexpected HTTP status %s fetching %s", status, url));
+      }
+
+      lastModified = http.getHeaderField("Last-Modified");
+      etag = http.getHeaderField("ETag");
+    }
+
+    return new BufferedInputStream(conn.getInputStream());
+  }
+
+  public String toString() {
+    return feedName + ":" + url;
+  }
+}
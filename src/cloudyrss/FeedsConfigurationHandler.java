@@ -0,0 +1,31 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+/**
+ * Interface used by CloudyRSS to notify the feeds started or terminated
+ * when reloading the feeds configuration
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public interface FeedsConfigurationHandler {
+
+  /**
+   * Notifies that a feed has been started
+   *
+   * @param reader CloudyFeedReader instance of the feed
+   */
+  public void feedAdded(CloudyFeedReader reader);
+
+  /**
+   * Notifies that a feed has been terminated
+   *
+   * @param reader CloudyFeedReader instance of the feed
+   */
+  public void feedRemoved(CloudyFeedReader reader);
+
+}
@@ -0,0 +1,147 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches the feeds configuration file, reloading the configuration of
+ * CloudyRSS when it changes.
+ * <p>
+ * The directory of the file is watched, so that files replaced by editors
+ * are noticed too. Editors and CloudyRSS itself write the file in several
+ * steps, so the configuration is reloaded only once the file has been
+ * quiet for a while.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FeedsConfigurationWatcher implements Runnable {
+
+  static Logger logger = Logger.getLogger(FeedsConfigurationWatcher.class);
+
+  public static long DEFAULT_QUIET_PERIOD = 500;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private CloudyRSS cloudyRSS;
+  private Path file;
+  private WatchService watchService;
+  private long quietPeriod;
+  private Thread thread;
+  private volatile boolean terminated = false;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public FeedsConfigurationWatcher(CloudyRSS cloudyRSS, File feedsConfFile) throws IOException {
+    this(cloudyRSS, feedsConfFile, DEFAULT_QUIET_PERIOD);
+  }
+
+  /**
+   * Creates a new watcher
+   *
+   * @param cloudyRSS CloudyRSS instance to reload
+   * @param feedsConfFile Feeds configuration file
+   * @param quietPeriod Milliseconds without changes before reloading
+   */
+  public FeedsConfigurationWatcher(CloudyRSS cloudyRSS, File feedsConfFile, long quietPeriod)
+    throws IOException
+  {
+    this.cloudyRSS = cloudyRSS;
+    this.file = feedsConfFile.getAbsoluteFile().toPath();
+    this.quietPeriod = quietPeriod;
+
+    this.watchService = FileSystems.getDefault().newWatchService();
+    file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                              StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  public void start() {
+    thread = new Thread(this, "feeds-configuration-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    logger.info("Watching feeds configuration " + file);
+  }
+
+  public void terminate() {
+    terminated = true;
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      logger.warn("Error closing the feeds configuration watch service", e);
+    }
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  /**
+   * Checks whether the events of the key concern the feeds configuration
+   * file, resetting the key
+   */
+  private boolean isFileChanged(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event: key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) changed = true;
+      else if (file.getFileName().equals(event.context())) changed = true;
+    }
+    if (!key.reset()) {
+      logger.error("Directory of the feeds configuration not accessible anymore, stop watching");
+      terminated = true;
+    }
+    return changed;
+  }
+
+  /* ***********************************************************
+   *  Runnable implementation
+   *************************************************************/
+
+  public void run() {
+    try {
+      while (!terminated) {
+        if (!isFileChanged(watchService.take())) continue;
+
+        /* Waits for the writes to the file to settle */
+        long deadline = System.currentTimeMillis() + quietPeriod;
+        long wait;
+        while (!terminated && (wait = deadline - System.currentTimeMillis()) > 0) {
+          WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+          if (key != null && isFileChanged(key)) deadline = System.currentTimeMillis() + quietPeriod;
+        }
+        if (terminated) break;
+
+        logger.info("Feeds configuration changed, reloading");
+        try {
+          cloudyRSS.reloadFeedsConfiguration();
+        } catch (RuntimeException e) {
+          logger.error("Error reloading feeds configuration, keeping the running feeds", e);
+        }
+      }
+    } catch (InterruptedException e) {
+      logger.info("Feeds configuration watcher interrupted");
+    } catch (ClosedWatchServiceException e) {
+      /* Terminated */
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloudypeer.PeerNode;
+import cloudypeer.network.NetworkConnection;
+import cloudypeer.network.NetworkException;
+import cloudypeer.network.NetworkMessage;
+import cloudypeer.network.simple.SimpleNetworkConnection;
+import cloudypeer.network.simple.SimpleNetworkHelper;
+import org.apache.log4j.Logger;
+
+/**
+ * Network helper counting the bytes its node sends and receives.
+ * <p>
+ * Connections, both opened and accepted, are wrapped so that messages are
+ * serialized straight through counting streams, as the plain connections
+ * do, without copies. Receiving with a timeout needs the socket of the
+ * connection, which CloudyPeer keeps private; when it cannot be reached
+ * received bytes on connections are not counted. Datagrams are small and
+ * counted by serializing them once more.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class MeteredNetworkHelper extends SimpleNetworkHelper {
+
+  static Logger logger = Logger.getLogger(MeteredNetworkHelper.class);
+
+  private static Field socketField;
+
+  static {
+    try {
+      socketField = SimpleNetworkConnection.class.getDeclaredField("conn");
+      socketField.setAccessible(true);
+    } catch (Exception e) {
+      logger.warn("Cannot reach the socket of network connections, received bytes will not be counted");
+      socketField = null;
+    }
+  }
+
+  /**
+   * Stream counting the bytes passing through it and leaving the socket
+   * open when closed
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private AtomicLong counter;
+
+    public CountingOutputStream(OutputStream out, AtomicLong counter) {
+      super(out);
+      this.counter = counter;
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      counter.incrementAndGet();
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+      out.write(b, off, len);
+      counter.addAndGet(len);
+    }
+
+    public void close() throws IOException {
+      out.flush();
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+    private AtomicLong counter;
+
+    public CountingInputStream(InputStream in, AtomicLong counter) {
+      super(in);
+      this.counter = counter;
+    }
+
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) counter.incrementAndGet();
+      return b;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) counter.addAndGet(n);
+      return n;
+    }
+
+    public void close() throws IOException {}
+  }
+
+  /**
+   * Connection counting the bytes of the messages sent and received
+   */
+  private class MeteredConnection implements NetworkConnection {
+    private NetworkConnection conn;
+    private Socket socket;
+
+    public MeteredConnection(NetworkConnection conn) {
+      this.conn = conn;
+      if (socketField != null && conn instanceof SimpleNetworkConnection) {
+        try {
+          this.socket = (Socket) socketField.get(conn);
+        } catch (IllegalAccessException e) {
+          this.socket = null;
+        }
+      }
+    }
+
+    public void send(Serializable message) throws IOException, NetworkException {
+      ObjectOutputStream out = new ObjectOutputStream(new CountingOutputStream(conn.getOutputStream(), bytesOut));
+      out.writeObject(message);
+      out.close();
+    }
+
+    public Object receive(int timeout) throws IOException, NetworkException, SocketTimeoutException {
+      if (socket == null) return conn.receive(timeout);
+
+      socket.setSoTimeout(timeout);
+      ObjectInputStream in = null;
+      try {
+        in = new ObjectInputStream(new CountingInputStream(socket.getInputStream(), bytesIn));
+        return in.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new NetworkException("Error receiving data", e);
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {}
+        }
+      }
+    }
+
+    public InputStream getInputStream() throws IOException, NetworkException {
+      return new CountingInputStream(conn.getInputStream(), bytesIn) {
+          public void close() throws IOException {
+            in.close();
+          }
+        };
+    }
+
+    public OutputStream getOutputStream() throws IOException, NetworkException {
+      return new CountingOutputStream(conn.getOutputStream(), bytesOut) {
+          public void close() throws IOException {
+            out.close();
+          }
+        };
+    }
+
+    public void close() throws IOException, NetworkException {
+      conn.close();
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private AtomicLong bytesIn = new AtomicLong();
+  private AtomicLong bytesOut = new AtomicLong();
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public MeteredNetworkHelper(InetAddress ip, int port) throws IOException {
+    super(ip, port);
+  }
+
+  /* ***********************************************************
+   *  Getters/Setters
+   *************************************************************/
+
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  private static long sizeOf(Serializable message) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ObjectOutputStream objOut = new ObjectOutputStream(out);
+      objOut.writeObject(message);
+      objOut.close();
+      return out.size();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /* ***********************************************************
+   *  NetworkHelper implementation
+   *************************************************************/
+
+  protected void sendDatagramMessageImpl(PeerNode destination, NetworkMessage message)
+    throws IOException, NetworkException
+  {
+    bytesOut.addAndGet(sizeOf(message));
+    super.sendDatagramMessageImpl(destination, message);
+  }
+
+  protected void dispatchDatagramMessage(NetworkMessage message) {
+    bytesIn.addAndGet(sizeOf(message));
+    super.dispatchDatagramMessage(message);
+  }
+
+  protected NetworkConnection createConnectionImpl(PeerNode destination, int clientID, int timeout)
+    throws IOException, NetworkException, SocketTimeoutException
+  {
+    return new MeteredConnection(super.createConnectionImpl(destination, clientID, timeout));
+  }
+
+  protected boolean dispatchConnection(int clientID, NetworkConnection conn) {
+    return super.dispatchConnection(clientID, new MeteredConnection(conn));
+  }
+}
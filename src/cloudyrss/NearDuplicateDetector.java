@@ -0,0 +1,246 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Detects entries which are near duplicates of recently seen ones.
+ * <p>
+ * Each entry is reduced to a 64 bit SimHash of the words and word pairs of its
+ * normalized title and description, the title having double weight. Two
+ * entries are near duplicates when their fingerprints differ in at most
+ * <i>maxDistance</i> bits. Candidates are found through an LSH index which
+ * splits fingerprints in <i>maxDistance + 1</i> bands: near duplicates always
+ * share at least one band. Only the fingerprints seen within the time window
+ * are kept. Entries left without any word once normalized, e.g. empty or
+ * markup only, have no fingerprint and are never considered duplicates.
+ * <p>
+ * A near duplicate is dropped rather than merged into the entry it repeats:
+ * that entry may already be uploaded, and changing its content would change
+ * its key.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class NearDuplicateDetector {
+
+  public static int DEFAULT_MAX_DISTANCE = 3;
+  public static long DEFAULT_WINDOW = 24L * 3600 * 1000;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Fingerprint of a recent entry
+   */
+  private static class Fingerprint {
+    private final long hash;
+    private final long timestamp;
+
+    public Fingerprint(long hash, long timestamp) {
+      this.hash = hash;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private int maxDistance;
+  private long window;
+  private int bands;
+  private int bandBits;
+
+  private List<HashMap<Long, List<Fingerprint>>> index;
+  private LinkedList<Fingerprint> recent = new LinkedList<Fingerprint>();
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public NearDuplicateDetector() {
+    this(DEFAULT_MAX_DISTANCE, DEFAULT_WINDOW);
+  }
+
+  public NearDuplicateDetector(int maxDistance, long window) throws IllegalArgumentException {
+    if (maxDistance < 0 || maxDistance > 15)
+      throw new IllegalArgumentException("Maximum distance must be in [0, 15]");
+
+    this.maxDistance = maxDistance;
+    this.window = window;
+    this.bands = maxDistance + 1;
+    this.bandBits = 64 / bands;
+
+    this.index = new ArrayList<HashMap<Long, List<Fingerprint>>>(bands);
+    for (int i = 0; i < bands; i++) index.add(new HashMap<Long, List<Fingerprint>>());
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  /**
+   * Checks whether the entry is a near duplicate of an entry seen within the
+   * window. Entries which are not duplicates are remembered.
+   */
+  public synchronized boolean isDuplicate(RSSEntry entry) {
+    long now = System.currentTimeMillis();
+    expire(now);
+
+    String title = normalize(entry.getTitle());
+    String description = normalize(entry.getDescription());
+    if (title.length() == 0 && description.length() == 0) return false;
+    long hash = simHash(title, description);
+
+    for (int b = 0; b < bands; b++) {
+      List<Fingerprint> bucket = index.get(b).get(band(hash, b));
+      if (bucket == null) continue;
+      for (Fingerprint f: bucket) {
+        if (Long.bitCount(f.hash ^ hash) <= maxDistance) return true;
+      }
+    }
+
+    Fingerprint f = new Fingerprint(hash, now);
+    recent.addLast(f);
+    for (int b = 0; b < bands; b++) {
+      Long key = band(hash, b);
+      List<Fingerprint> bucket = index.get(b).get(key);
+      if (bucket == null) {
+        bucket = new ArrayList<Fingerprint>(2);
+        index.get(b).put(key, bucket);
+      }
+      bucket.add(f);
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of fingerprints currently in the window
+   */
+  public synchronized int size() {
+    return recent.size();
+  }
+
+  /* ***********************************************************
+   *  Index management
+   *************************************************************/
+
+  private long band(long hash, int b) {
+    int shift = b * bandBits;
+    int bits = (b == bands - 1) ? 64 - shift : bandBits;
+    long mask = (bits == 64) ? -1L : (1L << bits) - 1;
+    return (hash >>> shift) & mask;
+  }
+
+  private void expire(long now) {
+    while (!recent.isEmpty() && recent.getFirst().timestamp < now - window) {
+      Fingerprint f = recent.removeFirst();
+      for (int b = 0; b < bands; b++) {
+        Long key = band(f.hash, b);
+        List<Fingerprint> bucket = index.get(b).get(key);
+        if (bucket == null) continue;
+        bucket.remove(f);
+        if (bucket.isEmpty()) index.get(b).remove(key);
+      }
+    }
+  }
+
+  /* ***********************************************************
+   *  Fingerprinting
+   *************************************************************/
+
+  /**
+   * Computes the SimHash of the normalized title and description
+   */
+  static long fingerprint(String title, String description) {
+    return simHash(normalize(title), normalize(description));
+  }
+
+  private static long simHash(String title, String description) {
+    int weights[] = new int[64];
+    addFeatures(weights, title, 2);
+    addFeatures(weights, description, 1);
+
+    long hash = 0;
+    for (int i = 0; i < 64; i++) {
+      if (weights[i] > 0) hash |= 1L << i;
+    }
+    return hash;
+  }
+
+  private static void addFeatures(int weights[], String text, int weight) {
+    long previous = 0;
+    int start = -1;
+
+    for (int i = 0; i <= text.length(); i++) {
+      boolean boundary = (i == text.length() || text.charAt(i) == ' ');
+      if (!boundary) {
+        if (start < 0) start = i;
+        continue;
+      }
+      if (start < 0) continue;
+
+      long word = FNV_OFFSET;
+      for (int j = start; j < i; j++) {
+        word = (word ^ text.charAt(j)) * FNV_PRIME;
+      }
+      addFeature(weights, word, weight);
+      if (previous != 0) addFeature(weights, (previous * 31 + word) * FNV_PRIME, weight);
+      previous = word;
+      start = -1;
+    }
+  }
+
+  private static void addFeature(int weights[], long feature, int weight) {
+    /* Final mix to spread the bits of the feature hash */
+    feature ^= feature >>> 33;
+    feature *= 0xff51afd7ed558ccdL;
+    feature ^= feature >>> 33;
+
+    for (int i = 0; i < 64; i++) {
+      if ((feature & (1L << i)) != 0) weights[i] += weight;
+      else weights[i] -= weight;
+    }
+  }
+
+  /**
+   * Lower cases the text, strips markup and collapses everything but letters
+   * and digits to single spaces
+   */
+  static String normalize(String text) {
+    if (text == null) return "";
+
+    StringBuilder sb = new StringBuilder(text.length());
+    boolean inTag = false;
+    boolean space = true;
+
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '<') {
+        inTag = true;
+      } else if (c == '>' && inTag) {
+        inTag = false;
+      } else if (!inTag) {
+        if (Character.isLetterOrDigit(c)) {
+          sb.append(Character.toLowerCase(c));
+          space = false;
+        } else if (!space) {
+          sb.append(' ');
+          space = true;
+        }
+        continue;
+      }
+      if (!space) {
+        sb.append(' ');
+        space = true;
+      }
+    }
+    return sb.toString().trim();
+  }
+}
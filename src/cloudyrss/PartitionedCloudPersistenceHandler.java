@@ -0,0 +1,256 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.persistence.BasicCloudPersistenceHandler;
+import cloudypeer.store.simple.StoreEntryPersistenceHandler;
+import org.apache.log4j.Logger;
+
+/**
+ * Cloud persistence handler listing entries by day partition.
+ * <p>
+ * Entry keys start with their publication day, so the entries of a day share
+ * a key prefix which the cloud can list through its key index. Instead of
+ * listing the whole feed, only the partitions within the retention horizon
+ * are listed; entries older than the horizon are considered already
+ * synchronized and are never written back, as they are going to be removed
+ * by the {@link CloudGarbageCollector}. Reads and writes are delegated to a
+ * {@link BasicCloudPersistenceHandler}.
+ * <p>
+ * The cache of the keys on the cloud is refreshed incrementally: only the
+ * entries uploaded since the previous refresh are listed, from the
+ * partitions they may have been published in. The whole horizon is listed
+ * again every FULL_REFRESH_PERIOD, so the cost of a refresh follows the
+ * recent uploads and not the retention.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class PartitionedCloudPersistenceHandler implements StoreEntryPersistenceHandler {
+
+  static Logger logger = Logger.getLogger(PartitionedCloudPersistenceHandler.class);
+
+  public static int DEFAULT_KEY_REFRESH_THRESHOLD = 10000;
+
+  /* Lag between publication and upload covered by listings since a date */
+  public static long PUBLICATION_LAG = 24L * 3600 * 1000;
+
+  /* Whether partitions of keys in the legacy format are listed as well */
+  public static boolean LIST_LEGACY_PARTITIONS = false;
+
+  /* Period of the refreshes of the keys cache listing the whole horizon */
+  public static long FULL_REFRESH_PERIOD = 3600L * 1000;
+
+  /* Overlap of incremental refreshes, covering clock skew with the cloud */
+  public static long REFRESH_OVERLAP = 5L * 60 * 1000;
+
+  private static final long DAY = 24L * 3600 * 1000;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private StorageCloud storageCloud;
+  private String baseKey;
+  private long retention;
+  private BasicCloudPersistenceHandler delegate;
+
+  private Set<String> keysCache = new HashSet<String>();
+  private long keysCacheLastRefresh = 0;
+  private long keysCacheLastFullRefresh = 0;
+  private AtomicLong fetches = new AtomicLong();
+  private int keysRefreshThreshold = DEFAULT_KEY_REFRESH_THRESHOLD;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new handler
+   *
+   * @param storageCloud The storage cloud holding the entries
+   * @param baseKey Prefix of the entry keys
+   * @param retention Age in milliseconds past which entries are ignored
+   */
+  public PartitionedCloudPersistenceHandler(StorageCloud storageCloud, String baseKey, long retention) {
+    this.storageCloud = storageCloud;
+    this.baseKey = baseKey;
+    this.retention = retention;
+    this.delegate = new BasicCloudPersistenceHandler(storageCloud, baseKey);
+  }
+
+  /* ***********************************************************
+   *  Getters/Setters
+   *************************************************************/
+
+  public int getKeysRefreshThreshold() {
+    return keysRefreshThreshold;
+  }
+
+  public void setKeysRefreshThreshold(int keysRefreshThreshold) {
+    this.keysRefreshThreshold = keysRefreshThreshold;
+  }
+
+  public long getRetention() {
+    return retention;
+  }
+
+  /**
+   * Returns the number of reads and listings sent to the cloud so far
+   */
+  public long getFetches() {
+    return fetches.get();
+  }
+
+  /* ***********************************************************
+   *  Partitions
+   *************************************************************/
+
+  /**
+   * Checks whether the key belongs to an entry older than the retention
+   * horizon
+   */
+  private boolean isExpired(String key) {
+    long timestamp = RSSEntry.parseKeyTimestamp(key);
+    return timestamp >= 0 && timestamp < System.currentTimeMillis() - retention;
+  }
+
+  /**
+   * Lists the entries of the partitions between the given instant and now
+   *
+   * @param from Start of the first partition
+   * @param since Only entries uploaded after this date are listed. May be null
+   */
+  private List<String> listPartitions(long from, Date since) throws IOException, CloudException {
+    List<String> keys = new ArrayList<String>();
+    long now = System.currentTimeMillis();
+    Set<String> prefixes = new HashSet<String>();
+
+    /* One more day on each side covers clock skew and local time zones */
+    for (long t = from - DAY; t <= now + DAY; t += DAY) {
+      String partition = RSSEntry.getPartition(t);
+      if (prefixes.add(partition)) addKeys(keys, partition, since);
+
+      if (LIST_LEGACY_PARTITIONS) {
+        partition = RSSEntry.getLegacyPartition(t);
+        if (prefixes.add(partition)) addKeys(keys, partition, since);
+      }
+    }
+    return keys;
+  }
+
+  private void addKeys(List<String> keys, String partition, Date since) throws IOException, CloudException {
+    String prefix = baseKey + partition;
+    fetches.incrementAndGet();
+    for (String key: storageCloud.list(since, prefix)) {
+      if (key != null && key.startsWith(baseKey)) keys.add(key.substring(baseKey.length()));
+    }
+  }
+
+  private synchronized void checkKeysCache() {
+    long now = System.currentTimeMillis();
+    if (now - keysCacheLastRefresh <= keysRefreshThreshold) return;
+
+    try {
+      if (now - keysCacheLastFullRefresh > FULL_REFRESH_PERIOD) {
+        List<String> keys = listPartitions(now - retention, null);
+        logger.trace(String.format("There are %d recent keys on the cloud", keys.size()));
+        keysCache.clear();
+        keysCache.addAll(keys);
+        keysCacheLastFullRefresh = now;
+      } else {
+        long since = keysCacheLastRefresh - REFRESH_OVERLAP;
+        List<String> keys = listPartitions(Math.max(now - retention, since - PUBLICATION_LAG), new Date(since));
+        logger.trace(String.format("There are %d keys uploaded to the cloud since the last refresh", keys.size()));
+        keysCache.addAll(keys);
+      }
+      keysCacheLastRefresh = now;
+    } catch (IOException e) {
+      logger.warn("Input/Output error updating cloud key cache", e);
+    } catch (CloudException e) {
+      logger.warn("Error updating cloud key cache", e);
+    }
+  }
+
+  /* ***********************************************************
+   *  StoreEntryPersistenceHandler implementation
+   *************************************************************/
+
+  public boolean contains(String key) throws RuntimeException {
+    if (isExpired(key)) return true;
+    checkKeysCache();
+    synchronized (this) {
+      return keysCache.contains(key);
+    }
+  }
+
+  public void write(String key, InputStream data, String contentType, Map<String, String> metadata)
+    throws RuntimeException
+  {
+    if (isExpired(key)) {
+      logger.debug("Not writing back expired entry " + key);
+      return;
+    }
+    delegate.write(key, data, contentType, metadata);
+    synchronized (this) {
+      keysCache.add(key);
+    }
+  }
+
+  public void write(StoreEntry entry) throws RuntimeException {
+    if (isExpired(entry.getKey())) {
+      logger.debug("Not writing back expired entry " + entry.getKey());
+      return;
+    }
+    delegate.write(entry);
+    synchronized (this) {
+      keysCache.add(entry.getKey());
+    }
+  }
+
+  public void writeMetadata(String key, StoreEntryMetadata metadata) throws RuntimeException {
+    if (isExpired(key)) return;
+    delegate.writeMetadata(key, metadata);
+  }
+
+  public StoreEntry read(String key) throws RuntimeException {
+    fetches.incrementAndGet();
+    return delegate.read(key);
+  }
+
+  public StoreEntryMetadata readMetadata(String key) throws RuntimeException {
+    fetches.incrementAndGet();
+    return delegate.readMetadata(key);
+  }
+
+  public String[] listEntries(Date date) throws RuntimeException {
+    long now = System.currentTimeMillis();
+    long from = now - retention;
+    if (date != null) from = Math.max(from, date.getTime() - PUBLICATION_LAG);
+
+    try {
+      List<String> keys = listPartitions(from, date);
+      return keys.toArray(new String[keys.size()]);
+    } catch (IOException e) {
+      throw new RuntimeException("Input/Output error listing cloud entries", e);
+    } catch (CloudException e) {
+      throw new RuntimeException("Error listing cloud entries", e);
+    }
+  }
+}
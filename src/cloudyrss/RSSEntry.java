@@ -5,54 +5,310 @@
  */
 package cloudyrss;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
  * Representation of an RSS entry.
+ * <p>
+ * Entries are stored under a key made of a sortable UTC time prefix and the
+ * MD5 digest of their content (<tt>yyyyMMdd-HHmmss/digest</tt>). Keys
+ * produced by earlier versions (<tt>yyyy-MM-dd_HH-mm-ss/titleHash</tt>) are
+ * still recognized by {@link #parseKeyTimestamp(String)}. Entries without
+ * publication date are stored under the {@link #UNDATED_PREFIX} prefix,
+ * which sorts before any date and has no timestamp.
+ * <p>
+ * Readers keep many entries in memory, so fields are held in a compact
+ * form: text as UTF-8 bytes, the link as the bytes of its external form,
+ * resolved to a URL only when asked for, and the publication date as
+ * milliseconds. Titles and descriptions are interned in a shared pool, as
+ * the same ones recur across the entries of a feed and across readers.
+ * The serialized form is still the one of the String, URL and Date fields.
  *
  * @author Andrea Zito <zito.andrea@gmail.com>
  * @version 1.0
  */
 public class RSSEntry implements Serializable {
-  private static  DateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
 
-  private String title;
-  private String description;
-  private URL link;
-  private Date publicationDate;
+  /* Keeps the serialized form compatible with entries already in the cloud */
+  private static final long serialVersionUID = -2189614691111259501L;
+
+  /**
+   * Time prefix of the keys of entries without publication date
+   */
+  public static final String UNDATED_PREFIX = "00000000-000000";
+
+  private static final String LEGACY_KEY_PATTERN = "yyyy-MM-dd_HH-mm-ss";
+  private static final String LEGACY_UNDATED_PREFIX = "0000-00-00_00-00-00";
+  private static final char HEX[] = "0123456789abcdef".toCharArray();
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  private static final ObjectStreamField serialPersistentFields[] = {
+    new ObjectStreamField("title", String.class),
+    new ObjectStreamField("description", String.class),
+    new ObjectStreamField("link", URL.class),
+    new ObjectStreamField("publicationDate", Date.class)
+  };
+
+  private static final BytePool pool = new BytePool();
+
+  private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+      protected MessageDigest initialValue() {
+        try {
+          return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+          throw new CloudyRSSException("MD5 digest not available", e);
+        }
+      }
+    };
+
+  private static final ThreadLocal<DateFormat> legacyFormats = new ThreadLocal<DateFormat>() {
+      protected DateFormat initialValue() {
+        return new SimpleDateFormat(LEGACY_KEY_PATTERN);
+      }
+    };
+
+  /* Not serialized as such, see serialPersistentFields */
+  private byte title[];
+  private byte description[];
+  private byte link[];
+  private long publicationTime;
 
   public RSSEntry(String title, String description, URL link, Date publicationDate) {
-    this.title = title;
-    this.description = description;
-    this.link = link;
-    this.publicationDate = publicationDate;
+    setFields(title, description, link, publicationDate);
+  }
+
+  private void setFields(String title, String description, URL link, Date publicationDate) {
+    this.title = pool.intern(encode(title));
+    this.description = pool.intern(encode(description));
+    this.link = (link != null) ? encode(link.toString()) : null;
+    this.publicationTime = (publicationDate != null) ? publicationDate.getTime() : NO_DATE;
   }
 
+  /**
+   * Returns the key of this entry: a UTC time prefix followed by the 128 bit
+   * digest of the title, description and link
+   */
   public String getKey() {
-    return String.format("%s/%s", df.format(publicationDate), title.hashCode());
+    char key[] = new char[15 + 1 + 32];
+    if (publicationTime == NO_DATE) UNDATED_PREFIX.getChars(0, 15, key, 0);
+    else formatTimestamp(publicationTime, key);
+    key[15] = '/';
+
+    byte digest[] = contentDigest();
+    for (int i = 0; i < digest.length; i++) {
+      key[16 + 2 * i] = HEX[(digest[i] >> 4) & 0xf];
+      key[17 + 2 * i] = HEX[digest[i] & 0xf];
+    }
+    return new String(key);
+  }
+
+  /**
+   * Returns the key this entry would have been stored under by previous
+   * versions
+   */
+  public String getLegacyKey() {
+    String prefix = (publicationTime == NO_DATE) ? LEGACY_UNDATED_PREFIX
+      : legacyFormats.get().format(publicationDate());
+    return prefix + "/" + getTitle().hashCode();
   }
 
   public String getTitle() {
-    return title;
+    return decode(title);
   }
 
   public String getDescription() {
-    return description;
+    return decode(description);
   }
 
+  /**
+   * Returns the link of this entry, resolved anew at each call
+   */
   public URL getLink() {
-    return link;
+    if (link == null) return null;
+    try {
+      return new URL(decode(link));
+    } catch (MalformedURLException e) {
+      throw new CloudyRSSException("Invalid link " + decode(link), e);
+    }
   }
 
   public Date publicationDate() {
-    return publicationDate;
+    return (publicationTime != NO_DATE) ? new Date(publicationTime) : null;
+  }
+
+  /**
+   * Returns the publication date in milliseconds, without allocating a Date
+   */
+  public long getPublicationTime() {
+    return publicationTime;
   }
 
   public String toString() {
     return getKey();
   }
+
+  /* ***********************************************************
+   *  Serialization
+   *************************************************************/
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("title", getTitle());
+    fields.put("description", getDescription());
+    fields.put("link", getLink());
+    fields.put("publicationDate", publicationDate());
+    out.writeFields();
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = in.readFields();
+    setFields((String) fields.get("title", null), (String) fields.get("description", null),
+              (URL) fields.get("link", null), (Date) fields.get("publicationDate", null));
+  }
+
+  private static byte[] encode(String s) {
+    return (s != null) ? s.getBytes(UTF8) : null;
+  }
+
+  private static String decode(byte b[]) {
+    return (b != null) ? new String(b, UTF8) : null;
+  }
+
+  /* ***********************************************************
+   *  Key management
+   *************************************************************/
+
+  private byte[] contentDigest() {
+    MessageDigest md = digests.get();
+    md.reset();
+    if (title != null) md.update(title);
+    md.update((byte) 0);
+    if (description != null) md.update(description);
+    md.update((byte) 0);
+    if (link != null) md.update(link);
+    return md.digest();
+  }
+
+  /**
+   * Writes the UTC time yyyyMMdd-HHmmss of the given instant in the first 15
+   * characters of the buffer
+   */
+  private static void formatTimestamp(long millis, char buf[]) {
+    long days = millis / 86400000L;
+    long secs = (millis % 86400000L) / 1000;
+    if (millis % 86400000L < 0) {
+      days--;
+      secs = (millis % 86400000L + 86400000L) / 1000;
+    }
+
+    /* Civil date from days since epoch */
+    days += 719468;
+    long era = (days >= 0 ? days : days - 146096) / 146097;
+    long doe = days - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+    writeDigits(buf, 0, year, 4);
+    writeDigits(buf, 4, month, 2);
+    writeDigits(buf, 6, day, 2);
+    buf[8] = '-';
+    writeDigits(buf, 9, (int) (secs / 3600), 2);
+    writeDigits(buf, 11, (int) (secs / 60 % 60), 2);
+    writeDigits(buf, 13, (int) (secs % 60), 2);
+  }
+
+  private static void writeDigits(char buf[], int offset, int value, int width) {
+    for (int i = offset + width - 1; i >= offset; i--) {
+      buf[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  /**
+   * Returns the key prefix shared by the entries published in the same UTC
+   * day as the given instant (<tt>yyyyMMdd</tt>)
+   */
+  public static String getPartition(long millis) {
+    char buf[] = new char[15];
+    formatTimestamp(millis, buf);
+    return new String(buf, 0, 8);
+  }
+
+  /**
+   * Returns the prefix shared by the legacy keys of the entries published in
+   * the same local day as the given instant (<tt>yyyy-MM-dd</tt>)
+   */
+  public static String getLegacyPartition(long millis) {
+    return legacyFormats.get().format(new Date(millis)).substring(0, 10);
+  }
+
+  /**
+   * Checks whether the given key uses the legacy format
+   */
+  public static boolean isLegacyKey(String key) {
+    return key.length() > 19 && key.charAt(10) == '_' && key.charAt(19) == '/';
+  }
+
+  /**
+   * Extracts the publication time encoded in a key of either format. Any
+   * prefix preceding the last two key components is ignored.
+   *
+   * @return The publication time in milliseconds or -1 if the key is not
+   * recognized or belongs to an undated entry
+   */
+  public static long parseKeyTimestamp(String key) {
+    int slash = key.lastIndexOf('/');
+    if (slash < 0) return -1;
+    int start = key.lastIndexOf('/', slash - 1) + 1;
+    String prefix = key.substring(start, slash);
+    if (prefix.equals(UNDATED_PREFIX) || prefix.equals(LEGACY_UNDATED_PREFIX)) return -1;
+
+    if (prefix.length() == 19 && prefix.charAt(10) == '_') {
+      try {
+        return legacyFormats.get().parse(prefix).getTime();
+      } catch (ParseException e) {
+        return -1;
+      }
+    }
+
+    if (prefix.length() != 15 || prefix.charAt(8) != '-') return -1;
+    try {
+      int year = Integer.parseInt(prefix.substring(0, 4));
+      int month = Integer.parseInt(prefix.substring(4, 6));
+      int day = Integer.parseInt(prefix.substring(6, 8));
+      int hour = Integer.parseInt(prefix.substring(9, 11));
+      int minute = Integer.parseInt(prefix.substring(11, 13));
+      int second = Integer.parseInt(prefix.substring(13, 15));
+
+      /* Days since epoch from civil date */
+      int y = (month <= 2) ? year - 1 : year;
+      long era = (y >= 0 ? y : y - 399) / 400;
+      long yoe = y - era * 400;
+      long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+      long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+      long days = era * 146097 + doe - 719468;
+
+      return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
 }
@@ -7,36 +7,35 @@ package cloudyrss;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import cloudypeer.cloud.CloudException;
 import cloudypeer.cloud.CloudURI;
 import cloudypeer.cloud.StorageCloud;
 import cloudyrss.RSSEntry;
-import de.nava.informa.core.ChannelIF;
-import de.nava.informa.core.ItemIF;
-import de.nava.informa.core.ParseException;
-import de.nava.informa.impl.basic.ChannelBuilder;
-import de.nava.informa.parsers.FeedParser;
-import de.nava.informa.utils.poller.Poller;
-import de.nava.informa.utils.poller.PollerApproverIF;
-import de.nava.informa.utils.poller.PollerObserverIF;
+import cloudyrss.cloud.AsyncStorageCloud;
 import org.apache.log4j.Logger;
-import java.util.Date;
-import de.nava.informa.utils.ItemComparator;
-import java.util.Arrays;
 
 
 /**
@@ -49,78 +48,182 @@ public class RSSFeedBridge {
 
   static Logger logger = Logger.getLogger(RSSFeedBridge.class);
 
+  public static String USER_AGENT = "CloudyRSS bridge";
+  public static int DEFAULT_FETCH_THREADS = 4;
+  public static long DEFAULT_RETRY_DELAY = 30000;
+
+  /* Supported key styles */
+  public static final String KEY_STYLE_DIGEST = "digest";
+  public static final String KEY_STYLE_LEGACY = "legacy";
+  public static final String KEY_STYLE_MIGRATION = "migration";
+
+  /**
+   * Entry waiting to be uploaded along with the identity of its source item
+   */
+  private static class PendingEntry {
+    private RSSEntry entry;
+    private SeenItemIndex.ItemId id;
+
+    public PendingEntry(RSSEntry entry, SeenItemIndex.ItemId id) {
+      this.entry = entry;
+      this.id = id;
+    }
+  }
+
   /* ***********************************************************
    *  Instance variables
    *************************************************************/
-  private HashMap<ChannelIF, StorageCloud> feedCloudMap = new HashMap<ChannelIF, StorageCloud>();
-  private HashMap<ChannelIF, String> feedNameMap = new HashMap<ChannelIF, String>();
-  private HashMap<ChannelIF, List<RSSEntry>> entryCache = new HashMap<ChannelIF, List<RSSEntry>>();
-  private HashMap<ChannelIF, Date> feedThresholdMap = new HashMap<ChannelIF, Date>();
-  private Poller poller = new Poller();
+  private List<FeedSource> sources = new ArrayList<FeedSource>();
+  private ChannelWorkQueue<FeedSource, PendingEntry> entryQueue;
+  private SeenItemIndex seenIndex;
+  private HashMap<String, NearDuplicateDetector> duplicateDetectors = new HashMap<String, NearDuplicateDetector>();
+  private ScheduledExecutorService fetcher;
+  private long period;
+  private long retryDelay;
+  private String keyStyle;
+  private BridgeShardManager shardManager;
+  private ScheduledExecutorService heartbeats;
+  private long heartbeatPeriod;
+  private List<CloudGarbageCollector> collectors = new ArrayList<CloudGarbageCollector>();
+  private long gcPeriod;
+  private List<FeedSegmentManager> segmentManagers = new ArrayList<FeedSegmentManager>();
+  private long segmentPeriod;
 
   /* ***********************************************************
-   *  Observer class implementation
+   *  Source polling
    *************************************************************/
-  private PollerObserverIF observer = new PollerObserverIF() {
-      public void itemFound(ItemIF item, ChannelIF channel) {
-        logger.trace("Update for feed " + channel);
-        channel.addItem(item);
-        RSSEntry e = new RSSEntry(item.getTitle(), item.getDescription(), item.getLink(), item.getDate());
-        synchronized (entryCache) {
-          List<RSSEntry> cache = entryCache.get(channel);
-          if (cache == null) {
-            cache = new ArrayList<RSSEntry>();
-            entryCache.put(channel, cache);
-          }
 
-          cache.add(e);
-          entryCache.notify();
-          channel.setLastUpdated(new Date());
-        }
-      }
+  /**
+   * Fetches a source and queues the entries not uploaded yet
+   */
+  private void poll(final FeedSource source) {
+    if (shardManager != null && !shardManager.owns(source)) {
+      logger.trace("Skipping source owned by another bridge: " + source);
+      return;
+    }
 
-      public void channelErrored(ChannelIF channel, Exception e) {
-        e.printStackTrace();
+    logger.trace("Polling " + source);
+    InputStream in = null;
+    try {
+      in = source.open(USER_AGENT);
+      if (in == null) {
+        logger.trace("Source not modified: " + source);
+        return;
       }
 
-      public void channelChanged(ChannelIF channel) {}
-
-      public void pollStarted(ChannelIF channel) {}
-
-      public void pollFinished(ChannelIF channel) {}
-    };
-
-  /* ***********************************************************
-   *  Observer class implementation
-   *************************************************************/
-  PollerApproverIF approver = new PollerApproverIF() {
-      public boolean canAddItem(ItemIF item, ChannelIF channel) {
-        Date threshold = feedThresholdMap.get(channel);
-        if (threshold == null) return true;
+      final ChannelItemWindow window = source.getWindow();
+      StreamingFeedParser.EntryHandler handler = new StreamingFeedParser.EntryHandler() {
+          public boolean entryFound(RSSEntry e, String identity) {
+            SeenItemIndex.ItemId id = SeenItemIndex.ItemId.forIdentity(source.getFeedName() + "/" + identity);
+            if (e.publicationDate() == null) {
+              /* Undated items keep the date first seen, so their key does not change at every poll */
+              e = new RSSEntry(e.getTitle(), e.getDescription(), e.getLink(),
+                               new Date(source.firstSeen(id, System.currentTimeMillis())));
+            }
+            if (!window.isCandidate(id, e.getPublicationTime())) return true;
+
+            if (seenIndex != null) {
+              try {
+                if (seenIndex.contains(id)) {
+                  /* Let the window fill and set its threshold after a restart */
+                  window.add(id, e.getPublicationTime());
+                  return true;
+                }
+              } catch (IOException ex) {
+                logger.error("I/O error reading seen item index", ex);
+              }
+            }
+
+            if (!window.add(id, e.getPublicationTime())) return true;
+
+            NearDuplicateDetector detector = duplicateDetectors.get(source.getFeedName());
+            if (detector != null && detector.isDuplicate(e)) {
+              logger.debug(String.format("Folding near duplicate entry %s from %s", e, source));
+              try {
+                if (seenIndex != null) seenIndex.add(id);
+              } catch (IOException ex) {
+                logger.error("I/O error updating seen item index", ex);
+              }
+              return true;
+            }
+
+            try {
+              entryQueue.put(source, new PendingEntry(e, id));
+            } catch (InterruptedException ex) {
+              logger.warn("Interrupted while queueing entry " + e);
+              Thread.currentThread().interrupt();
+              return false;
+            }
+            return true;
+          }
+        };
 
-        return threshold.getTime() < item.getDate().getTime();
+      int count = source.getParser().parse(in, window.getThreshold(), handler);
+      logger.trace(String.format("Parsed %s fresh items from %s", count, source));
+    } catch (IOException e) {
+      logger.error(String.format("I/O error fetching %s: %s", source, e.getMessage()));
+    } catch (CloudyRSSException e) {
+      logger.error("Error parsing " + source, e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {}
       }
-    };
+    }
+  }
 
   /* ***********************************************************
    *  Constructors
    *************************************************************/
   public RSSFeedBridge(Properties conf) {
     String feedURLStrings[];
-    URL feedURL;
     CloudURI cloudURI;
-    ChannelIF channel;
     StorageCloud storageCloud;
     String cloudProvider;
     String cloudURIString;
-    String components[];
 
-    this.poller = new Poller();
-    this.poller.addObserver(observer);
-    this.poller.addApprover(approver);
     String feeds[] = conf.getProperty("feeds", "").split(";");
-    int period = Integer.parseInt(conf.getProperty("fetch-period")) * 1000;
-    this.poller.setPeriod(period);
+    this.period = Integer.parseInt(conf.getProperty("fetch-period")) * 1000L;
+    int fetchThreads = Integer.parseInt(conf.getProperty("fetch-threads", "" + DEFAULT_FETCH_THREADS));
+    int queueCapacity = Integer.parseInt(conf.getProperty("queue-capacity",
+                                                          "" + ChannelWorkQueue.DEFAULT_CAPACITY));
+    int batchSize = Integer.parseInt(conf.getProperty("upload-batch-size",
+                                                      "" + ChannelWorkQueue.DEFAULT_BATCH_SIZE));
+    this.entryQueue = new ChannelWorkQueue<FeedSource, PendingEntry>(queueCapacity, batchSize);
+    int windowSize = Integer.parseInt(conf.getProperty("item-window",
+                                                       "" + ChannelItemWindow.DEFAULT_CAPACITY));
+    int dedupDistance = Integer.parseInt(conf.getProperty("dedup-distance", "-1"));
+    long dedupWindow = Long.parseLong(conf.getProperty("dedup-window", "24")) * 3600 * 1000;
+    String defaultRetention = conf.getProperty("retention", "0");
+    this.gcPeriod = Long.parseLong(conf.getProperty("gc-period", "24")) * 3600 * 1000;
+    this.retryDelay = Long.parseLong(conf.getProperty("upload-retry", "" + DEFAULT_RETRY_DELAY / 1000)) * 1000;
+    this.segmentPeriod = Long.parseLong(conf.getProperty("segment-period", "0")) * 3600 * 1000;
+    boolean asyncCloud = Boolean.parseBoolean(conf.getProperty("cloud-async", "false"));
+    int cloudConcurrency =
+      Integer.parseInt(conf.getProperty("cloud-concurrency", "" + AsyncStorageCloud.DEFAULT_CONCURRENCY));
+    long cloudTimeout =
+      Long.parseLong(conf.getProperty("cloud-timeout", "" + AsyncStorageCloud.DEFAULT_TIMEOUT / 1000)) * 1000;
+
+    this.keyStyle = conf.getProperty("key-style", KEY_STYLE_DIGEST).trim();
+    if (!keyStyle.equals(KEY_STYLE_DIGEST) && !keyStyle.equals(KEY_STYLE_LEGACY)
+        && !keyStyle.equals(KEY_STYLE_MIGRATION)) {
+      throw new IllegalArgumentException("Unknown key style: " + keyStyle);
+    }
+
+    String seenIndexPath = conf.getProperty("seen-index", "");
+    if (!seenIndexPath.trim().equals("")) {
+      long retention = Long.parseLong(conf.getProperty("seen-retention", "30")) * 24 * 3600 * 1000;
+      try {
+        this.seenIndex = new SeenItemIndex(new File(seenIndexPath.trim()), retention,
+                                           SeenItemIndex.DEFAULT_EXPECTED_ITEMS,
+                                           SeenItemIndex.DEFAULT_JOURNAL_THRESHOLD);
+        logger.info(String.format("Loaded seen item index with %s items", seenIndex.size()));
+      } catch (IOException e) {
+        throw new CloudyRSSException("Error opening seen item index " + seenIndexPath, e);
+      }
+    }
+
     for (String feed: feeds) {
       logger.info("Configuring feed " + feed);
       try {
@@ -133,15 +236,22 @@ public class RSSFeedBridge {
 
         cloudURI = CloudURI.getInstance(cloudProvider, new URI(cloudURIString));
         storageCloud = StorageCloud.getInstance(cloudProvider, cloudURI);
+        if (asyncCloud) storageCloud = AsyncStorageCloud.getShared(storageCloud, cloudConcurrency, cloudTimeout);
+
+        if (dedupDistance >= 0)
+          duplicateDetectors.put(feed, new NearDuplicateDetector(dedupDistance, dedupWindow));
+
+        long retention = Long.parseLong(conf.getProperty(feed + ".retention", defaultRetention)) * 24 * 3600 * 1000;
+        if (retention > 0)
+          collectors.add(new CloudGarbageCollector(storageCloud, feed, retention, false));
+        if (segmentPeriod > 0)
+          segmentManagers.add(new FeedSegmentManager(storageCloud, feed, (retention > 0) ? retention
+                                                     : FeedSegmentManager.DEFAULT_RETENTION));
 
         for (String feedURLString: feedURLStrings) {
           if (feedURLString.trim().equals("")) continue;
           logger.info("Adding rss feed " + feedURLString);
-          channel = FeedParser.parse(new ChannelBuilder(), new URL(feedURLString));
-          feedCloudMap.put(channel, storageCloud);
-          feedNameMap.put(channel, feed);
-          feedThresholdMap.put(channel, null);
-          poller.registerChannel(channel);
+          sources.add(new FeedSource(new URL(feedURLString.trim()), feed, storageCloud, windowSize));
         }
       } catch (MalformedURLException e) {
         logger.error(String.format("Ignoring feed %s as it's not a valid URL", feed));
@@ -151,83 +261,236 @@ public class RSSFeedBridge {
         logger.error(String.format("Cloud URI configuration error for fee %s. Ignoring", feed));
       } catch (InstantiationException e) {
         logger.error(String.format("Error instantiating storage cloud for feed %s", feed));
+      }
+    }
+
+    if (Boolean.parseBoolean(conf.getProperty("sharding", "false")) && sources.size() > 0) {
+      String instanceId = conf.getProperty("bridge-id", "").trim();
+      if (instanceId.equals("")) instanceId = defaultInstanceId();
+      this.heartbeatPeriod = Integer.parseInt(conf.getProperty("shard-heartbeat", "30")) * 1000L;
+      this.shardManager = new BridgeShardManager(instanceId, sources.get(0).getStorageCloud(), sources,
+                                                 3 * heartbeatPeriod);
+      /* Heartbeats must not wait behind fetches blocked on slow sources */
+      this.heartbeats = Executors.newSingleThreadScheduledExecutor();
+      logger.info("Sharding enabled, bridge instance id: " + instanceId);
+    }
+
+    this.fetcher = Executors.newScheduledThreadPool(Math.max(1, fetchThreads));
+  }
+
+  /**
+   * Serializes an entry in the form it is uploaded to the cloud
+   */
+  public static byte[] encodeEntry(RSSEntry entry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream objOut = new ObjectOutputStream(out);
+    objOut.writeObject(entry);
+    objOut.close();
+    return out.toByteArray();
+  }
+
+  private static String defaultInstanceId() {
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    } catch (IOException e) {
+      host = "bridge";
+    }
+    return host + "-" + Long.toHexString(new Random().nextLong() & 0xffffffffL);
+  }
+
+  /**
+   * Schedules the periodic polling of every configured source
+   */
+  public void start() {
+    if (shardManager != null) {
+      heartbeats.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            shardManager.heartbeat();
+          }
+        }, 0, heartbeatPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    for (final CloudGarbageCollector gc: collectors) {
+      fetcher.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            collect(gc);
+          }
+        }, gcPeriod / 2, gcPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    for (final FeedSegmentManager manager: segmentManagers) {
+      fetcher.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            roll(manager);
+          }
+        }, segmentPeriod / 4, segmentPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    long delay = 0;
+    long step = (sources.size() > 0) ? period / sources.size() : 0;
+    for (final FeedSource source: sources) {
+      fetcher.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            poll(source);
+          }
+        }, delay, period, TimeUnit.MILLISECONDS);
+      /* Spread the sources over the period */
+      delay += step;
+    }
+  }
+
+  /**
+   * Removes the expired entries of a feed, unless another bridge instance is
+   * in charge of it
+   */
+  private void collect(CloudGarbageCollector gc) {
+    if (shardManager != null && !shardManager.ownsTask("gc/" + gc.getFeedName())) {
+      logger.trace("Skipping garbage collection handled by another bridge: " + gc.getFeedName());
+      return;
+    }
+
+    try {
+      gc.collect();
+    } catch (IOException e) {
+      logger.error("I/O error collecting feed " + gc.getFeedName(), e);
+    } catch (CloudException e) {
+      logger.error("Cloud error collecting feed " + gc.getFeedName(), e);
+    }
+  }
+
+  /**
+   * Rolls the entries of a feed into segments, unless another bridge
+   * instance is in charge of it
+   */
+  private void roll(FeedSegmentManager manager) {
+    if (shardManager != null && !shardManager.ownsTask("segments/" + manager.getFeedName())) {
+      logger.trace("Skipping segments handled by another bridge: " + manager.getFeedName());
+      return;
+    }
+
+    try {
+      manager.roll();
+    } catch (IOException e) {
+      logger.error("I/O error rolling segments of feed " + manager.getFeedName(), e);
+    } catch (CloudException e) {
+      logger.error("Cloud error rolling segments of feed " + manager.getFeedName(), e);
+    }
+  }
+
+  public void terminate() {
+    fetcher.shutdownNow();
+    if (heartbeats != null) heartbeats.shutdownNow();
+    if (shardManager != null) shardManager.release();
+    if (seenIndex != null) {
+      try {
+        seenIndex.close();
       } catch (IOException e) {
-        logger.error(String.format("I/O error parsing feed %s", feed));
-      } catch (ParseException e) {
-        logger.error(String.format("Error parsing feed %s", feed));
+        logger.error("I/O error closing seen item index", e);
       }
     }
   }
 
   public void run() {
-    Random r = new Random();
-    List<RSSEntry> entries = null;
-    ChannelIF channel = null;
+    ChannelWorkQueue.Batch<FeedSource, PendingEntry> batch;
+    List<PendingEntry> entries;
+    FeedSource source;
+
+    start();
     while(true) {
-      synchronized (entryCache) {
+      try {
+        logger.trace("Waiting for news");
+        batch = entryQueue.take();
+      } catch (InterruptedException e) {
+        logger.info("Bridge interrupted, stopping");
+        terminate();
+        return;
+      }
+
+      source = batch.getChannel();
+      entries = batch.getEntries();
+      logger.trace("Found a source with updates: " + source);
+
+      StorageCloud cloud = source.getStorageCloud();
+      String baseKey = source.getFeedName();
+      byte data[];
+
+      logger.info(String.format("Uploading %s updates for feed %s", entries.size(), baseKey));
+
+      /* Uploads through an asynchronous cloud are pipelined and awaited at the end */
+      List<Future<Void>> uploads = new ArrayList<Future<Void>>();
+      List<PendingEntry> uploading = new ArrayList<PendingEntry>();
+
+      for (PendingEntry pending: entries) {
+        RSSEntry e = pending.entry;
         try {
-          if (entryCache.size() ==  0) {
-            logger.trace("Waiting for news");
-            entryCache.wait();
+          data = encodeEntry(e);
+
+          String key;
+          if (keyStyle.equals(KEY_STYLE_LEGACY)) {
+            key = baseKey + "/" + e.getLegacyKey();
+          } else {
+            key = baseKey + "/" + e.getKey();
+            if (keyStyle.equals(KEY_STYLE_MIGRATION)
+                && cloud.getMetadata(baseKey + "/" + e.getLegacyKey()) != null) {
+              logger.debug("Entry already stored under legacy key: " + e);
+              key = null;
+            }
           }
-        } catch (InterruptedException e) {}
 
-        channel = null;
-        for (ChannelIF c: entryCache.keySet()) {
-          channel = c;
-          break;
-        }
-
-        if (channel != null) {
-          logger.trace("Found a channel with updates: " + channel);
-          entries = entryCache.remove(channel);
-        } else {
-          logger.trace("No channel with updates");
+          if (key != null && cloud instanceof AsyncStorageCloud) {
+            uploads.add(((AsyncStorageCloud) cloud).putAsync(key, "test.simple.RSSEntry", data, null));
+            uploading.add(pending);
+            continue;
+          }
+          if (key != null) {
+            cloud.put(key, "test.simple.RSSEntry", new ByteArrayInputStream(data), null);
+          }
+          if (seenIndex != null) seenIndex.add(pending.id);
+        } catch (IOException ex) {
+          logger.error("I/O Error putting on cloud entry" + e, ex);
+          retry(source, pending);
+        } catch (CloudException ex) {
+          logger.error("Cloud error putting on cloud entry" + e, ex);
+          retry(source, pending);
         }
       }
 
-      ItemIF[] items = channel.getItems().toArray(new ItemIF[] {});
-      java.util.Arrays.sort(items, new ItemComparator(true));
-      int count = 0;
-      Date newThreshold = null;
-      for (ItemIF item: items) {
-        count++;
-        if (count > 5) {
-          if (newThreshold == null) newThreshold = item.getDate();
-          channel.removeItem(item);
+      for (int i = 0; i < uploads.size(); i++) {
+        PendingEntry pending = uploading.get(i);
+        try {
+          ((AsyncStorageCloud) cloud).await(uploads.get(i));
+          if (seenIndex != null) seenIndex.add(pending.id);
+        } catch (IOException ex) {
+          logger.error("I/O Error putting on cloud entry" + pending.entry, ex);
+          retry(source, pending);
+        } catch (CloudException ex) {
+          logger.error("Cloud error putting on cloud entry" + pending.entry, ex);
+          retry(source, pending);
         }
       }
-      if (newThreshold != null)
-        feedThresholdMap.put(channel, newThreshold);
-
-      if (entries != null) {
-        StorageCloud cloud = feedCloudMap.get(channel);
-        String baseKey = feedNameMap.get(channel);
-        ByteArrayOutputStream out;
-        ObjectOutputStream objOut;
-        ByteArrayInputStream in;
-
-        logger.info(String.format("Uploading %s updates for feed %s", entries.size(), baseKey));
-
-        for (RSSEntry e: entries) {
-          if (e == null) continue;
-          try {
-            out = new ByteArrayOutputStream();
-            objOut = new ObjectOutputStream(out);
-            objOut.writeObject(e);
-            objOut.close();
-
-            in = new ByteArrayInputStream(out.toByteArray());
-            cloud.put(baseKey + "/" + e.getKey(), "test.simple.RSSEntry", in, null);
-          } catch (IOException ex) {
-            logger.error("I/O Error putting on cloud entry" + e, ex);
-          } catch (CloudException ex) {
-            logger.error("Cloud error putting on cloud entry" + e, ex);
+    }
+  }
+
+  /**
+   * Queues again an entry whose upload failed, after the retry delay. The
+   * entry stays in the window of its source, which would not let the next
+   * fetches queue it again.
+   */
+  private void retry(final FeedSource source, final PendingEntry pending) {
+    try {
+      fetcher.schedule(new Runnable() {
+          public void run() {
+            try {
+              entryQueue.put(source, pending);
+            } catch (InterruptedException e) {
+              logger.warn("Interrupted while queueing again entry " + pending.entry);
+              Thread.currentThread().interrupt();
+            }
           }
-        }
-        channel = null;
-        entries = null;
-      }
+        }, retryDelay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      logger.warn("Bridge stopping, dropping entry " + pending.entry);
     }
   }
 
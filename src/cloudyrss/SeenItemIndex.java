@@ -0,0 +1,382 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent set of the items already handled by the bridge.
+ * <p>
+ * Items are identified by the MD5 digest of a stable identity string (guid,
+ * link or title). Membership is first checked against an in-memory Bloom
+ * filter; positive answers are confirmed against the exact index, made of a
+ * sorted record file searched in place and a journal of recent additions.
+ * When the journal grows past a threshold it is merged into the sorted file
+ * dropping the records older than the retention period.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class SeenItemIndex {
+
+  static Logger logger = Logger.getLogger(SeenItemIndex.class);
+
+  public static long DEFAULT_RETENTION = 30L * 24 * 3600 * 1000;
+  public static int DEFAULT_EXPECTED_ITEMS = 100000;
+  public static int DEFAULT_JOURNAL_THRESHOLD = 1000;
+
+  private static final int RECORD_SIZE = 24;
+  private static final int BLOOM_HASHES = 7;
+  private static final int BLOOM_BITS_PER_ITEM = 10;
+
+  /* ***********************************************************
+   *  Item identity
+   *************************************************************/
+
+  /**
+   * 128 bit identity of an item
+   */
+  public static class ItemId implements Comparable<ItemId> {
+    private final long hi;
+    private final long lo;
+
+    public ItemId(long hi, long lo) {
+      this.hi = hi;
+      this.lo = lo;
+    }
+
+    public static ItemId forIdentity(String identity) {
+      byte digest[];
+      try {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        digest = md.digest(identity.getBytes("UTF-8"));
+      } catch (NoSuchAlgorithmException e) {
+        throw new CloudyRSSException("MD5 digest not available", e);
+      } catch (UnsupportedEncodingException e) {
+        throw new CloudyRSSException("UTF-8 encoding not available", e);
+      }
+
+      long hi = 0;
+      long lo = 0;
+      for (int i = 0; i < 8; i++) {
+        hi = (hi << 8) | (digest[i] & 0xff);
+        lo = (lo << 8) | (digest[i + 8] & 0xff);
+      }
+      return new ItemId(hi, lo);
+    }
+
+    /**
+     * Parses the hexadecimal form returned by {@link #toString}
+     */
+    public static ItemId parse(String s) throws NumberFormatException {
+      if (s.length() != 32) throw new NumberFormatException("Invalid item id: " + s);
+      return new ItemId(parseHex(s, 0), parseHex(s, 16));
+    }
+
+    private static long parseHex(String s, int from) throws NumberFormatException {
+      long value = 0;
+      for (int i = from; i < from + 16; i++) {
+        int digit = Character.digit(s.charAt(i), 16);
+        if (digit < 0) throw new NumberFormatException("Invalid item id: " + s);
+        value = (value << 4) | digit;
+      }
+      return value;
+    }
+
+    public long getHigh() {
+      return hi;
+    }
+
+    public long getLow() {
+      return lo;
+    }
+
+    public int compareTo(ItemId o) {
+      if (hi != o.hi) return (hi < o.hi) ? -1 : 1;
+      if (lo != o.lo) return (lo < o.lo) ? -1 : 1;
+      return 0;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof ItemId)) return false;
+      ItemId other = (ItemId) o;
+      return hi == other.hi && lo == other.lo;
+    }
+
+    public int hashCode() {
+      return (int) (hi ^ (hi >>> 32));
+    }
+
+    public String toString() {
+      return String.format("%016x%016x", hi, lo);
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private File indexFile;
+  private File journalFile;
+
+  private long retention;
+  private int journalThreshold;
+
+  private long bloom[];
+  private int bloomBits;
+
+  private RandomAccessFile index;
+  private long indexRecords;
+
+  private HashMap<ItemId, Long> journal = new HashMap<ItemId, Long>();
+  private DataOutputStream journalOut;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public SeenItemIndex(File indexFile) throws IOException {
+    this(indexFile, DEFAULT_RETENTION, DEFAULT_EXPECTED_ITEMS, DEFAULT_JOURNAL_THRESHOLD);
+  }
+
+  public SeenItemIndex(File indexFile, long retention, int expectedItems, int journalThreshold)
+    throws IOException
+  {
+    this.indexFile = indexFile;
+    this.journalFile = new File(indexFile.getPath() + ".journal");
+    this.retention = retention;
+    this.journalThreshold = journalThreshold;
+
+    this.bloomBits = Math.max(64, expectedItems * BLOOM_BITS_PER_ITEM);
+    this.bloom = new long[(bloomBits + 63) / 64];
+
+    /* Replay journal from a previous run, then fold it into the index */
+    readJournal();
+    compact();
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  /**
+   * Checks whether the specified item was already seen within the retention
+   * period
+   */
+  public synchronized boolean contains(ItemId id) throws IOException {
+    if (!bloomContains(id)) return false;
+
+    long expiry = System.currentTimeMillis() - retention;
+    Long seen = journal.get(id);
+    if (seen != null) return seen.longValue() >= expiry;
+
+    long indexed = searchIndex(id);
+    return indexed >= 0 && indexed >= expiry;
+  }
+
+  /**
+   * Records the specified item as seen now
+   */
+  public synchronized void add(ItemId id) throws IOException {
+    long now = System.currentTimeMillis();
+    journal.put(id, now);
+    bloomAdd(id);
+
+    writeRecord(journalOut, id, now);
+    journalOut.flush();
+
+    if (journal.size() >= journalThreshold) compact();
+  }
+
+  /**
+   * Returns the number of items held by the index, including expired ones
+   * not yet collected
+   */
+  public synchronized long size() {
+    return indexRecords + journal.size();
+  }
+
+  public synchronized void close() throws IOException {
+    compact();
+    journalOut.close();
+    index.close();
+  }
+
+  /* ***********************************************************
+   *  Bloom filter
+   *************************************************************/
+
+  private void bloomAdd(ItemId id) {
+    long h = id.getHigh();
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      int bit = (int) ((h & Long.MAX_VALUE) % bloomBits);
+      bloom[bit >>> 6] |= 1L << (bit & 63);
+      h += id.getLow();
+    }
+  }
+
+  private boolean bloomContains(ItemId id) {
+    long h = id.getHigh();
+    for (int i = 0; i < BLOOM_HASHES; i++) {
+      int bit = (int) ((h & Long.MAX_VALUE) % bloomBits);
+      if ((bloom[bit >>> 6] & (1L << (bit & 63))) == 0) return false;
+      h += id.getLow();
+    }
+    return true;
+  }
+
+  /* ***********************************************************
+   *  On disk index management
+   *************************************************************/
+
+  private static void writeRecord(DataOutputStream out, ItemId id, long timestamp) throws IOException {
+    out.writeLong(id.getHigh());
+    out.writeLong(id.getLow());
+    out.writeLong(timestamp);
+  }
+
+  private void readJournal() throws IOException {
+    if (!journalFile.exists()) return;
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+    try {
+      while (true) {
+        ItemId id = new ItemId(in.readLong(), in.readLong());
+        journal.put(id, in.readLong());
+      }
+    } catch (EOFException e) {
+      /* End of journal; a truncated trailing record is simply dropped */
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Binary searches the sorted index file
+   *
+   * @return The timestamp associated to the item or -1 if not found
+   */
+  private long searchIndex(ItemId id) throws IOException {
+    long low = 0;
+    long high = indexRecords - 1;
+
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      index.seek(mid * RECORD_SIZE);
+      ItemId current = new ItemId(index.readLong(), index.readLong());
+      int cmp = current.compareTo(id);
+      if (cmp < 0) low = mid + 1;
+      else if (cmp > 0) high = mid - 1;
+      else return index.readLong();
+    }
+    return -1;
+  }
+
+  /**
+   * Merges the journal into the sorted index, dropping expired records and
+   * rebuilding the Bloom filter
+   */
+  private void compact() throws IOException {
+    long expiry = System.currentTimeMillis() - retention;
+    File tmpFile = new File(indexFile.getPath() + ".tmp");
+
+    if (journalOut != null) journalOut.close();
+    if (index != null) index.close();
+
+    ItemId pending[] = journal.keySet().toArray(new ItemId[journal.size()]);
+    Arrays.sort(pending);
+
+    Arrays.fill(bloom, 0L);
+    long written = 0;
+    long dropped = 0;
+
+    FileOutputStream tmpOut = new FileOutputStream(tmpFile);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpOut));
+    DataInputStream in = null;
+    try {
+      if (indexFile.exists())
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+      ItemId current = null;
+      long currentTimestamp = 0;
+      int p = 0;
+
+      while (true) {
+        if (current == null && in != null) {
+          try {
+            current = new ItemId(in.readLong(), in.readLong());
+            currentTimestamp = in.readLong();
+          } catch (EOFException e) {
+            current = null;
+            in.close();
+            in = null;
+          }
+        }
+
+        ItemId next;
+        long nextTimestamp;
+        if (current == null && p >= pending.length) {
+          break;
+        } else if (current == null || (p < pending.length && pending[p].compareTo(current) <= 0)) {
+          next = pending[p];
+          nextTimestamp = journal.get(next);
+          if (current != null && current.equals(next)) {
+            nextTimestamp = Math.max(nextTimestamp, currentTimestamp);
+            current = null;
+          }
+          p++;
+        } else {
+          next = current;
+          nextTimestamp = currentTimestamp;
+          current = null;
+        }
+
+        if (nextTimestamp < expiry) {
+          dropped++;
+          continue;
+        }
+        writeRecord(out, next, nextTimestamp);
+        bloomAdd(next);
+        written++;
+      }
+
+      /* The new index must be on disk before it replaces the old one */
+      out.flush();
+      tmpOut.getFD().sync();
+    } finally {
+      out.close();
+      if (in != null) in.close();
+    }
+
+    /* Either the old or the new index survives a crash */
+    Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+
+    journal.clear();
+    indexRecords = written;
+    index = new RandomAccessFile(indexFile, "r");
+    journalOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)));
+
+    logger.debug(String.format("Seen item index compacted: %s items, %s expired", written, dropped));
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import cloudypeer.store.StoreEntryMetadata;
+
+/**
+ * Compact summary of the entries of a store, grouped in time buckets.
+ * <p>
+ * Entries are assigned to a bucket by the publication time encoded in their
+ * key: buckets are days at level {@link #DAY} and hours at level
+ * {@link #HOUR}, each hour being a child of its day. Every bucket holds the
+ * number of its entries and the XOR of a 64 bit hash of each entry key,
+ * content MD5 and modification time, so two stores agree on a bucket only if
+ * they hold the same versions of its entries. Keys which do not encode a time
+ * all fall in the {@link #UNDATED} bucket, at every level.
+ * <p>
+ * Comparing the summaries top down, the two levels act as a Merkle tree of
+ * the stores: only the entries of the hours found to differ need to be
+ * exchanged.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class StoreSummary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final int DAY = 0;
+  public static final int HOUR = 1;
+  public static final String UNDATED = "undated";
+
+  private static final long HOUR_MILLIS = 3600L * 1000;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private int level;
+  private TreeMap<String, Long> digests = new TreeMap<String, Long>();
+  private TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates an empty summary
+   *
+   * @param level Either {@link #DAY} or {@link #HOUR}
+   */
+  public StoreSummary(int level) {
+    if (level != DAY && level != HOUR) throw new IllegalArgumentException("Invalid summary level " + level);
+    this.level = level;
+  }
+
+  /**
+   * Creates the summary of the given entries
+   *
+   * @param entries Metadata of the entries by key
+   * @param level Either {@link #DAY} or {@link #HOUR}
+   * @param parents If not null, only the entries whose bucket at the level
+   * above is in this set are summarized
+   */
+  public StoreSummary(Map<String, StoreEntryMetadata> entries, int level, Set<String> parents) {
+    this(level);
+    for (Map.Entry<String, StoreEntryMetadata> e: entries.entrySet()) {
+      if (parents != null && !parents.contains(bucketOf(e.getKey(), level - 1))) continue;
+      add(e.getKey(), e.getValue());
+    }
+  }
+
+  /* ***********************************************************
+   *  Buckets
+   *************************************************************/
+
+  /**
+   * Returns the bucket of a key at the given level; the level above
+   * {@link #DAY} has a single bucket
+   */
+  public static String bucketOf(String key, int level) {
+    if (level < DAY) return "";
+
+    long timestamp = RSSEntry.parseKeyTimestamp(key);
+    if (timestamp < 0) return UNDATED;
+
+    String day = RSSEntry.getPartition(timestamp);
+    if (level == DAY) return day;
+
+    int hour = (int) ((timestamp / HOUR_MILLIS) % 24);
+    return (hour < 10) ? (day + "0" + hour) : (day + hour);
+  }
+
+  /**
+   * Hashes an entry version to 64 bits
+   */
+  static long hash(String key, StoreEntryMetadata meta) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(key.getBytes("UTF-8"));
+      md.update((byte) 0);
+      if (meta.getContentMD5() != null) md.update(meta.getContentMD5().getBytes("UTF-8"));
+      md.update((byte) 0);
+
+      long modified = (meta.getModifiedTimestamp() == null) ? 0 : meta.getModifiedTimestamp().getTime();
+      for (int i = 0; i < 8; i++) md.update((byte) (modified >>> (8 * i)));
+
+      byte digest[] = md.digest();
+      long h = 0;
+      for (int i = 0; i < 8; i++) h = (h << 8) | (digest[i] & 0xff);
+      return h;
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("MD5 not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("UTF-8 not available", e);
+    }
+  }
+
+  /**
+   * Adds an entry to its bucket
+   */
+  public void add(String key, StoreEntryMetadata meta) {
+    String bucket = bucketOf(key, level);
+    Long digest = digests.get(bucket);
+    Integer count = counts.get(bucket);
+    digests.put(bucket, hash(key, meta) ^ ((digest == null) ? 0 : digest));
+    counts.put(bucket, (count == null) ? 1 : count + 1);
+  }
+
+  /* ***********************************************************
+   *  Comparison
+   *************************************************************/
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int size() {
+    return digests.size();
+  }
+
+  public Set<String> getBuckets() {
+    return digests.keySet();
+  }
+
+  /**
+   * Returns the number of entries of a bucket
+   */
+  public int getCount(String bucket) {
+    Integer count = counts.get(bucket);
+    return (count == null) ? 0 : count;
+  }
+
+  /**
+   * Returns the buckets whose entries differ in the two summaries, including
+   * the ones present in only one of them
+   */
+  public Set<String> differingBuckets(StoreSummary other) {
+    if (other.level != level) throw new IllegalArgumentException("Comparing summaries of different levels");
+
+    Set<String> result = new TreeSet<String>();
+    Set<String> all = new TreeSet<String>(digests.keySet());
+    all.addAll(other.digests.keySet());
+    for (String bucket: all) {
+      if (getCount(bucket) != other.getCount(bucket) || !digests.get(bucket).equals(other.digests.get(bucket))) {
+        result.add(bucket);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Selects the entries falling in the given buckets
+   *
+   * @param entries Metadata of the entries by key
+   * @param buckets Buckets at the level of this summary
+   */
+  public HashMap<String, StoreEntryMetadata> select(Map<String, StoreEntryMetadata> entries,
+                                                    Collection<String> buckets)
+  {
+    HashMap<String, StoreEntryMetadata> result = new HashMap<String, StoreEntryMetadata>();
+    for (Map.Entry<String, StoreEntryMetadata> e: entries.entrySet()) {
+      if (buckets.contains(bucketOf(e.getKey(), level))) result.put(e.getKey(), e.getValue());
+    }
+    return result;
+  }
+}
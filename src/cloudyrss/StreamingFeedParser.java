@@ -0,0 +1,338 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser extracting entries from RSS 0.9x, 1.0, 2.0 and Atom documents.
+ * <p>
+ * Items are handed to an {@link EntryHandler} as soon as their closing tag is
+ * read, without building a document tree. Parsing stops at the first item
+ * older than the given threshold, as feeds list their items newest first.
+ * Items without a date are handed without one and never stop the parsing.
+ * Text fields are truncated to a maximum length so memory usage does not
+ * depend on the document size.
+ * <p>
+ * Instances are not thread safe.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class StreamingFeedParser {
+
+  public static int DEFAULT_MAX_FIELD_LENGTH = 16384;
+
+  /**
+   * Receives the entries found by the parser
+   */
+  public interface EntryHandler {
+
+    /**
+     * Notifies a parsed entry
+     *
+     * @param entry The parsed entry, without a date if the item has none
+     * @param identity Stable identity of the entry (guid, id or link)
+     * @return false to stop parsing
+     */
+    public boolean entryFound(RSSEntry entry, String identity);
+  }
+
+  /* Field being read within an item */
+  private static final int FIELD_NONE = 0;
+  private static final int FIELD_TITLE = 1;
+  private static final int FIELD_DESCRIPTION = 2;
+  private static final int FIELD_LINK = 3;
+  private static final int FIELD_GUID = 4;
+  private static final int FIELD_DATE = 5;
+
+  private static final String RFC822_PATTERNS[] = new String[] {
+    "EEE, d MMM yyyy HH:mm:ss Z",
+    "EEE, d MMM yyyy HH:mm:ss z",
+    "d MMM yyyy HH:mm:ss Z",
+    "d MMM yyyy HH:mm:ss z",
+    "EEE, d MMM yyyy HH:mm Z",
+    "EEE, d MMM yyyy HH:mm z",
+    "EEE, d MMM yy HH:mm:ss Z",
+    "EEE, d MMM yy HH:mm:ss z"
+  };
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private XMLInputFactory factory;
+  private SimpleDateFormat rfc822Formats[];
+  private GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+  private int maxFieldLength;
+
+  /* Current item state */
+  private StringBuilder title = new StringBuilder();
+  private StringBuilder description = new StringBuilder();
+  private StringBuilder link = new StringBuilder();
+  private StringBuilder guid = new StringBuilder();
+  private StringBuilder date = new StringBuilder();
+  private String atomLink;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public StreamingFeedParser() {
+    this(DEFAULT_MAX_FIELD_LENGTH);
+  }
+
+  public StreamingFeedParser(int maxFieldLength) {
+    this.maxFieldLength = maxFieldLength;
+
+    this.factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+    this.rfc822Formats = new SimpleDateFormat[RFC822_PATTERNS.length];
+    for (int i = 0; i < RFC822_PATTERNS.length; i++) {
+      rfc822Formats[i] = new SimpleDateFormat(RFC822_PATTERNS[i], Locale.US);
+      rfc822Formats[i].setLenient(true);
+    }
+  }
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  /**
+   * Parses a feed document.
+   *
+   * @param in Stream holding the document
+   * @param threshold Items older than this date stop the parsing. May be null
+   * @param handler Handler receiving the parsed entries
+   * @return The number of entries handed to the handler
+   */
+  public int parse(InputStream in, Date threshold, EntryHandler handler)
+    throws IOException, CloudyRSSException
+  {
+    XMLStreamReader reader;
+    int count = 0;
+
+    try {
+      reader = factory.createXMLStreamReader(in);
+    } catch (XMLStreamException e) {
+      throw new CloudyRSSException("Error initializing feed parser", e);
+    }
+
+    try {
+      boolean inItem = false;
+      int itemDepth = 0;
+      int fieldDepth = 0;
+      int field = FIELD_NONE;
+      int depth = 0;
+
+      while (reader.hasNext()) {
+        int event = reader.next();
+
+        switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          String name = reader.getLocalName();
+
+          if (!inItem) {
+            if (name.equals("item") || name.equals("entry")) {
+              inItem = true;
+              itemDepth = depth;
+              resetItem();
+            }
+          } else if (field == FIELD_NONE && depth == itemDepth + 1) {
+            field = fieldFor(name, reader.getNamespaceURI());
+            fieldDepth = depth;
+            if (field == FIELD_LINK && isAtomLink(reader)) {
+              field = FIELD_NONE;
+            }
+          }
+          break;
+
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (field != FIELD_NONE)
+            append(bufferFor(field), reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          break;
+
+        case XMLStreamConstants.END_ELEMENT:
+          if (field != FIELD_NONE && depth == fieldDepth) {
+            field = FIELD_NONE;
+          } else if (inItem && depth == itemDepth) {
+            inItem = false;
+            Date itemDate = parseDate(date.toString().trim());
+            if (threshold != null && itemDate != null && itemDate.before(threshold)) return count;
+
+            count++;
+            if (!handler.entryFound(buildEntry(itemDate), identity())) return count;
+          }
+          depth--;
+          break;
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new CloudyRSSException("Error parsing feed", e);
+    } finally {
+      try {
+        reader.close();
+      } catch (XMLStreamException e) {}
+    }
+
+    return count;
+  }
+
+  /* ***********************************************************
+   *  Item fields management
+   *************************************************************/
+
+  private void resetItem() {
+    title.setLength(0);
+    description.setLength(0);
+    link.setLength(0);
+    guid.setLength(0);
+    date.setLength(0);
+    atomLink = null;
+  }
+
+  private static int fieldFor(String name, String namespace) {
+    if (name.equals("title")) return FIELD_TITLE;
+    if (name.equals("description") || name.equals("summary")) return FIELD_DESCRIPTION;
+    if (name.equals("content") && "http://www.w3.org/2005/Atom".equals(namespace)) return FIELD_DESCRIPTION;
+    if (name.equals("link")) return FIELD_LINK;
+    if (name.equals("guid") || name.equals("id")) return FIELD_GUID;
+    if (name.equals("pubDate") || name.equals("date") || name.equals("published")
+        || name.equals("updated") || name.equals("issued") || name.equals("modified")) return FIELD_DATE;
+    return FIELD_NONE;
+  }
+
+  /**
+   * Handles Atom links, whose target is held in the href attribute
+   */
+  private boolean isAtomLink(XMLStreamReader reader) {
+    String href = reader.getAttributeValue(null, "href");
+    if (href == null) return false;
+
+    String rel = reader.getAttributeValue(null, "rel");
+    if (atomLink == null && (rel == null || rel.equals("alternate"))) atomLink = href;
+    return true;
+  }
+
+  private StringBuilder bufferFor(int field) {
+    switch (field) {
+    case FIELD_TITLE: return title;
+    case FIELD_DESCRIPTION: return description;
+    case FIELD_LINK: return link;
+    case FIELD_GUID: return guid;
+    default: return date;
+    }
+  }
+
+  private void append(StringBuilder buffer, char text[], int start, int length) {
+    int room = maxFieldLength - buffer.length();
+    if (room > 0) buffer.append(text, start, Math.min(room, length));
+  }
+
+  private RSSEntry buildEntry(Date itemDate) {
+    URL url = null;
+    String linkString = (atomLink != null) ? atomLink : link.toString().trim();
+    if (linkString.length() > 0) {
+      try {
+        url = new URL(linkString);
+      } catch (MalformedURLException e) {}
+    }
+
+    return new RSSEntry(title.toString().trim(), description.toString().trim(), url, itemDate);
+  }
+
+  private String identity() {
+    String id = guid.toString().trim();
+    if (id.length() > 0) return id;
+
+    id = (atomLink != null) ? atomLink : link.toString().trim();
+    if (id.length() > 0) return id;
+
+    return title.toString().trim() + "/" + description.toString().trim();
+  }
+
+  /* ***********************************************************
+   *  Date parsing
+   *************************************************************/
+
+  private Date parseDate(String s) {
+    if (s.length() == 0) return null;
+    if (Character.isDigit(s.charAt(0)) && s.length() >= 10 && s.charAt(4) == '-') return parseISO8601(s);
+
+    ParsePosition pos = new ParsePosition(0);
+    for (SimpleDateFormat format: rfc822Formats) {
+      pos.setIndex(0);
+      pos.setErrorIndex(-1);
+      Date d = format.parse(s, pos);
+      if (d != null) return d;
+    }
+    return null;
+  }
+
+  /**
+   * Parses W3C dates such as 2011-03-01, 2011-03-01T10:20:30Z or
+   * 2011-03-01T10:20:30.123+01:00
+   */
+  private Date parseISO8601(String s) {
+    try {
+      int year = Integer.parseInt(s.substring(0, 4));
+      int month = Integer.parseInt(s.substring(5, 7));
+      int day = Integer.parseInt(s.substring(8, 10));
+      int hour = 0, minute = 0, second = 0, millis = 0;
+      int offset = 0;
+
+      int i = 10;
+      if (s.length() > 16 && (s.charAt(10) == 'T' || s.charAt(10) == ' ')) {
+        hour = Integer.parseInt(s.substring(11, 13));
+        minute = Integer.parseInt(s.substring(14, 16));
+        i = 16;
+        if (s.length() > 18 && s.charAt(16) == ':') {
+          second = Integer.parseInt(s.substring(17, 19));
+          i = 19;
+        }
+        if (i < s.length() && s.charAt(i) == '.') {
+          int start = ++i;
+          while (i < s.length() && Character.isDigit(s.charAt(i))) i++;
+          String fraction = (s.substring(start, i) + "000").substring(0, 3);
+          millis = Integer.parseInt(fraction);
+        }
+        if (i < s.length() && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+          int sign = (s.charAt(i) == '-') ? -1 : 1;
+          int oh = Integer.parseInt(s.substring(i + 1, i + 3));
+          int om = (s.length() >= i + 6) ? Integer.parseInt(s.substring(i + 4, i + 6)) : 0;
+          offset = sign * (oh * 60 + om) * 60000;
+        }
+      }
+
+      calendar.clear();
+      calendar.set(year, month - 1, day, hour, minute, second);
+      calendar.set(Calendar.MILLISECOND, millis);
+      return new Date(calendar.getTimeInMillis() - offset);
+    } catch (NumberFormatException e) {
+      return null;
+    } catch (IndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import cloudypeer.CloudNode;
+import cloudypeer.GossipProtocolException;
+import cloudypeer.Node;
+import cloudypeer.PeerNode;
+import cloudypeer.PeerSelector;
+import cloudypeer.epidemicbcast.antientropy.CloudEnabledAntiEntropyBroadcast;
+import cloudypeer.network.NetworkClient;
+import cloudypeer.network.NetworkConnection;
+import cloudypeer.network.NetworkException;
+import cloudypeer.network.NetworkHelper;
+import cloudypeer.store.Store;
+import cloudypeer.store.StoreCompareResult;
+import cloudypeer.store.StoreEntry;
+import cloudypeer.store.StoreEntryDiff;
+import cloudypeer.store.StoreEntryDiffData;
+import cloudypeer.store.StoreEntryMetadata;
+import cloudypeer.store.StoreException;
+import org.apache.log4j.Logger;
+
+/**
+ * Push-pull anti-entropy exchanging store summaries before entry metadata.
+ * <p>
+ * The plain push-pull protocol sends the metadata of every entry at each
+ * round. Here peers first exchange a {@link StoreSummary} by day; the passive
+ * peer answers with the summary by hour of the days which differ, and only the
+ * metadata of the entries in the hours which still differ is sent. Entries
+ * are then transferred as in the push-pull protocol, so the cost of a round
+ * grows with the difference between the stores rather than with their size.
+ * <p>
+ * The cloud cannot compute summaries, so the metadata of the cloud entries is
+ * remembered between rounds: each round lists the keys of the cloud and reads
+ * the metadata only of the keys which are new or were uploaded since the
+ * previous round. The whole metadata is read again every
+ * {@link #DEFAULT_FULL_CLOUD_SYNC} rounds.
+ * <p>
+ * Peers running this protocol do not talk to peers running the push-pull one.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class SummaryAntiEntropyBroadcast extends CloudEnabledAntiEntropyBroadcast implements NetworkClient {
+
+  static Logger logger = Logger.getLogger(SummaryAntiEntropyBroadcast.class);
+
+  public static int DEFAULT_FULL_CLOUD_SYNC = 24;
+
+  /* Uploads listed since a date are looked for this far back, to cover clock skew */
+  public static long LISTING_SKEW = 5 * 60 * 1000;
+
+  /* Network client id, distinct from the push-pull protocol one */
+  private static final int CLIENT_ID = 2;
+  private static final int CONNECTION_TIMEOUT = 5000;
+  private static final int RECEIVE_TIMEOUT = 5000;
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private NetworkHelper netHelper;
+  private long lastCycleTimestamp = 0;
+  private boolean bootstrap = true;
+
+  private HashMap<String, StoreEntryMetadata> cloudMetadata = new HashMap<String, StoreEntryMetadata>();
+  private long cloudSyncTimestamp = 0;
+  private int cloudRounds = 0;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  public SummaryAntiEntropyBroadcast(PeerNode localNode, PeerSelector peerSelector, Store store, Store cloudStore) {
+    super(localNode, peerSelector, store, cloudStore);
+  }
+
+  /* ***********************************************************
+   *  NetworkClient implementation
+   *************************************************************/
+
+  public void processMessage(PeerNode sender, java.io.Serializable message) {}
+
+  public PeerNode getNode() {
+    return localNode;
+  }
+
+  /* ***********************************************************
+   *  Comparison
+   *************************************************************/
+
+  private int timeUntillNextActiveCycle() {
+    int time = (int) (lastCycleTimestamp + period * 1000 - System.currentTimeMillis());
+    return (time > 0) ? time / 1000 : 0;
+  }
+
+  /**
+   * Compares two sets of entries the way {@link Store#compareStoreEntries}
+   * does, without assuming they are whole stores
+   */
+  static StoreCompareResult compare(Map<String, StoreEntryMetadata> local, Map<String, StoreEntryMetadata> remote) {
+    List<String> fresherOnLocal = new ArrayList<String>();
+    List<String> fresherOnRemote = new ArrayList<String>();
+    List<String> metadataOnLocal = new ArrayList<String>();
+    List<String> metadataOnRemote = new ArrayList<String>();
+
+    for (Map.Entry<String, StoreEntryMetadata> e: remote.entrySet()) {
+      StoreEntryMetadata localMeta = local.get(e.getKey());
+      StoreEntryMetadata remoteMeta = e.getValue();
+      if (localMeta == null) {
+        fresherOnRemote.add(e.getKey());
+        continue;
+      }
+
+      long localTime = localMeta.getModifiedTimestamp().getTime();
+      long remoteTime = remoteMeta.getModifiedTimestamp().getTime();
+      boolean sameContent = localMeta.getContentMD5().equals(remoteMeta.getContentMD5());
+      if (localTime < remoteTime) {
+        if (sameContent) metadataOnRemote.add(e.getKey());
+        else fresherOnRemote.add(e.getKey());
+      } else if (localTime > remoteTime) {
+        if (sameContent) metadataOnLocal.add(e.getKey());
+        else fresherOnLocal.add(e.getKey());
+      }
+    }
+
+    for (String key: local.keySet()) {
+      if (!remote.containsKey(key)) fresherOnLocal.add(key);
+    }
+
+    return new StoreCompareResult(fresherOnLocal.toArray(new String[fresherOnLocal.size()]),
+                                  fresherOnRemote.toArray(new String[fresherOnRemote.size()]),
+                                  metadataOnLocal.toArray(new String[metadataOnLocal.size()]),
+                                  metadataOnRemote.toArray(new String[metadataOnRemote.size()]));
+  }
+
+  private static HashMap<String, StoreEntryMetadata> select(Map<String, StoreEntryMetadata> entries,
+                                                            String keys[])
+  {
+    HashMap<String, StoreEntryMetadata> result = new HashMap<String, StoreEntryMetadata>();
+    for (String key: keys) result.put(key, entries.get(key));
+    return result;
+  }
+
+  /* ***********************************************************
+   *  Cloud reconciliation
+   *************************************************************/
+
+  /**
+   * Brings the remembered metadata of the cloud entries up to date
+   */
+  private void refreshCloudMetadata() throws StoreException {
+    long now = System.currentTimeMillis();
+    Set<String> keys = new HashSet<String>(Arrays.asList(cloudStore.listStoreEntries()));
+    Set<String> uploaded = new HashSet<String>();
+
+    if (cloudSyncTimestamp == 0 || ++cloudRounds % DEFAULT_FULL_CLOUD_SYNC == 0) {
+      cloudMetadata.clear();
+    } else {
+      try {
+        uploaded.addAll(Arrays.asList(cloudStore.listStoreEntries(new Date(cloudSyncTimestamp - LISTING_SKEW))));
+      } catch (RuntimeException e) {
+        logger.debug("Cannot list cloud entries by date, reading all the metadata", e);
+        cloudMetadata.clear();
+      }
+    }
+
+    cloudMetadata.keySet().retainAll(keys);
+    List<String> missing = new ArrayList<String>();
+    for (String key: keys) {
+      if (!cloudMetadata.containsKey(key) || uploaded.contains(key)) missing.add(key);
+    }
+
+    if (missing.size() > 0) {
+      HashMap<String, StoreEntryMetadata> metas =
+        cloudStore.getStoreEntriesMetadata(missing.toArray(new String[missing.size()]));
+      for (Map.Entry<String, StoreEntryMetadata> e: metas.entrySet()) {
+        if (e.getValue() != null) cloudMetadata.put(e.getKey(), e.getValue());
+      }
+    }
+    cloudSyncTimestamp = now;
+    logger.trace(String.format("Read the metadata of %d of %d cloud entries", missing.size(), keys.size()));
+  }
+
+  private void resolveDifferenceCloud(CloudNode cloud) throws StoreException {
+    refreshCloudMetadata();
+
+    HashMap<String, StoreEntryMetadata> localMetadata = store.getStoreEntriesMetadata();
+    StoreCompareResult result = compare(localMetadata, cloudMetadata);
+
+    String metadataOnRemote[] = result.getMetadataChangedOnRemoteNode();
+    String metadataOnLocal[] = result.getMetadataChangedOnLocalNode();
+    String fresherOnRemote[] = result.getKeysFresherOnRemoteNode();
+    String fresherOnLocal[] = result.getKeyFresherOnLocalNode();
+    logger.debug(String.format("Cloud difference: %d/%d fresher entries, %d/%d changed metadata (local/cloud)",
+                               fresherOnLocal.length, fresherOnRemote.length, metadataOnLocal.length,
+                               metadataOnRemote.length));
+
+    if (metadataOnRemote.length > 0) store.updateMetadatas(select(cloudMetadata, metadataOnRemote));
+    if (metadataOnLocal.length > 0) cloudStore.updateMetadatas(select(localMetadata, metadataOnLocal));
+
+    StoreEntry cloudEntries[] = cloudStore.getStoreEntries(fresherOnRemote);
+    StoreEntry localEntries[] = store.getStoreEntries(fresherOnLocal);
+    if (localEntries.length > 0) cloudStore.updateStoreEntries(localEntries);
+    if (cloudEntries.length > 0) store.updateStoreEntries(cloudEntries);
+
+    /* The cloud assigns its own timestamps: read them again next round */
+    for (String key: metadataOnLocal) cloudMetadata.remove(key);
+    for (String key: fresherOnLocal) cloudMetadata.remove(key);
+  }
+
+  /* ***********************************************************
+   *  Peer reconciliation
+   *************************************************************/
+
+  private void resolveDifferencePeer(PeerNode peer)
+    throws NetworkException, SocketTimeoutException, IOException, StoreException
+  {
+    NetworkConnection conn = netHelper.createConnection(this, peer, CONNECTION_TIMEOUT);
+    try {
+      HashMap<String, StoreEntryMetadata> localMetadata = store.getStoreEntriesMetadata();
+      conn.send(new StoreSummary(localMetadata, StoreSummary.DAY, null));
+
+      String days[] = (String[]) conn.receive(RECEIVE_TIMEOUT);
+      if (days.length == 0) {
+        logger.trace("Stores are synchronized with " + peer);
+        return;
+      }
+      StoreSummary remoteHours = (StoreSummary) conn.receive(RECEIVE_TIMEOUT);
+      StoreSummary localHours =
+        new StoreSummary(localMetadata, StoreSummary.HOUR, new HashSet<String>(Arrays.asList(days)));
+      Set<String> hours = localHours.differingBuckets(remoteHours);
+      conn.send(hours.toArray(new String[hours.size()]));
+      if (hours.size() == 0) return;
+
+      HashMap<String, StoreEntryMetadata> selected = localHours.select(localMetadata, hours);
+      conn.send(selected);
+      logger.debug(String.format("Summary exchange with %s: %d days, %d hours and %d of %d entries differ", peer,
+                                 days.length, hours.size(), selected.size(), localMetadata.size()));
+
+      StoreEntryDiffData diffData[] = (StoreEntryDiffData[]) conn.receive(RECEIVE_TIMEOUT);
+      conn.send(store.diffStoreEntries(diffData));
+
+      @SuppressWarnings("unchecked")
+      Map<String, StoreEntryMetadata> metadataUpdates = (Map<String, StoreEntryMetadata>) conn.receive(RECEIVE_TIMEOUT);
+      String fresherOnRemote[] = (String[]) conn.receive(RECEIVE_TIMEOUT);
+      conn.send(store.produceStoreEntriesDiffData(fresherOnRemote));
+      StoreEntryDiff diffs[] = (StoreEntryDiff[]) conn.receive(RECEIVE_TIMEOUT);
+
+      if (diffs.length > 0) store.patchStoreEntries(diffs);
+      if (metadataUpdates.size() > 0) store.updateMetadatas(metadataUpdates);
+    } finally {
+      conn.close();
+    }
+  }
+
+  private void resolveDifferencePassive(NetworkConnection conn) {
+    try {
+      HashMap<String, StoreEntryMetadata> localMetadata = store.getStoreEntriesMetadata();
+      StoreSummary remoteDays = (StoreSummary) conn.receive(RECEIVE_TIMEOUT);
+      Set<String> days = new StoreSummary(localMetadata, StoreSummary.DAY, null).differingBuckets(remoteDays);
+      conn.send(days.toArray(new String[days.size()]));
+      if (days.size() == 0) return;
+      conn.send(new StoreSummary(localMetadata, StoreSummary.HOUR, days));
+
+      String hours[] = (String[]) conn.receive(RECEIVE_TIMEOUT);
+      if (hours.length == 0) return;
+
+      @SuppressWarnings("unchecked")
+      HashMap<String, StoreEntryMetadata> remoteMetadata =
+        (HashMap<String, StoreEntryMetadata>) conn.receive(RECEIVE_TIMEOUT);
+      StoreSummary summary = new StoreSummary(StoreSummary.HOUR);
+      StoreCompareResult result = compare(summary.select(localMetadata, Arrays.asList(hours)), remoteMetadata);
+
+      conn.send(store.produceStoreEntriesDiffData(result.getKeysFresherOnRemoteNode()));
+      StoreEntryDiff diffs[] = (StoreEntryDiff[]) conn.receive(RECEIVE_TIMEOUT);
+
+      conn.send(select(localMetadata, result.getMetadataChangedOnLocalNode()));
+      conn.send(result.getKeyFresherOnLocalNode());
+      StoreEntryDiffData diffData[] = (StoreEntryDiffData[]) conn.receive(RECEIVE_TIMEOUT);
+      conn.send(store.diffStoreEntries(diffData));
+
+      if (diffs.length > 0) store.patchStoreEntries(diffs);
+      String metadataOnRemote[] = result.getMetadataChangedOnRemoteNode();
+      if (metadataOnRemote.length > 0) store.updateMetadatas(select(remoteMetadata, metadataOnRemote));
+    } catch (ClassCastException e) {
+      logger.warn("Unexpected data resolving differences", e);
+    } catch (SocketTimeoutException e) {
+      logger.warn("Network timeout resolving differences", e);
+    } catch (NetworkException e) {
+      logger.warn("Network error resolving differences", e);
+    } catch (IOException e) {
+      logger.warn("Input/Output error resolving differences", e);
+    } catch (StoreException e) {
+      logger.warn("Store error resolving differences", e);
+    } finally {
+      try {
+        conn.close();
+      } catch (Exception e) {
+        logger.trace("Error closing connection", e);
+      }
+    }
+  }
+
+  /* ***********************************************************
+   *  GossipProtocol implementation
+   *************************************************************/
+
+  public void init() throws GossipProtocolException {
+    try {
+      netHelper = (NetworkHelper) getProtocolData("nethelper");
+    } catch (Exception e) {}
+    if (netHelper == null) netHelper = NetworkHelper.getConfiguredInstance();
+    if (netHelper == null) {
+      logger.error("No NetworkHelper instance specified as protocol data nor a configured instance is present");
+      throw new GossipProtocolException("NetworkHelper instance not passed nor configured");
+    }
+    netHelper.registerClient(this, CLIENT_ID);
+  }
+
+  public void runActiveThread() {
+    int attempts = 0;
+
+    while (!isTerminated()) {
+      Node node = peerSelector.getNode();
+      long cycleStart = System.currentTimeMillis();
+      boolean success = false;
+      attempts++;
+
+      logger.trace("Active cycle: " + node);
+      try {
+        if (node != null) {
+          if (node.isCloud()) resolveDifferenceCloud((CloudNode) node);
+          else resolveDifferencePeer((PeerNode) node);
+          if (bootstrap) bootstrap = false;
+        }
+        success = true;
+      } catch (ClassCastException e) {
+        logger.warn("Error: remote peer class not supported", e);
+      } catch (NetworkException e) {
+        logger.warn("Network error resolving differences", e);
+      } catch (SocketTimeoutException e) {
+        logger.warn("Network timeout resolving differences", e);
+      } catch (IOException e) {
+        logger.warn("Input/Output error resolving differences", e);
+      } catch (StoreException e) {
+        logger.warn("Store error resolving differences", e);
+      } catch (IllegalArgumentException e) {
+        logger.warn("Argument error", e);
+      } catch (RuntimeException e) {
+        logger.fatal("Uncatched exception", e);
+      }
+
+      /* Failed cycles are retried every second, always while bootstrapping */
+      if (bootstrap || (!success && attempts < period / 2)) {
+        logger.trace("Failed active cycle, retrying");
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {}
+        continue;
+      }
+
+      if (isTerminated()) break;
+      attempts = 0;
+      if (lastCycleTimestamp == 0) lastCycleTimestamp = cycleStart;
+      else lastCycleTimestamp += period * 1000;
+
+      try {
+        long wait = timeUntillNextActiveCycle() * 1000L;
+        if (wait > 0) Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        logger.trace("Catched an InterruptedException while waiting for next cycle");
+      }
+    }
+
+    netHelper.unregisterClient(this);
+    logger.trace("Active thread terminated");
+  }
+
+  public void runPassiveThread() {
+    while (!isTerminated()) {
+      try {
+        logger.trace("Waiting for incoming connection");
+        NetworkConnection conn = netHelper.acceptConnection(this);
+        logger.trace("Incoming connection: resolving differences");
+        resolveDifferencePassive(conn);
+      } catch (InterruptedException e) {
+        logger.trace("Catched an InterruptedException while waiting for contact");
+      }
+    }
+  }
+}
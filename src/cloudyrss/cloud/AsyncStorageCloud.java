@@ -0,0 +1,514 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * Asynchronous front end of a storage cloud.
+ * <p>
+ * Requests are executed by a bounded pool of threads, so that several feeds
+ * can have their requests in flight at once, and the <tt>*Async</tt> methods
+ * return a future instead of blocking: a caller can pipeline many requests
+ * and wait for all of them afterwards. At most {@link #DEFAULT_QUEUE_CAPACITY}
+ * requests wait for a thread, further ones are rejected. The blocking
+ * {@link StorageCloud} methods go through the same pool and wait at most the
+ * configured timeout once the request is running; the time spent in the
+ * queue is not counted, so a backlog does not look like a slow cloud.
+ * {@link #getAll(String[])} reads objects in batches when the cloud is a
+ * {@link BatchStorageCloud}, in parallel otherwise.
+ * <p>
+ * A circuit breaker protects callers from an unreachable cloud: after
+ * {@link #DEFAULT_FAILURE_THRESHOLD} consecutive failures requests fail
+ * immediately for {@link #DEFAULT_OPEN_PERIOD} milliseconds, after which
+ * a request is let through to probe the cloud again. The bridge and the feed
+ * readers of a process share the front end of each bucket, obtained through
+ * {@link #getShared(StorageCloud, int, long)}.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class AsyncStorageCloud extends StorageCloud implements BatchStorageCloud {
+
+  static Logger logger = Logger.getLogger(AsyncStorageCloud.class);
+
+  public static int DEFAULT_CONCURRENCY = 8;
+  public static long DEFAULT_TIMEOUT = 60000;
+  public static int DEFAULT_QUEUE_CAPACITY = 1000;
+  public static int DEFAULT_BATCH_SIZE = 50;
+  public static int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static long DEFAULT_OPEN_PERIOD = 30000;
+
+  private static HashMap<String, AsyncStorageCloud> shared = new HashMap<String, AsyncStorageCloud>();
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private StorageCloud cloud;
+  private String name;
+  private ThreadPoolExecutor executor;
+  private long timeout;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+  private long openPeriod = DEFAULT_OPEN_PERIOD;
+
+  private int failures;
+  private long openedAt;
+
+  private long requests;
+  private long failed;
+  private long rejected;
+  private long timeouts;
+
+  /**
+   * A request recording when a thread starts executing it
+   */
+  private static class Request<T> extends FutureTask<T> {
+    private volatile long started;
+
+    public Request(Callable<T> callable) {
+      super(callable);
+    }
+
+    public void run() {
+      started = System.currentTimeMillis();
+      super.run();
+    }
+
+    /**
+     * Returns the time the request started running, 0 while it is queued
+     */
+    public long getStarted() {
+      return started;
+    }
+  }
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new front end
+   *
+   * @param cloud The storage cloud executing the requests
+   * @param concurrency Maximum number of requests executed at once
+   * @param timeout Milliseconds a blocking request waits for its result
+   */
+  public AsyncStorageCloud(StorageCloud cloud, int concurrency, long timeout) {
+    this(cloud, concurrency, timeout, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates a new front end
+   *
+   * @param cloud The storage cloud executing the requests
+   * @param concurrency Maximum number of requests executed at once
+   * @param timeout Milliseconds a blocking request waits for its result
+   * once running
+   * @param queueCapacity Maximum number of requests waiting for a thread
+   */
+  public AsyncStorageCloud(StorageCloud cloud, int concurrency, long timeout, int queueCapacity) {
+    this.cloud = cloud;
+    this.timeout = timeout;
+
+    CloudURI uri = cloud.getCloudURI();
+    this.name = uri.getBaseURI() + "/" + uri.getBucket();
+
+    final String threadName = "cloud-io-" + uri.getBucket() + "-";
+    concurrency = Math.max(1, concurrency);
+    this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                                           new ThreadFactory() {
+                                               private int count = 0;
+
+                                               public synchronized Thread newThread(Runnable r) {
+                                                 Thread t = new Thread(r, threadName + (++count));
+                                                 t.setDaemon(true);
+                                                 return t;
+                                               }
+                                             });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the front end of the bucket of the given cloud, shared with the
+   * other users of the bucket
+   */
+  public static AsyncStorageCloud getShared(StorageCloud cloud) throws CloudException {
+    return getShared(cloud, DEFAULT_CONCURRENCY, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Returns the front end of the bucket of the given cloud, shared with the
+   * other users of the bucket. The front end is created by the first user of
+   * the bucket, with its settings.
+   *
+   * @param concurrency Maximum number of requests executed at once
+   * @param timeout Milliseconds a blocking request waits for its result
+   * once running
+   */
+  public static AsyncStorageCloud getShared(StorageCloud cloud, int concurrency, long timeout)
+    throws CloudException
+  {
+    CloudURI uri = cloud.getCloudURI();
+    String bucket = uri.getBaseURI() + "/" + uri.getBucket();
+
+    synchronized (shared) {
+      AsyncStorageCloud async = shared.get(bucket);
+      if (async == null) {
+        async = new AsyncStorageCloud(cloud, concurrency, timeout);
+        shared.put(bucket, async);
+        logger.info(String.format("Sending requests for bucket %s through %s connections", bucket,
+                                  concurrency));
+      } else if (async.executor.getMaximumPoolSize() != Math.max(1, concurrency) || async.timeout != timeout) {
+        logger.warn(String.format("Bucket %s already shared with concurrency %s and timeout %s ms", bucket,
+                                  async.executor.getMaximumPoolSize(), async.timeout));
+      }
+      return async;
+    }
+  }
+
+  /* ***********************************************************
+   *  Getters/Setters
+   *************************************************************/
+
+  public StorageCloud getCloud() {
+    return cloud;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public synchronized void setCircuitBreaker(int failureThreshold, long openPeriod) {
+    this.failureThreshold = failureThreshold;
+    this.openPeriod = openPeriod;
+  }
+
+  /**
+   * Checks whether requests are currently failing fast
+   */
+  public synchronized boolean isOpen() {
+    return failures >= failureThreshold && System.currentTimeMillis() - openedAt < openPeriod;
+  }
+
+  /**
+   * Returns the number of requests waiting to be executed
+   */
+  public int getQueued() {
+    return executor.getQueue().size();
+  }
+
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  public synchronized long getFailed() {
+    return failed;
+  }
+
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  public synchronized long getTimeouts() {
+    return timeouts;
+  }
+
+  /* ***********************************************************
+   *  Circuit breaker
+   *************************************************************/
+
+  private synchronized void admit(String what) throws CloudException {
+    if (failures >= failureThreshold) {
+      if (System.currentTimeMillis() - openedAt < openPeriod) {
+        rejected++;
+        throw new CloudException(String.format("Cloud %s unavailable, not trying to %s", name, what));
+      }
+      /* Half open: the outcome of this request decides */
+      openedAt = System.currentTimeMillis();
+    }
+    requests++;
+  }
+
+  private synchronized void succeeded() {
+    if (failures >= failureThreshold) logger.info("Cloud " + name + " available again");
+    failures = 0;
+  }
+
+  private synchronized void failed(Throwable t) {
+    failed++;
+    failures++;
+    if (failures == failureThreshold) {
+      openedAt = System.currentTimeMillis();
+      logger.warn(String.format("Cloud %s failed %s times in a row, failing fast for %s ms", name, failures,
+                                openPeriod), t);
+    }
+  }
+
+  /**
+   * Checks whether an error is due to the cloud being unreachable rather than
+   * to the request itself
+   */
+  private static boolean isFailure(Throwable t) {
+    if (t instanceof IOException) return true;
+    return t instanceof CloudException && t.getCause() != null;
+  }
+
+  /* ***********************************************************
+   *  Requests
+   *************************************************************/
+
+  private <T> Future<T> submit(String what, final Callable<T> request) throws CloudException {
+    admit(what);
+    Request<T> task = new Request<T>(new Callable<T>() {
+        public T call() throws Exception {
+          try {
+            T result = request.call();
+            succeeded();
+            return result;
+          } catch (Exception e) {
+            if (isFailure(e)) failed(e);
+            else succeeded();
+            throw e;
+          }
+        }
+      });
+
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      /* A full queue says nothing about the cloud: no cause, so callers do not count it as a failure */
+      synchronized (this) {
+        rejected++;
+      }
+      throw new CloudException(String.format("Too many requests queued for cloud %s, not trying to %s",
+                                             name, what));
+    }
+    return task;
+  }
+
+  /**
+   * Waits for the result of a request. The timeout starts when the request
+   * starts running.
+   *
+   * @throws CloudException If the request fails or does not complete within
+   * the timeout
+   */
+  public <T> T await(Future<T> future) throws IOException, CloudException {
+    try {
+      while (true) {
+        long started = (future instanceof Request) ? ((Request<?>) future).getStarted() : -1;
+        long wait = (started > 0) ? started + timeout - System.currentTimeMillis() : timeout;
+
+        try {
+          return future.get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          /* Still queued: wait for a thread, the requests ahead time out on their own */
+          if (started == 0) continue;
+
+          future.cancel(true);
+          synchronized (this) {
+            timeouts++;
+          }
+          failed(e);
+          throw new CloudException(String.format("Request to cloud %s timed out after %s ms", name, timeout), e);
+        }
+      }
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      throw new CloudException("Interrupted waiting for cloud " + name, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new CloudException("Error in request to cloud " + name, cause);
+    }
+  }
+
+  public Future<CloudObject> getAsync(final String key) throws CloudException {
+    return submit("get " + key, new Callable<CloudObject>() {
+        public CloudObject call() throws Exception {
+          return cloud.get(key);
+        }
+      });
+  }
+
+  public Future<CloudMetadata> getMetadataAsync(final String key) throws CloudException {
+    return submit("get metadata of " + key, new Callable<CloudMetadata>() {
+        public CloudMetadata call() throws Exception {
+          return cloud.getMetadata(key);
+        }
+      });
+  }
+
+  public Future<Void> putAsync(final String key, final String contentType, final byte data[],
+                               final Map<String, String> metadata) throws CloudException
+  {
+    return submit("put " + key, new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.put(key, contentType, new ByteArrayInputStream(data), metadata);
+          return null;
+        }
+      });
+  }
+
+  public Future<Void> putMetadataAsync(final String key, final String contentType,
+                                       final Map<String, String> metadata) throws CloudException
+  {
+    return submit("put metadata of " + key, new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.putMetadata(key, contentType, metadata);
+          return null;
+        }
+      });
+  }
+
+  public Future<Void> removeAsync(final String key) throws CloudException {
+    return submit("remove " + key, new Callable<Void>() {
+        public Void call() throws Exception {
+          cloud.remove(key);
+          return null;
+        }
+      });
+  }
+
+  public Future<String[]> listAsync(final Date date, final String prefix) throws CloudException {
+    return submit("list " + prefix, new Callable<String[]>() {
+        public String[] call() throws Exception {
+          return cloud.list(date, prefix);
+        }
+      });
+  }
+
+  /* ***********************************************************
+   *  BatchStorageCloud implementation
+   *************************************************************/
+
+  public Map<String, CloudObject> getAll(String keys[]) throws IOException, CloudException {
+    HashMap<String, CloudObject> objects = new HashMap<String, CloudObject>();
+
+    if (cloud instanceof BatchStorageCloud) {
+      final BatchStorageCloud batchCloud = (BatchStorageCloud) cloud;
+      List<Future<Map<String, CloudObject>>> batches = new ArrayList<Future<Map<String, CloudObject>>>();
+      for (int i = 0; i < keys.length; i += batchSize) {
+        final String batch[] = Arrays.copyOfRange(keys, i, Math.min(keys.length, i + batchSize));
+        batches.add(submit("get " + batch.length + " objects", new Callable<Map<String, CloudObject>>() {
+            public Map<String, CloudObject> call() throws Exception {
+              return batchCloud.getAll(batch);
+            }
+          }));
+      }
+      for (Future<Map<String, CloudObject>> batch: batches) objects.putAll(await(batch));
+      return objects;
+    }
+
+    /* Objects are read batchSize at a time, so a large read does not fill the queue */
+    List<Future<CloudObject>> singles = new ArrayList<Future<CloudObject>>();
+    for (int i = 0; i < keys.length; i += batchSize) {
+      int end = Math.min(keys.length, i + batchSize);
+      singles.clear();
+      for (int j = i; j < end; j++) singles.add(getAsync(keys[j]));
+
+      for (int j = i; j < end; j++) {
+        CloudObject obj = await(singles.get(j - i));
+        if (obj == null) continue;
+        byte data[] = readFully(obj.getInputStream());
+        objects.put(keys[j], new LocalCloudObject(obj.getCloudURI(), new ByteArrayInputStream(data),
+                                                  obj.getMetadata()));
+      }
+    }
+    return objects;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /* ***********************************************************
+   *  StorageCloud implementation
+   *************************************************************/
+
+  public CloudURI getCloudURI() {
+    return cloud.getCloudURI();
+  }
+
+  public boolean supportsListByDate() {
+    return cloud.supportsListByDate();
+  }
+
+  public boolean supportsListByPrefix() {
+    return cloud.supportsListByPrefix();
+  }
+
+  public String[] list(Date date, String prefix) throws IOException, CloudException {
+    return await(listAsync(date, prefix));
+  }
+
+  public CloudObject get(String key) throws IOException, CloudException {
+    return await(getAsync(key));
+  }
+
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    return await(getMetadataAsync(key));
+  }
+
+  public void put(String key, String contentType, InputStream data, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    /* The stream belongs to the caller thread: it is read before queuing the request */
+    await(putAsync(key, contentType, readFully(data), metadata));
+  }
+
+  public void putMetadata(String key, String contentType, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    await(putMetadataAsync(key, contentType, metadata));
+  }
+
+  public void remove(String key) throws IOException, CloudException {
+    await(removeAsync(key));
+  }
+}
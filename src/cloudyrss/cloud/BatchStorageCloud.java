@@ -0,0 +1,30 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.IOException;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudObject;
+
+/**
+ * Storage cloud able to read several objects with a single request.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public interface BatchStorageCloud {
+
+  /**
+   * Reads the given objects. The contents are read in memory, so the
+   * returned objects hold no resource of the cloud.
+   *
+   * @param keys Keys of the objects
+   * @return The objects by key; missing objects are not in the map
+   */
+  public Map<String, CloudObject> getAll(String keys[]) throws IOException, CloudException;
+}
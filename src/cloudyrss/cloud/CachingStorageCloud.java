@@ -0,0 +1,533 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.utils.MD5InputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Read-through cache in front of a storage cloud.
+ * <p>
+ * The cache has three tiers:
+ * <ul>
+ * <li>key listings without date, refreshed incrementally (only keys newer
+ * than the previous listing are requested) once their TTL expires and fully
+ * every few refreshes, to notice removed keys;</li>
+ * <li>an in-memory LRU of object contents and metadata, bounded in bytes,
+ * every entry being charged its key and a fixed overhead on top of its
+ * content so metadata-only entries count too;</li>
+ * <li>an optional directory holding contents by MD5, bounded in bytes.</li>
+ * </ul>
+ * Objects are immutable in practice, as entry keys embed the digest of their
+ * content: an expired object is revalidated by comparing its MD5 with the
+ * one reported by the cloud metadata, and fetched again only if they differ.
+ * Writes and removals made through the cache invalidate the affected
+ * entries. Feeds pointing to the same bucket share a single cache, obtained
+ * through {@link #getShared(StorageCloud)}.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class CachingStorageCloud extends StorageCloud {
+
+  static Logger logger = Logger.getLogger(CachingStorageCloud.class);
+
+  public static long DEFAULT_LISTING_TTL = 60000;
+  public static int DEFAULT_FULL_LISTING_PERIOD = 10;
+  public static long DEFAULT_OBJECT_TTL = 600000;
+  public static long DEFAULT_MEMORY_SIZE = 16L * 1024 * 1024;
+  public static File DEFAULT_DISK_DIRECTORY = null;
+  public static long DEFAULT_DISK_SIZE = 256L * 1024 * 1024;
+
+  /* Margin covering clock skew between this host and the cloud */
+  public static long LISTING_SKEW = 60000;
+
+  /* Estimated bytes of an entry besides its content and key: metadata, map entry and object headers */
+  private static final long ENTRY_OVERHEAD = 256;
+
+  private static HashMap<String, CachingStorageCloud> shared = new HashMap<String, CachingStorageCloud>();
+
+  /**
+   * Cached key listing of a prefix
+   */
+  private static class Listing {
+    private TreeSet<String> keys = new TreeSet<String>();
+    private long listed;
+    private long refreshed;
+    private int incremental;
+    private long version;
+  }
+
+  /**
+   * Cached object content and metadata
+   */
+  private static class Cached {
+    private String key;
+    private CloudMetadata meta;
+    private byte data[];
+    private long validated;
+
+    public Cached(String key, CloudMetadata meta, byte data[], long validated) {
+      this.key = key;
+      this.meta = meta;
+      this.data = data;
+      this.validated = validated;
+    }
+
+    public long size() {
+      return ENTRY_OVERHEAD + 2 * key.length() + ((data == null) ? 0 : data.length);
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private StorageCloud cloud;
+  private long listingTTL;
+  private int fullListingPeriod;
+  private long objectTTL;
+  private long memorySize;
+  private File diskDirectory;
+  private long diskSize;
+
+  private HashMap<String, Listing> listings = new HashMap<String, Listing>();
+  private LinkedHashMap<String, Cached> objects = new LinkedHashMap<String, Cached>(256, 0.75f, true);
+  private long memoryUsed;
+  private LinkedHashMap<String, Long> diskFiles = new LinkedHashMap<String, Long>(256, 0.75f, true);
+  private long diskUsed;
+  private long version;
+
+  /* Statistics */
+  private long hits;
+  private long misses;
+  private long revalidations;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public CachingStorageCloud(StorageCloud cloud) {
+    this(cloud, DEFAULT_LISTING_TTL, DEFAULT_OBJECT_TTL, DEFAULT_MEMORY_SIZE, DEFAULT_DISK_DIRECTORY,
+         DEFAULT_DISK_SIZE);
+  }
+
+  /**
+   * Creates a new cache
+   *
+   * @param cloud The cached storage cloud
+   * @param listingTTL Milliseconds a key listing is served before refreshing it
+   * @param objectTTL Milliseconds an object is served before revalidating it
+   * @param memorySize Bytes of object contents kept in memory
+   * @param diskDirectory Directory of the disk tier, or null to disable it
+   * @param diskSize Bytes of object contents kept on disk
+   */
+  public CachingStorageCloud(StorageCloud cloud, long listingTTL, long objectTTL, long memorySize,
+                             File diskDirectory, long diskSize) throws CloudException
+  {
+    this.cloud = cloud;
+    this.listingTTL = listingTTL;
+    this.fullListingPeriod = DEFAULT_FULL_LISTING_PERIOD;
+    this.objectTTL = objectTTL;
+    this.memorySize = memorySize;
+    this.diskDirectory = diskDirectory;
+    this.diskSize = diskSize;
+
+    if (diskDirectory != null) loadDiskTier();
+  }
+
+  /**
+   * Returns the cache shared by all the users of the bucket of the given
+   * cloud, creating it with the default settings if needed
+   */
+  public static StorageCloud getShared(StorageCloud cloud) throws CloudException {
+    CloudURI uri = cloud.getCloudURI();
+    String bucket = uri.getBaseURI() + "/" + uri.getBucket();
+
+    synchronized (shared) {
+      CachingStorageCloud cache = shared.get(bucket);
+      if (cache == null) {
+        File dir = null;
+        if (DEFAULT_DISK_DIRECTORY != null)
+          dir = new File(DEFAULT_DISK_DIRECTORY, Integer.toHexString(bucket.hashCode()));
+        cache = new CachingStorageCloud(cloud, DEFAULT_LISTING_TTL, DEFAULT_OBJECT_TTL, DEFAULT_MEMORY_SIZE,
+                                        dir, DEFAULT_DISK_SIZE);
+        shared.put(bucket, cache);
+        logger.info("Caching bucket " + bucket);
+      }
+      return cache;
+    }
+  }
+
+  /* ***********************************************************
+   *  Statistics
+   *************************************************************/
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getRevalidations() {
+    return revalidations;
+  }
+
+  public StorageCloud getCachedCloud() {
+    return cloud;
+  }
+
+  /* ***********************************************************
+   *  Listings
+   *************************************************************/
+
+  public String[] list(Date date, String prefix) throws IOException, CloudException {
+    if (prefix == null) prefix = "";
+    /* Listings since a date are already bounded by the cloud */
+    if (date != null) return cloud.list(date, prefix);
+
+    long now = System.currentTimeMillis();
+    Listing listing;
+    boolean full;
+    long since;
+    long startVersion;
+
+    synchronized (this) {
+      listing = listings.get(prefix);
+      if (listing != null && listing.version == version && now - listing.refreshed <= listingTTL) {
+        hits++;
+        return listing.keys.toArray(new String[listing.keys.size()]);
+      }
+      misses++;
+      full = listing == null || !cloud.supportsListByDate() || listing.incremental >= fullListingPeriod;
+      since = (listing == null) ? 0 : listing.listed - LISTING_SKEW;
+      startVersion = version;
+    }
+
+    String keys[] = cloud.list(full ? null : new Date(since), prefix);
+
+    synchronized (this) {
+      Listing current = listings.get(prefix);
+      if (full || current == null) {
+        current = new Listing();
+        listings.put(prefix, current);
+      } else {
+        current.incremental++;
+      }
+      current.keys.addAll(Arrays.asList(keys));
+      current.listed = now;
+      current.refreshed = now;
+      current.version = startVersion;
+      return current.keys.toArray(new String[current.keys.size()]);
+    }
+  }
+
+  /**
+   * Updates the cached listings after a write or removal
+   */
+  private synchronized void keyChanged(String key, boolean removed) {
+    version++;
+    for (Map.Entry<String, Listing> e: listings.entrySet()) {
+      Listing listing = e.getValue();
+      /* Listings being refreshed concurrently keep an older version */
+      if (listing.version != version - 1) continue;
+      if (key.startsWith(e.getKey())) {
+        if (removed) listing.keys.remove(key);
+        else listing.keys.add(key);
+      }
+      listing.version = version;
+    }
+  }
+
+  /* ***********************************************************
+   *  Objects
+   *************************************************************/
+
+  public CloudObject get(String key) throws IOException, CloudException {
+    long now = System.currentTimeMillis();
+    Cached cached;
+
+    synchronized (this) {
+      cached = objects.get(key);
+      if (cached != null && cached.data != null && now - cached.validated <= objectTTL) {
+        hits++;
+        return toObject(key, cached);
+      }
+    }
+
+    /* Revalidate through the metadata, which does not transfer the content */
+    String md5 = (cached != null) ? cached.meta.getContentMD5() : null;
+    CloudMetadata meta = null;
+    if (md5 != null || diskDirectory != null) {
+      meta = cloud.getMetadata(key);
+      if (meta == null) {
+        forget(key);
+        return null;
+      }
+    }
+
+    if (cached != null && cached.data != null && meta != null && md5 != null
+        && md5.equals(meta.getContentMD5())) {
+      synchronized (this) {
+        revalidations++;
+        cached.meta = meta;
+        cached.validated = now;
+      }
+      return toObject(key, cached);
+    }
+
+    byte data[] = (meta != null) ? readDisk(meta.getContentMD5()) : null;
+    if (data == null) {
+      synchronized (this) {
+        misses++;
+      }
+      CloudObject obj = cloud.get(key);
+      if (obj == null) {
+        forget(key);
+        return null;
+      }
+      meta = obj.getMetadata();
+      data = readFully(obj.getInputStream());
+      writeDisk(meta.getContentMD5(), data);
+    } else {
+      synchronized (this) {
+        revalidations++;
+      }
+    }
+
+    cached = new Cached(key, meta, data, now);
+    remember(key, cached);
+    return toObject(key, cached);
+  }
+
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Cached cached = objects.get(key);
+      if (cached != null && now - cached.validated <= objectTTL) {
+        hits++;
+        return cached.meta;
+      }
+      misses++;
+    }
+
+    CloudMetadata meta = cloud.getMetadata(key);
+    if (meta == null) {
+      forget(key);
+      return null;
+    }
+
+    synchronized (this) {
+      Cached cached = objects.get(key);
+      if (cached != null && cached.data != null && cached.meta.getContentMD5() != null
+          && cached.meta.getContentMD5().equals(meta.getContentMD5())) {
+        cached.meta = meta;
+        cached.validated = now;
+        return meta;
+      }
+    }
+    remember(key, new Cached(key, meta, null, now));
+    return meta;
+  }
+
+  public void put(String key, String contentType, InputStream data, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    forget(key);
+    cloud.put(key, contentType, data, metadata);
+    keyChanged(key, false);
+  }
+
+  public void putMetadata(String key, String contentType, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    forget(key);
+    cloud.putMetadata(key, contentType, metadata);
+    keyChanged(key, false);
+  }
+
+  public void remove(String key) throws IOException, CloudException {
+    forget(key);
+    cloud.remove(key);
+    keyChanged(key, true);
+  }
+
+  /* ***********************************************************
+   *  Memory tier
+   *************************************************************/
+
+  private synchronized void remember(String key, Cached cached) {
+    if (cached.size() > memorySize) return;
+
+    Cached old = objects.put(key, cached);
+    if (old != null) memoryUsed -= old.size();
+    memoryUsed += cached.size();
+
+    /* Evict the least recently used objects */
+    Iterator<Cached> it = objects.values().iterator();
+    while (memoryUsed > memorySize && it.hasNext()) {
+      Cached victim = it.next();
+      memoryUsed -= victim.size();
+      it.remove();
+    }
+  }
+
+  private synchronized void forget(String key) {
+    Cached old = objects.remove(key);
+    if (old != null) memoryUsed -= old.size();
+  }
+
+  private CloudObject toObject(String key, Cached cached) {
+    CloudURI bucket = cloud.getCloudURI();
+    CloudURI objectURI = new CloudURI(bucket.getBaseURI(), bucket.getBucket(), key,
+                                      bucket.getAuthenticationInfo()) {};
+    return new LocalCloudObject(objectURI, new ByteArrayInputStream(cached.data), cached.meta);
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /* ***********************************************************
+   *  Disk tier
+   *************************************************************/
+
+  private void loadDiskTier() throws CloudException {
+    if (!diskDirectory.isDirectory() && !diskDirectory.mkdirs())
+      throw new CloudException("Cannot create cache directory " + diskDirectory);
+
+    File files[] = diskDirectory.listFiles();
+    Arrays.sort(files, new Comparator<File>() {
+        public int compare(File a, File b) {
+          return (a.lastModified() < b.lastModified()) ? -1 : (a.lastModified() > b.lastModified() ? 1 : 0);
+        }
+      });
+
+    for (File f: files) {
+      if (f.getName().endsWith(".tmp")) {
+        f.delete();
+        continue;
+      }
+      diskFiles.put(f.getName(), f.length());
+      diskUsed += f.length();
+    }
+    logger.debug(String.format("Disk cache %s holds %s bytes", diskDirectory, diskUsed));
+  }
+
+  /**
+   * Reads the content with the given MD5 from the disk tier
+   *
+   * @return The content or null if missing or corrupted
+   */
+  private byte[] readDisk(String md5) {
+    if (diskDirectory == null || md5 == null) return null;
+    synchronized (this) {
+      if (diskFiles.get(md5) == null) return null;
+    }
+
+    try {
+      MD5InputStream in = new MD5InputStream(new FileInputStream(new File(diskDirectory, md5)));
+      byte data[] = readFully(in);
+      if (md5.equalsIgnoreCase(in.getMD5())) return data;
+      logger.warn("Discarding corrupted cache file " + md5);
+    } catch (IOException e) {
+      logger.warn("Error reading cache file " + md5, e);
+    }
+
+    synchronized (this) {
+      Long size = diskFiles.remove(md5);
+      if (size != null) diskUsed -= size;
+    }
+    new File(diskDirectory, md5).delete();
+    return null;
+  }
+
+  private void writeDisk(String md5, byte data[]) {
+    if (diskDirectory == null || md5 == null || data.length > diskSize) return;
+    synchronized (this) {
+      if (diskFiles.get(md5) != null) return;
+    }
+
+    File target = new File(diskDirectory, md5);
+    File tmp = new File(diskDirectory, md5 + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(target)) {
+        tmp.delete();
+        return;
+      }
+    } catch (IOException e) {
+      logger.warn("Error writing cache file " + md5, e);
+      tmp.delete();
+      return;
+    }
+
+    synchronized (this) {
+      Long old = diskFiles.put(md5, (long) data.length);
+      if (old != null) diskUsed -= old;
+      diskUsed += data.length;
+
+      Iterator<Map.Entry<String, Long>> it = diskFiles.entrySet().iterator();
+      while (diskUsed > diskSize && it.hasNext()) {
+        Map.Entry<String, Long> victim = it.next();
+        new File(diskDirectory, victim.getKey()).delete();
+        diskUsed -= victim.getValue();
+        it.remove();
+      }
+    }
+  }
+
+  /* ***********************************************************
+   *  Delegated methods
+   *************************************************************/
+
+  public CloudURI getCloudURI() {
+    return cloud.getCloudURI();
+  }
+
+  public boolean supportsListByDate() {
+    return cloud.supportsListByDate();
+  }
+
+  public boolean supportsListByPrefix() {
+    return cloud.supportsListByPrefix();
+  }
+}
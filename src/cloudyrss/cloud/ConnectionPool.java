@@ -0,0 +1,271 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+import cloudypeer.cloud.CloudException;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of JDBC connections.
+ * <p>
+ * Borrowed connections are proxies: closing them returns the underlying
+ * connection to the pool. When all the connections are in use, borrowers
+ * wait up to a timeout; connections borrowed for longer than the maximum
+ * lease are considered abandoned (e.g. an object stream never closed) and
+ * are reclaimed to let the waiting borrowers proceed.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public abstract class ConnectionPool {
+
+  static Logger logger = Logger.getLogger(ConnectionPool.class);
+
+  /* Twice the default cloud concurrency, leaving room for the other users of the database */
+  public static int DEFAULT_SIZE = 16;
+  public static long DEFAULT_BORROW_TIMEOUT = 30000;
+  public static long DEFAULT_MAX_LEASE = 300000;
+
+  /* Idle connections are checked before reuse only past this age */
+  private static final long VALIDATION_AGE = 60000;
+
+  /**
+   * Connection lent to a borrower
+   */
+  private class Lease implements InvocationHandler {
+    private Connection conn;
+    private long borrowed = System.currentTimeMillis();
+    private volatile boolean closed = false;
+
+    public Lease(Connection conn) {
+      this.conn = conn;
+    }
+
+    public Object invoke(Object proxy, Method method, Object args[]) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close")) {
+        release(this);
+        return null;
+      }
+      if (name.equals("isClosed")) return closed || conn.isClosed();
+      if (name.equals("equals")) return proxy == args[0];
+      if (name.equals("hashCode")) return System.identityHashCode(proxy);
+      if (closed) throw new SQLException("Connection already returned to the pool");
+
+      try {
+        return method.invoke(conn, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Connection waiting to be reused
+   */
+  private static class Idle {
+    private Connection conn;
+    private long since = System.currentTimeMillis();
+
+    public Idle(Connection conn) {
+      this.conn = conn;
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private String name;
+  private int size;
+  private long borrowTimeout;
+  private long maxLease;
+
+  private LinkedList<Idle> idle = new LinkedList<Idle>();
+  private Set<Lease> leased = new HashSet<Lease>();
+  private int connecting;
+  private long created;
+  private long reused;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new pool
+   *
+   * @param name Name of the pool, used in logs
+   * @param size Maximum number of connections open at once
+   * @param borrowTimeout Milliseconds a borrower waits for a free connection
+   * @param maxLease Milliseconds after which a borrowed connection is
+   * considered abandoned
+   */
+  public ConnectionPool(String name, int size, long borrowTimeout, long maxLease) {
+    this.name = name;
+    this.size = Math.max(1, size);
+    this.borrowTimeout = borrowTimeout;
+    this.maxLease = maxLease;
+  }
+
+  /**
+   * Opens a new connection to the database
+   */
+  protected abstract Connection connect() throws CloudException;
+
+  /* ***********************************************************
+   *  Public methods
+   *************************************************************/
+
+  /**
+   * Borrows a connection, waiting if all of them are in use
+   *
+   * @return A connection to be closed once done
+   * @throws CloudException If no connection is available within the timeout
+   */
+  public Connection getConnection() throws CloudException {
+    long deadline = System.currentTimeMillis() + borrowTimeout;
+    Connection conn = null;
+
+    synchronized (this) {
+      while (leased.size() + connecting >= size) {
+        reclaimAbandoned();
+        if (leased.size() + connecting < size) break;
+
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) throw new CloudException("No connection available in pool " + name);
+        try {
+          wait(Math.min(wait, 1000));
+        } catch (InterruptedException e) {
+          throw new CloudException("Interrupted waiting for a connection of pool " + name, e);
+        }
+      }
+
+      while (conn == null && !idle.isEmpty()) {
+        Idle i = idle.removeLast();
+        if (System.currentTimeMillis() - i.since < VALIDATION_AGE || isValid(i.conn)) {
+          conn = i.conn;
+          reused++;
+        } else {
+          closeQuietly(i.conn);
+        }
+      }
+      if (conn != null) return lend(conn);
+
+      /* The slot is taken while connecting, which happens outside the lock */
+      connecting++;
+    }
+
+    try {
+      conn = connect();
+    } catch (CloudException e) {
+      synchronized (this) {
+        connecting--;
+        notifyAll();
+      }
+      throw e;
+    }
+
+    synchronized (this) {
+      connecting--;
+      created++;
+      return lend(conn);
+    }
+  }
+
+  public synchronized int getLeased() {
+    return leased.size();
+  }
+
+  public synchronized int getIdle() {
+    return idle.size();
+  }
+
+  public synchronized long getCreated() {
+    return created;
+  }
+
+  public synchronized long getReused() {
+    return reused;
+  }
+
+  /**
+   * Closes the idle connections; borrowed ones are closed when returned
+   */
+  public synchronized void close() {
+    for (Idle i: idle) closeQuietly(i.conn);
+    idle.clear();
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  private Connection lend(Connection conn) {
+    Lease lease = new Lease(conn);
+    leased.add(lease);
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                               new Class<?>[] { Connection.class }, lease);
+  }
+
+  private synchronized void release(Lease lease) {
+    if (lease.closed) return;
+    lease.closed = true;
+    leased.remove(lease);
+
+    try {
+      if (idle.size() < size && !lease.conn.isClosed()) {
+        if (!lease.conn.getAutoCommit()) {
+          lease.conn.rollback();
+          lease.conn.setAutoCommit(true);
+        }
+        idle.addLast(new Idle(lease.conn));
+      } else {
+        closeQuietly(lease.conn);
+      }
+    } catch (SQLException e) {
+      logger.debug("Dropping broken connection of pool " + name, e);
+      closeQuietly(lease.conn);
+    }
+    notifyAll();
+  }
+
+  private void reclaimAbandoned() {
+    long now = System.currentTimeMillis();
+    Iterator<Lease> it = leased.iterator();
+    while (it.hasNext()) {
+      Lease lease = it.next();
+      if (now - lease.borrowed <= maxLease) continue;
+      logger.warn(String.format("Reclaiming connection of pool %s borrowed %s ms ago", name, now - lease.borrowed));
+      it.remove();
+      lease.closed = true;
+      closeQuietly(lease.conn);
+    }
+  }
+
+  private static boolean isValid(Connection conn) {
+    try {
+      return !conn.isClosed() && conn.getMetaData() != null;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private static void closeQuietly(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {}
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.utils.MD5InputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Storage cloud keeping each object in a file of a local directory.
+ * <p>
+ * The bucket <tt>file://host/database/bucket</tt> maps to the directory
+ * <tt>database/bucket</tt> under the local cloud data directory. Every object
+ * is stored in a data file and a metadata file, both named after the URL
+ * encoded key; the metadata file is written last and marks the object as
+ * present. Both are written to a temporary file first, which is then moved
+ * in place atomically, so readers see either the old or the new file.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class FileStorageCloud extends LocalStorageCloud {
+
+  static Logger logger = Logger.getLogger(FileStorageCloud.class);
+
+  private static final String DATA_SUFFIX = ".data";
+  private static final String META_SUFFIX = ".meta";
+
+  private static final String FIELD_MD5 = "md5";
+  private static final String FIELD_LENGTH = "length";
+  private static final String FIELD_TYPE = "type";
+  private static final String FIELD_TIMESTAMP = "timestamp";
+
+  private File bucketDir;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public FileStorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    super(cloudURI);
+    File dbDir = new File(getDataDirectory(), this.cloudURI.getDatabase());
+    this.bucketDir = new File(dbDir, this.cloudURI.getBucket());
+    if (!bucketDir.isDirectory() && !bucketDir.mkdirs())
+      throw new CloudException("Cannot create bucket directory " + bucketDir);
+  }
+
+  /* ***********************************************************
+   *  File management
+   *************************************************************/
+
+  private static String encode(String key) {
+    try {
+      return URLEncoder.encode(key, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new CloudException("UTF-8 encoding not available", e);
+    }
+  }
+
+  private static String decode(String name) {
+    try {
+      return URLDecoder.decode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new CloudException("UTF-8 encoding not available", e);
+    }
+  }
+
+  private File dataFile(String key) {
+    return new File(bucketDir, encode(key) + DATA_SUFFIX);
+  }
+
+  private File metaFile(String key) {
+    return new File(bucketDir, encode(key) + META_SUFFIX);
+  }
+
+  /**
+   * Creates a temporary file of its own for a writer, so concurrent writes of
+   * the same key do not mix
+   */
+  private File tempFile() throws IOException {
+    return File.createTempFile("put", ".tmp", bucketDir);
+  }
+
+  private static void replace(File tmp, File target) throws IOException {
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Properties readMeta(String key) throws IOException {
+    Properties p = new Properties();
+    InputStream in;
+    try {
+      in = new FileInputStream(metaFile(key));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      p.load(in);
+    } finally {
+      in.close();
+    }
+    return p;
+  }
+
+  private void writeMeta(String key, Properties p) throws IOException {
+    File tmp = tempFile();
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        p.store(out, null);
+      } finally {
+        out.close();
+      }
+      replace(tmp, metaFile(key));
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static CloudMetadata toMetadata(Properties p) {
+    return new LocalCloudMetadata(Long.parseLong(p.getProperty(FIELD_LENGTH)),
+                                  new Date(Long.parseLong(p.getProperty(FIELD_TIMESTAMP))),
+                                  p.getProperty(FIELD_MD5), p.getProperty(FIELD_TYPE));
+  }
+
+  /* ***********************************************************
+   *  StorageCloud implementation
+   *************************************************************/
+
+  public CloudObject get(String key) throws IOException, CloudException {
+    simulateLatency();
+    Properties p = readMeta(key);
+    if (p == null) return null;
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    InputStream in;
+    try {
+      in = new FileInputStream(dataFile(key));
+    } catch (FileNotFoundException e) {
+      /* Removed since its metadata was read */
+      return null;
+    }
+    try {
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) data.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    return new LocalCloudObject(objectURI(key), new ByteArrayInputStream(data.toByteArray()), toMetadata(p));
+  }
+
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    simulateLatency();
+    Properties p = readMeta(key);
+    return (p == null) ? null : toMetadata(p);
+  }
+
+  public void put(String key, String contentType, InputStream data, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    simulateLatency();
+    logger.debug("Putting entry: " + key);
+
+    /* The data is in place before the metadata which makes the object visible */
+    File tmp = tempFile();
+    MD5InputStream in = new MD5InputStream(data);
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        byte buf[] = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+      } finally {
+        out.close();
+        in.close();
+      }
+      replace(tmp, dataFile(key));
+    } finally {
+      tmp.delete();
+    }
+
+    Properties p = new Properties();
+    p.setProperty(FIELD_MD5, in.getMD5());
+    p.setProperty(FIELD_LENGTH, "" + in.getLength());
+    p.setProperty(FIELD_TYPE, (contentType == null) ? "" : contentType);
+    p.setProperty(FIELD_TIMESTAMP, "" + (System.currentTimeMillis() / 1000 * 1000));
+    writeMeta(key, p);
+  }
+
+  public void putMetadata(String key, String contentType, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    simulateLatency();
+    Properties p = readMeta(key);
+    if (p == null) throw new CloudException("Entry not found: " + key);
+
+    p.setProperty(FIELD_TYPE, (contentType == null) ? "" : contentType);
+    p.setProperty(FIELD_TIMESTAMP, "" + (System.currentTimeMillis() / 1000 * 1000));
+    writeMeta(key, p);
+  }
+
+  public void remove(String key) throws IOException, CloudException {
+    simulateLatency();
+    metaFile(key).delete();
+    dataFile(key).delete();
+  }
+
+  public String[] list(Date date, String prefix) throws IOException, CloudException {
+    simulateLatency();
+    if (prefix == null) prefix = "";
+    long since = (date == null) ? -1 : date.getTime() / 1000;
+
+    ArrayList<String> keys = new ArrayList<String>();
+    String names[] = bucketDir.list();
+    if (names == null) throw new IOException("Cannot list bucket directory " + bucketDir);
+
+    for (String name: names) {
+      if (!name.endsWith(META_SUFFIX)) continue;
+      String key = decode(name.substring(0, name.length() - META_SUFFIX.length()));
+      if (!key.startsWith(prefix)) continue;
+
+      if (since >= 0) {
+        Properties p = readMeta(key);
+        if (p == null || Long.parseLong(p.getProperty(FIELD_TIMESTAMP)) / 1000 <= since) continue;
+      }
+      keys.add(key);
+    }
+    return keys.toArray(new String[keys.size()]);
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.utils.MD5InputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Storage cloud backed by an embedded HSQLDB database.
+ * <p>
+ * Each bucket is a table with the same columns used by the MySQL storage
+ * cloud (see <tt>create-mysqlcloud.sh</tt>), created on first use. The URI
+ * <tt>hsqldb://mem/database/bucket</tt> selects an in-memory database, any
+ * other host a database file under the local cloud data directory.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class HSQLDBStorageCloud extends LocalStorageCloud implements BatchStorageCloud {
+
+  static Logger logger = Logger.getLogger(HSQLDBStorageCloud.class);
+
+  private static final String DRIVER = "org.hsqldb.jdbcDriver";
+
+  private static final String TABLE_DEFINITION =
+    "cloud_key VARCHAR(500) PRIMARY KEY, cloud_value LONGVARBINARY, cloud_timestamp INTEGER, "
+    + "cloud_content_md5 VARCHAR(32), cloud_content_length INTEGER, cloud_content_type VARCHAR(128)";
+
+  private String jdbcURL;
+  private String table;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public HSQLDBStorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    super(cloudURI);
+
+    try {
+      Class.forName(DRIVER);
+    } catch (ClassNotFoundException e) {
+      throw new CloudException("HSQLDB driver not found", e);
+    }
+
+    String db = this.cloudURI.getDatabase();
+    if (this.cloudURI.isInMemory()) {
+      jdbcURL = "jdbc:hsqldb:mem:" + db;
+    } else {
+      File dir = getDataDirectory();
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new CloudException("Cannot create data directory " + dir);
+      jdbcURL = "jdbc:hsqldb:file:" + new File(dir, db).getPath();
+    }
+    table = this.cloudURI.getBucket();
+    createTable();
+  }
+
+  /* ***********************************************************
+   *  Database management
+   *************************************************************/
+
+  private Connection connect() throws CloudException {
+    try {
+      return DriverManager.getConnection(jdbcURL, "sa", "");
+    } catch (SQLException e) {
+      throw new CloudException("Cannot connect to " + jdbcURL, e);
+    }
+  }
+
+  private static void close(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {}
+  }
+
+  private void createTable() throws CloudException {
+    Connection conn = connect();
+    try {
+      Statement st = conn.createStatement();
+      st.execute(String.format("CREATE CACHED TABLE %s (%s)", table, TABLE_DEFINITION));
+      st.close();
+      logger.info("Created bucket table " + table);
+    } catch (SQLException e) {
+      logger.debug("Bucket table " + table + " not created: " + e.getMessage());
+    } finally {
+      close(conn);
+    }
+  }
+
+  private static CloudMetadata toMetadata(ResultSet rs) throws SQLException {
+    return new LocalCloudMetadata(rs.getLong("cloud_content_length"),
+                                  new Date(rs.getLong("cloud_timestamp") * 1000),
+                                  rs.getString("cloud_content_md5"), rs.getString("cloud_content_type"));
+  }
+
+  /* ***********************************************************
+   *  StorageCloud implementation
+   *************************************************************/
+
+  public CloudObject get(String key) throws IOException, CloudException {
+    simulateLatency();
+    Connection conn = connect();
+    try {
+      PreparedStatement st = conn.prepareStatement(String.format("SELECT * FROM %s WHERE cloud_key = ?", table));
+      st.setString(1, key);
+      ResultSet rs = st.executeQuery();
+      CloudObject obj = null;
+      if (rs.next()) {
+        obj = new LocalCloudObject(objectURI(key), new ByteArrayInputStream(rs.getBytes("cloud_value")),
+                                   toMetadata(rs));
+      }
+      st.close();
+      return obj;
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving " + key, e);
+    } finally {
+      close(conn);
+    }
+  }
+
+  public CloudMetadata getMetadata(String key) throws IOException, CloudException {
+    simulateLatency();
+    Connection conn = connect();
+    try {
+      PreparedStatement st = conn.prepareStatement(String.format(
+        "SELECT cloud_timestamp, cloud_content_md5, cloud_content_length, cloud_content_type "
+        + "FROM %s WHERE cloud_key = ?", table));
+      st.setString(1, key);
+      ResultSet rs = st.executeQuery();
+      CloudMetadata meta = rs.next() ? toMetadata(rs) : null;
+      st.close();
+      return meta;
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving metadata of " + key, e);
+    } finally {
+      close(conn);
+    }
+  }
+
+  public void put(String key, String contentType, InputStream data, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    simulateLatency();
+    logger.debug("Putting entry: " + key);
+
+    MD5InputStream in = new MD5InputStream(data);
+    ByteArrayOutputStream value = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) value.write(buf, 0, n);
+    } finally {
+      in.close();
+    }
+    long timestamp = System.currentTimeMillis() / 1000;
+
+    Connection conn = connect();
+    try {
+      if (update(conn, key, value.toByteArray(), timestamp, in, contentType) > 0) return;
+
+      try {
+        PreparedStatement st = conn.prepareStatement(String.format(
+          "INSERT INTO %s (cloud_key, cloud_value, cloud_timestamp, cloud_content_md5, "
+          + "cloud_content_length, cloud_content_type) VALUES (?, ?, ?, ?, ?, ?)", table));
+        st.setString(1, key);
+        st.setBytes(2, value.toByteArray());
+        st.setLong(3, timestamp);
+        st.setString(4, in.getMD5());
+        st.setLong(5, in.getLength());
+        st.setString(6, contentType);
+        st.executeUpdate();
+        st.close();
+      } catch (SQLException e) {
+        /* A concurrent put inserted the key first: overwrite it as the later put */
+        if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) throw e;
+        if (update(conn, key, value.toByteArray(), timestamp, in, contentType) == 0) throw e;
+      }
+    } catch (SQLException e) {
+      throw new CloudException("Error putting " + key, e);
+    } finally {
+      close(conn);
+    }
+  }
+
+  private int update(Connection conn, String key, byte value[], long timestamp, MD5InputStream in,
+                     String contentType) throws SQLException
+  {
+    PreparedStatement st = conn.prepareStatement(String.format(
+      "UPDATE %s SET cloud_value = ?, cloud_timestamp = ?, cloud_content_md5 = ?, "
+      + "cloud_content_length = ?, cloud_content_type = ? WHERE cloud_key = ?", table));
+    try {
+      st.setBytes(1, value);
+      st.setLong(2, timestamp);
+      st.setString(3, in.getMD5());
+      st.setLong(4, in.getLength());
+      st.setString(5, contentType);
+      st.setString(6, key);
+      return st.executeUpdate();
+    } finally {
+      st.close();
+    }
+  }
+
+  public void putMetadata(String key, String contentType, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    simulateLatency();
+    Connection conn = connect();
+    try {
+      PreparedStatement st = conn.prepareStatement(String.format(
+        "UPDATE %s SET cloud_timestamp = ?, cloud_content_type = ? WHERE cloud_key = ?", table));
+      st.setLong(1, System.currentTimeMillis() / 1000);
+      st.setString(2, contentType);
+      st.setString(3, key);
+      int updated = st.executeUpdate();
+      st.close();
+      if (updated == 0) throw new CloudException("Entry not found: " + key);
+    } catch (SQLException e) {
+      throw new CloudException("Error putting metadata of " + key, e);
+    } finally {
+      close(conn);
+    }
+  }
+
+  public void remove(String key) throws IOException, CloudException {
+    simulateLatency();
+    Connection conn = connect();
+    try {
+      PreparedStatement st = conn.prepareStatement(String.format("DELETE FROM %s WHERE cloud_key = ?", table));
+      st.setString(1, key);
+      st.executeUpdate();
+      st.close();
+    } catch (SQLException e) {
+      throw new CloudException("Error removing " + key, e);
+    } finally {
+      close(conn);
+    }
+  }
+
+  public Map<String, CloudObject> getAll(String keys[]) throws IOException, CloudException {
+    HashMap<String, CloudObject> objects = new HashMap<String, CloudObject>();
+    if (keys.length == 0) return objects;
+    simulateLatency();
+
+    StringBuilder query = new StringBuilder(String.format("SELECT * FROM %s WHERE cloud_key IN (", table));
+    for (int i = 0; i < keys.length; i++) query.append((i == 0) ? "?" : ", ?");
+    query.append(")");
+
+    Connection conn = connect();
+    try {
+      PreparedStatement st = conn.prepareStatement(query.toString());
+      for (int i = 0; i < keys.length; i++) st.setString(i + 1, keys[i]);
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) {
+        String key = rs.getString("cloud_key");
+        objects.put(key, new LocalCloudObject(objectURI(key), new ByteArrayInputStream(rs.getBytes("cloud_value")),
+                                              toMetadata(rs)));
+      }
+      st.close();
+      return objects;
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving " + keys.length + " objects", e);
+    } finally {
+      close(conn);
+    }
+  }
+
+  public String[] list(Date date, String prefix) throws IOException, CloudException {
+    simulateLatency();
+    if (prefix == null) prefix = "";
+    long since = (date == null) ? -1 : date.getTime() / 1000;
+
+    Connection conn = connect();
+    try {
+      PreparedStatement st = conn.prepareStatement(String.format(
+        "SELECT cloud_key FROM %s WHERE cloud_timestamp > ? AND cloud_key LIKE ? ESCAPE '\\'", table));
+      st.setLong(1, since);
+      st.setString(2, prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+      ResultSet rs = st.executeQuery();
+
+      ArrayList<String> keys = new ArrayList<String>();
+      while (rs.next()) keys.add(rs.getString(1));
+      st.close();
+      return keys.toArray(new String[keys.size()]);
+    } catch (SQLException e) {
+      throw new CloudException("Error listing bucket " + table, e);
+    } finally {
+      close(conn);
+    }
+  }
+}
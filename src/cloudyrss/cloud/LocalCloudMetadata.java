@@ -0,0 +1,64 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudMetadata;
+
+/**
+ * Metadata of an object held by a local storage cloud. As for the MySQL
+ * provider, user metadata is not persisted.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class LocalCloudMetadata implements CloudMetadata {
+
+  private long contentLength;
+  private Date lastModified;
+  private String contentMD5;
+  private String contentType;
+
+  public LocalCloudMetadata(long contentLength, Date lastModified, String contentMD5, String contentType)
+    throws IllegalArgumentException
+  {
+    if (contentLength < 0) throw new IllegalArgumentException("Illegal content length");
+    if (lastModified == null) throw new IllegalArgumentException("Null modification date");
+    if (contentMD5 == null) throw new IllegalArgumentException("Null content MD5");
+
+    this.contentLength = contentLength;
+    this.lastModified = lastModified;
+    this.contentMD5 = contentMD5;
+    this.contentType = contentType;
+  }
+
+  public String getContentMD5() {
+    return contentMD5;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  public Date getLastModified() {
+    return lastModified;
+  }
+
+  public String getVersionID() {
+    return null;
+  }
+
+  public Map<String, String> getUserMetadata() {
+    return new HashMap<String, String>();
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.InputStream;
+
+import cloudypeer.cloud.CloudMetadata;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * Object held by a local storage cloud
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class LocalCloudObject implements CloudObject {
+
+  private CloudURI objectURI;
+  private InputStream in;
+  private CloudMetadata meta;
+
+  public LocalCloudObject(CloudURI objectURI, InputStream in, CloudMetadata meta) {
+    this.objectURI = objectURI;
+    this.in = in;
+    this.meta = meta;
+  }
+
+  public String getKey() {
+    return objectURI.getKey();
+  }
+
+  public final InputStream getInputStream() {
+    return in;
+  }
+
+  public final CloudURI getCloudURI() {
+    return objectURI;
+  }
+
+  public final CloudMetadata getMetadata() {
+    return meta;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import cloudypeer.cloud.CloudURI;
+
+/**
+ * Cloud URI for the local storage cloud providers.
+ * <p>
+ * Local URIs follow the layout of MySQL ones:
+ * <tt>scheme://host/database/bucket[/key]</tt>, where the scheme is either
+ * <tt>file</tt> or <tt>hsqldb</tt>. The host <tt>mem</tt> selects a volatile
+ * in-memory database for the HSQLDB provider and is otherwise ignored.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class LocalCloudURI extends CloudURI {
+
+  public static String SCHEME_FILE = "file";
+  public static String SCHEME_HSQLDB = "hsqldb";
+
+  public LocalCloudURI(URI uri) throws URISyntaxException, IllegalArgumentException {
+    String scheme = uri.getScheme();
+    if (!SCHEME_FILE.equals(scheme) && !SCHEME_HSQLDB.equals(scheme))
+      throw new IllegalArgumentException("Not a valid local cloud URI");
+
+    String path = uri.getPath();
+    if (path == null || !path.startsWith("/"))
+      throw new IllegalArgumentException("URI path not absolute!");
+
+    /* Keys may contain slashes: split only database and bucket */
+    String components[] = path.substring(1).split("/", 3);
+    if (components.length < 2)
+      throw new IllegalArgumentException("Too few path components");
+
+    String key = (components.length == 3 && components[2].length() > 0) ? components[2] : null;
+    URI baseURI = new URI(scheme, uri.getUserInfo(), uri.getHost(), uri.getPort(), "/" + components[0],
+                          null, null);
+    initCloudURI(baseURI.normalize(), components[1], key, null);
+  }
+
+  public LocalCloudURI(URI baseURI, String bucket, String key) throws URISyntaxException {
+    initCloudURI(baseURI, bucket, key, null);
+  }
+
+  /**
+   * Returns the database name, i.e. the first path component
+   */
+  public String getDatabase() {
+    return getBaseURI().getPath().substring(1);
+  }
+
+  public boolean isInMemory() {
+    return "mem".equals(getBaseURI().getHost());
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.Random;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+
+/**
+ * Base class for storage clouds running on the local machine, meant for
+ * tests and benchmarks.
+ * <p>
+ * Every operation can be delayed to mimic the round trip of a remote cloud.
+ * The delay is <i>latency</i> plus a uniformly distributed <i>jitter</i>,
+ * both in milliseconds, configured through the system properties
+ * <tt>cloudyrss.localcloud.latency</tt> and
+ * <tt>cloudyrss.localcloud.jitter</tt> or {@link #setLatency(long, long)}.
+ * Data is kept under the directory named by the system property
+ * <tt>cloudyrss.localcloud.dir</tt>.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public abstract class LocalStorageCloud extends StorageCloud {
+
+  public static final String PROPERTY_LATENCY = "cloudyrss.localcloud.latency";
+  public static final String PROPERTY_JITTER = "cloudyrss.localcloud.jitter";
+  public static final String PROPERTY_DIR = "cloudyrss.localcloud.dir";
+
+  private static volatile long latency = Long.getLong(PROPERTY_LATENCY, 0);
+  private static volatile long jitter = Long.getLong(PROPERTY_JITTER, 0);
+  private static Random random = new Random();
+
+  protected LocalCloudURI cloudURI;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  protected LocalStorageCloud(CloudURI cloudURI) throws IllegalArgumentException {
+    if (!(cloudURI instanceof LocalCloudURI))
+      throw new IllegalArgumentException("CloudURI not supported");
+    this.cloudURI = (LocalCloudURI) cloudURI;
+  }
+
+  /* ***********************************************************
+   *  Latency injection
+   *************************************************************/
+
+  /**
+   * Sets the delay injected in every operation of every local cloud
+   */
+  public static void setLatency(long latency, long jitter) {
+    LocalStorageCloud.latency = latency;
+    LocalStorageCloud.jitter = jitter;
+  }
+
+  public static long getLatency() {
+    return latency;
+  }
+
+  public static long getJitter() {
+    return jitter;
+  }
+
+  protected void simulateLatency() throws CloudException {
+    long delay = latency;
+    if (jitter > 0) {
+      synchronized (random) {
+        delay += (long) (random.nextDouble() * jitter);
+      }
+    }
+    if (delay <= 0) return;
+
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CloudException("Interrupted while simulating latency", e);
+    }
+  }
+
+  /* ***********************************************************
+   *  Helpers
+   *************************************************************/
+
+  /**
+   * Returns the directory holding the data of the local clouds
+   */
+  protected static File getDataDirectory() {
+    String dir = System.getProperty(PROPERTY_DIR);
+    if (dir == null) dir = System.getProperty("java.io.tmpdir") + File.separator + "cloudyrss-cloud";
+    return new File(dir);
+  }
+
+  protected CloudURI objectURI(String key) throws CloudException {
+    try {
+      return new LocalCloudURI(cloudURI.getBaseURI(), cloudURI.getBucket(), key);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Syntax error while creating cloud URI!", e);
+    }
+  }
+
+  public CloudURI getCloudURI() {
+    return cloudURI;
+  }
+
+  public boolean supportsListByDate() {
+    return true;
+  }
+
+  public boolean supportsListByPrefix() {
+    return true;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudObject;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.mysql.MySQLCloudMetadata;
+import cloudypeer.cloud.mysql.MySQLCloudURI;
+import cloudypeer.cloud.mysql.MySQLStorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * MySQL storage cloud reusing its connections.
+ * <p>
+ * The base provider opens a new JDBC connection for every request. Here
+ * connections are taken from a {@link ConnectionPool} shared by all the
+ * buckets of the same database and credentials, bounded to the pool size
+ * given by the first cloud of the database, {@link ConnectionPool#DEFAULT_SIZE}
+ * connections unless specified. Objects are read in memory, so a connection
+ * goes back to the pool as soon as the query is done, and can also be read
+ * in batches, with a single query per batch. The provider is registered as
+ * <tt>mysql-pooled</tt>.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class PooledMySQLStorageCloud extends MySQLStorageCloud implements BatchStorageCloud {
+
+  static Logger logger = Logger.getLogger(PooledMySQLStorageCloud.class);
+
+  private static HashMap<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private ConnectionPool pool;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public PooledMySQLStorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    this(cloudURI, ConnectionPool.DEFAULT_SIZE);
+  }
+
+  /**
+   * Creates a new cloud
+   *
+   * @param cloudURI URI of the bucket
+   * @param poolSize Maximum number of connections to the database, used if
+   * this is the first cloud of the database
+   */
+  public PooledMySQLStorageCloud(CloudURI cloudURI, int poolSize) throws IllegalArgumentException, CloudException {
+    super(cloudURI);
+
+    String database = getCloudURI().getBaseURI().toString();
+    /* Clouds of the same database with different credentials must not share connections */
+    String poolKey = database + " " + Arrays.toString(getCloudURI().getAuthenticationInfo());
+    synchronized (pools) {
+      pool = pools.get(poolKey);
+      if (pool == null) {
+        final PooledMySQLStorageCloud creator = this;
+        pool = new ConnectionPool(database, poolSize, ConnectionPool.DEFAULT_BORROW_TIMEOUT,
+                                  ConnectionPool.DEFAULT_MAX_LEASE) {
+            protected Connection connect() throws CloudException {
+              return creator.openConnection();
+            }
+          };
+        pools.put(poolKey, pool);
+        logger.info("Pooling connections to " + database);
+      }
+    }
+  }
+
+  /* ***********************************************************
+   *  Connections
+   *************************************************************/
+
+  private Connection openConnection() {
+    return super.getConnection();
+  }
+
+  protected Connection getConnection() {
+    return pool.getConnection();
+  }
+
+  public ConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Reads the object in memory: the stream of the base provider would keep
+   * a pooled connection until closed by the caller.
+   */
+  public CloudObject get(String key) throws CloudException {
+    try {
+      return getAll(new String[] { key }).get(key);
+    } catch (IOException e) {
+      throw new CloudException("Error retrieving " + key, e);
+    }
+  }
+
+  /* ***********************************************************
+   *  BatchStorageCloud implementation
+   *************************************************************/
+
+  public Map<String, CloudObject> getAll(String keys[]) throws IOException, CloudException {
+    HashMap<String, CloudObject> objects = new HashMap<String, CloudObject>();
+    if (keys.length == 0) return objects;
+
+    CloudURI uri = getCloudURI();
+    StringBuilder query = new StringBuilder();
+    query.append(String.format("SELECT %s, %s, %s, %s, %s, %s FROM %s WHERE %s IN (", FIELD_NAME_KEY,
+                               FIELD_NAME_VALUE, FIELD_NAME_LAST_MODIFIED, FIELD_NAME_CONTENT_LENGTH,
+                               FIELD_NAME_CONTENT_MD5, FIELD_NAME_CONTENT_TYPE, uri.getBucket(), FIELD_NAME_KEY));
+    for (int i = 0; i < keys.length; i++) query.append((i == 0) ? "?" : ", ?");
+    query.append(")");
+
+    Connection conn = getConnection();
+    try {
+      PreparedStatement st = conn.prepareStatement(query.toString());
+      for (int i = 0; i < keys.length; i++) st.setString(i + 1, keys[i]);
+      ResultSet rs = st.executeQuery();
+      while (rs.next()) {
+        String key = rs.getString(1);
+        byte data[] = rs.getBytes(2);
+        MySQLCloudMetadata meta = new MySQLCloudMetadata(rs.getLong(4), new Date(rs.getLong(3) * 1000),
+                                                         rs.getString(5), rs.getString(6));
+        CloudURI objectURI = new MySQLCloudURI(uri.getBaseURI(), uri.getBucket(), key,
+                                               uri.getAuthenticationInfo());
+        objects.put(key, new LocalCloudObject(objectURI, new ByteArrayInputStream((data == null) ? new byte[0]
+                                                                                  : data), meta));
+      }
+      st.close();
+      return objects;
+    } catch (SQLException e) {
+      throw new CloudException("Error retrieving " + keys.length + " objects", e);
+    } catch (URISyntaxException e) {
+      throw new CloudException("Error creating object cloud URI", e);
+    } finally {
+      try {
+        conn.close();
+      } catch (SQLException e) {}
+    }
+  }
+}
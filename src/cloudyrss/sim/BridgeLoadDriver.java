@@ -0,0 +1,320 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudyrss.CloudyRSSException;
+import cloudyrss.RSSEntry;
+import cloudyrss.RSSFeedBridge;
+import cloudyrss.cloud.AsyncStorageCloud;
+import cloudyrss.cloud.LocalStorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * Load test of the feed bridge against a {@link SyntheticFeedServer}.
+ * <p>
+ * The bridge runs in this JVM, polling the synthetic sources and uploading
+ * to a {@link RecordingStorageCloud}, which reports every upload. Sources
+ * publish items for the configured duration; after a drain period the
+ * driver reports how many items per second the bridge discovered and
+ * uploaded, the delay from the first time an item was served to its upload
+ * and from its publication to its upload, and the items the bridge missed.
+ * The parameters are read from a properties file, see
+ * <tt>load-test.properties</tt>.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class BridgeLoadDriver {
+
+  static Logger logger = Logger.getLogger(BridgeLoadDriver.class);
+
+  public static String FEED_PREFIX = "load";
+  public static String CLOUD_PROVIDER = "recording";
+
+  /* Bridge settings passed through unchanged */
+  private static final String BRIDGE_KEYS[] = new String[] {
+    "fetch-period", "fetch-threads", "queue-capacity", "upload-batch-size", "item-window", "dedup-distance",
+    "cloud-async", "cloud-concurrency", "cloud-timeout", "key-style"
+  };
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private SyntheticFeedServer server;
+  private Properties bridgeConf = new Properties();
+  private StorageCloud storageCloud;
+  private long duration;
+  private long drain;
+  private long progressPeriod;
+
+  private Map<String, Long> uploaded = new ConcurrentHashMap<String, Long>();
+  private long reuploads = 0;
+  private long foreign = 0;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public BridgeLoadDriver(Properties conf) throws CloudyRSSException {
+    int sources = Integer.parseInt(conf.getProperty("sources", "50"));
+    int feeds = Math.max(1, Integer.parseInt(conf.getProperty("feeds", "1")));
+    this.duration = Long.parseLong(conf.getProperty("duration", "60")) * 1000;
+    this.drain = Long.parseLong(conf.getProperty("drain", "30")) * 1000;
+    this.progressPeriod = Long.parseLong(conf.getProperty("progress-period", "10")) * 1000;
+
+    try {
+      server = new SyntheticFeedServer(Integer.parseInt(conf.getProperty("port", "0")), sources,
+                                       Double.parseDouble(conf.getProperty("item-rate", "0.2")),
+                                       conf.getProperty("format", SyntheticFeedServer.FORMAT_MIXED).trim());
+    } catch (IOException e) {
+      throw new CloudyRSSException("Cannot start the synthetic feed server", e);
+    }
+    server.setItemsPerDocument(Integer.parseInt(conf.getProperty("items-per-document",
+                                                                 "" + SyntheticFeedServer.DEFAULT_ITEMS_PER_DOCUMENT)));
+    server.setItemSize(Integer.parseInt(conf.getProperty("item-size", "" + SyntheticFeedServer.DEFAULT_ITEM_SIZE)));
+    server.setDuplicateRatio(Double.parseDouble(conf.getProperty("duplicate-ratio", "0")));
+    server.setLatency(Long.parseLong(conf.getProperty("latency", "0")), Long.parseLong(conf.getProperty("jitter", "0")));
+    server.setErrorRatio(Double.parseDouble(conf.getProperty("error-ratio", "0")));
+    server.setConditionalGet(Boolean.parseBoolean(conf.getProperty("conditional-get", "true")));
+
+    LocalStorageCloud.setLatency(Long.parseLong(conf.getProperty("cloud-latency", "20")),
+                                 Long.parseLong(conf.getProperty("cloud-jitter", "10")));
+    String cloudURIString = conf.getProperty("cloud-uri", "hsqldb://mem/load/feeds").trim();
+    try {
+      storageCloud = StorageCloud.getInstance(CLOUD_PROVIDER, CloudURI.getInstance(CLOUD_PROVIDER,
+                                                                                   new URI(cloudURIString)));
+    } catch (URISyntaxException e) {
+      throw new CloudyRSSException("Invalid cloud URI", e);
+    } catch (InstantiationException e) {
+      throw new CloudyRSSException("Problem loading the recording cloud provider", e);
+    }
+
+    /* Bridge configuration: sources are spread over the feeds */
+    for (String key: BRIDGE_KEYS) {
+      String value = conf.getProperty(key);
+      if (value != null) bridgeConf.setProperty(key, value.trim());
+    }
+    if (bridgeConf.getProperty("fetch-period") == null) bridgeConf.setProperty("fetch-period", "5");
+    bridgeConf.setProperty("segment-period", "0");
+
+    StringBuilder feedNames = new StringBuilder();
+    for (int f = 0; f < feeds; f++) {
+      StringBuilder urls = new StringBuilder();
+      for (int s = f; s < sources; s += feeds) urls.append(server.getFeedURL(s)).append(";");
+
+      String feed = FEED_PREFIX + f;
+      feedNames.append(feed).append(";");
+      bridgeConf.setProperty(feed + ".feedurls", urls.toString());
+      bridgeConf.setProperty(feed + ".cloudProvider", CLOUD_PROVIDER);
+      bridgeConf.setProperty(feed + ".cloudURI", cloudURIString);
+    }
+    bridgeConf.setProperty("feeds", feedNames.toString());
+  }
+
+  /* ***********************************************************
+   *  Upload tracking
+   *************************************************************/
+
+  private void uploaded(byte data[]) {
+    long now = System.currentTimeMillis();
+    RSSEntry entry;
+    try {
+      entry = (RSSEntry) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    } catch (IOException e) {
+      logger.warn("Cannot decode uploaded entry", e);
+      return;
+    } catch (ClassNotFoundException e) {
+      logger.warn("Cannot decode uploaded entry", e);
+      return;
+    }
+
+    long item[] = (entry.getLink() != null) ? SyntheticFeedServer.parseItemLink(entry.getLink().toString()) : null;
+    if (item == null) {
+      synchronized (this) {
+        foreign++;
+      }
+      return;
+    }
+
+    String key = item[0] + "/" + item[1];
+    synchronized (this) {
+      if (uploaded.containsKey(key)) reuploads++;
+      else uploaded.put(key, now);
+    }
+  }
+
+  /* ***********************************************************
+   *  Load test
+   *************************************************************/
+
+  public void run() throws InterruptedException {
+    RecordingStorageCloud.setUploadListener(new RecordingStorageCloud.UploadListener() {
+        public void uploaded(String key, byte data[]) {
+          BridgeLoadDriver.this.uploaded(data);
+        }
+      });
+
+    final RSSFeedBridge bridge = new RSSFeedBridge(bridgeConf);
+    Thread bridgeThread = new Thread(new Runnable() {
+        public void run() {
+          bridge.run();
+        }
+      }, "bridge");
+
+    server.start();
+    bridgeThread.start();
+    logger.info(String.format("Publishing for %s seconds", duration / 1000));
+
+    long start = System.currentTimeMillis();
+    long end = start + duration;
+    int last = 0;
+    while (System.currentTimeMillis() < end) {
+      Thread.sleep(Math.max(1, Math.min(progressPeriod, end - System.currentTimeMillis())));
+      int count = uploaded.size();
+      logger.info(String.format("%s items uploaded, %.1f items/s", count,
+                                (count - last) * 1000.0 / progressPeriod));
+      last = count;
+    }
+
+    server.stopPublishing();
+    logger.info(String.format("Publishing stopped, waiting %s seconds for the bridge", drain / 1000));
+    Thread.sleep(drain);
+
+    report(start, end);
+    bridgeThread.interrupt();
+    bridgeThread.join(10000);
+    server.terminate();
+    RecordingStorageCloud.setUploadListener(null);
+  }
+
+  /* ***********************************************************
+   *  Report
+   *************************************************************/
+
+  private static long[] toArray(List<Long> values) {
+    long array[] = new long[values.size()];
+    for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+    return array;
+  }
+
+  private synchronized void report(long start, long end) {
+    long published = 0;
+    long duplicates = 0;
+    long discovered = 0;
+    long uploadedItems = 0;
+    long uploadedDuplicates = 0;
+    long missed = 0;
+    long uploadedInTime = 0;
+    long lastUpload = start;
+    List<Long> discoveryDelays = new ArrayList<Long>();
+    List<Long> publicationDelays = new ArrayList<Long>();
+
+    /*
+     * An item and the duplicates following it share their content: the bridge
+     * should upload exactly one of them, whichever it parses first
+     */
+    for (int s = 0; s < server.getSources(); s++) {
+      long items = server.publishedItems(s);
+      published += items;
+      int copiesUploaded = 0;
+      for (long i = 0; i < items; i++) {
+        boolean duplicate = server.isDuplicate(s, i);
+        if (duplicate) {
+          duplicates++;
+        } else {
+          if (i > 0 && copiesUploaded == 0) missed++;
+          copiesUploaded = 0;
+        }
+
+        Long served = server.discovered(s, i);
+        if (served != null) discovered++;
+
+        Long upload = uploaded.get(s + "/" + i);
+        if (upload == null) continue;
+
+        uploadedItems++;
+        if (++copiesUploaded > 1) uploadedDuplicates++;
+        if (upload <= end) uploadedInTime++;
+        lastUpload = Math.max(lastUpload, upload);
+        publicationDelays.add(Math.max(0, upload - server.published(s, i)));
+        if (served != null) discoveryDelays.add(Math.max(0, upload - served));
+      }
+      if (items > 0 && copiesUploaded == 0) missed++;
+    }
+
+    double seconds = duration / 1000.0;
+    System.out.println(String.format("Sources: %s, %s served requests (%s not modified, %s errors), %.1f MB served",
+                                     server.getSources(), server.getRequests(), server.getNotModified(),
+                                     server.getErrors(), server.getBytes() / 1048576.0));
+    System.out.println(String.format("Items published: %s in %.0f s (%.1f items/s), %s duplicates",
+                                     published, seconds, published / seconds, duplicates));
+    System.out.println(String.format("Items discovered: %s (%.1f items/s)", discovered, discovered / seconds));
+    System.out.println(String.format("Items uploaded: %s, %.1f items/s while publishing, %.1f items/s overall",
+                                     uploadedItems, uploadedInTime / seconds,
+                                     uploadedItems * 1000.0 / Math.max(1, lastUpload - start)));
+    System.out.println(String.format("Duplicates uploaded: %s of %s, items missed: %s, uploaded again: %s",
+                                     uploadedDuplicates, duplicates, missed, reuploads));
+    if (foreign > 0) System.out.println("Unknown entries uploaded: " + foreign);
+    System.out.println("Discovery to upload delay (ms): "
+                       + PropagationSimulator.distribution(toArray(discoveryDelays)));
+    System.out.println("Publication to upload delay (ms): "
+                       + PropagationSimulator.distribution(toArray(publicationDelays)));
+
+    if (Boolean.parseBoolean(bridgeConf.getProperty("cloud-async", "false"))) {
+      try {
+        System.out.println("Cloud requests: " + AsyncStorageCloud.getShared(storageCloud).getRequests());
+      } catch (CloudException e) {
+        logger.warn("Cannot read cloud request count", e);
+      }
+    }
+  }
+
+  /* ***********************************************************
+   *  Main
+   *************************************************************/
+
+  public static void main(String args[]) {
+    Properties conf = new Properties();
+    if (args.length > 0) {
+      FileInputStream in = null;
+      try {
+        in = new FileInputStream(args[0]);
+        conf.load(in);
+      } catch (IOException e) {
+        System.err.println("Error reading configuration file " + args[0] + ": " + e.getMessage());
+        System.exit(1);
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {}
+        }
+      }
+    }
+
+    try {
+      new BridgeLoadDriver(conf).run();
+    } catch (Exception e) {
+      logger.error("Load test failed", e);
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+}
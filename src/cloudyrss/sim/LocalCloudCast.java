@@ -0,0 +1,137 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cloudypeer.CloudNode;
+import cloudypeer.Metadata;
+import cloudypeer.Node;
+import cloudypeer.PeerNode;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.peersampling.View;
+import cloudypeer.peersampling.cloudcast.CloudCast;
+import org.apache.log4j.Logger;
+
+/**
+ * Peer sampling among the peers running in the same JVM.
+ * <p>
+ * Stands in for the CloudCast implementation, which needs native libraries
+ * and a MySQL cloud. Peers sharing the same view URI register in a process
+ * wide membership list while running; every period each peer draws a random
+ * view out of it, always including the cloud node as CloudCast does.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class LocalCloudCast extends CloudCast {
+
+  static Logger logger = Logger.getLogger(LocalCloudCast.class);
+
+  private static HashMap<String, List<PeerNode>> members = new HashMap<String, List<PeerNode>>();
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private String viewName;
+  private CloudNode cloudNode;
+  private volatile View view;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public LocalCloudCast(PeerNode localNode, CloudURI cloudURI) {
+    super(localNode, cloudURI);
+    this.viewName = cloudURI.getURI().toString();
+    this.cloudNode = new CloudNode(cloudURI);
+    this.view = new View(new HashMap<Node, Metadata>());
+  }
+
+  /* ***********************************************************
+   *  Membership
+   *************************************************************/
+
+  private List<PeerNode> getMembers() {
+    List<PeerNode> list = members.get(viewName);
+    if (list == null) {
+      list = new ArrayList<PeerNode>();
+      members.put(viewName, list);
+    }
+    return list;
+  }
+
+  public boolean addNode(Node node) {
+    if (!(node instanceof PeerNode)) return false;
+    synchronized (members) {
+      List<PeerNode> list = getMembers();
+      if (list.contains(node)) return false;
+      return list.add((PeerNode) node);
+    }
+  }
+
+  public boolean removeNode(Node node) {
+    synchronized (members) {
+      return getMembers().remove(node);
+    }
+  }
+
+  public View getView() {
+    return view;
+  }
+
+  /**
+   * Draws a new random view among the registered peers
+   */
+  private void refreshView() {
+    List<PeerNode> candidates;
+    synchronized (members) {
+      candidates = new ArrayList<PeerNode>(getMembers());
+    }
+    candidates.remove(localNode);
+    Collections.shuffle(candidates);
+
+    Map<Node, Metadata> nodes = new HashMap<Node, Metadata>();
+    nodes.put(cloudNode, new Metadata());
+    for (int i = 0; i < candidates.size() && nodes.size() < viewSize; i++) {
+      nodes.put(candidates.get(i), new Metadata());
+    }
+    view = new View(nodes);
+    logger.trace(String.format("Peer %s has a view of %s nodes", localNode, nodes.size()));
+  }
+
+  /* ***********************************************************
+   *  GossipProtocol implementation
+   *************************************************************/
+
+  protected void init() {
+    addNode(localNode);
+    refreshView();
+  }
+
+  public void terminate() throws IllegalStateException {
+    removeNode(localNode);
+    super.terminate();
+  }
+
+  protected void runActiveThread() {
+    while (!isTerminated()) {
+      try {
+        Thread.sleep(period * 1000L);
+      } catch (InterruptedException e) {
+        continue;
+      }
+      refreshView();
+    }
+  }
+
+  protected void runPassiveThread() {
+    /* Views are drawn from the shared membership, no message is exchanged */
+  }
+}
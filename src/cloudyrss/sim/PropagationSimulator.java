@@ -0,0 +1,404 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudURI;
+import cloudypeer.cloud.StorageCloud;
+import cloudypeer.store.Store;
+import cloudypeer.store.StoreException;
+import cloudypeer.store.StoreUpdateHandler;
+import cloudyrss.CloudyFeedReader;
+import cloudyrss.CloudyRSSException;
+import cloudyrss.RSSEntry;
+import cloudyrss.RSSFeedBridge;
+import cloudyrss.cloud.AsyncStorageCloud;
+import cloudyrss.cloud.LocalStorageCloud;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs many feed readers in one JVM to measure how entries propagate.
+ * <p>
+ * Readers talk over the loopback interface through a
+ * {@link SimulatedNetworkHelper}, which counts their traffic and loses
+ * messages, sample their peers through a {@link LocalCloudCast} and share a
+ * local storage cloud. Entries are injected at a fixed rate either in the
+ * cloud, as the bridge does, or in the store of a random reader; meanwhile
+ * readers may leave and be replaced by new ones.
+ * <p>
+ * At the end the simulator reports the delay between the injection of an
+ * entry and its delivery to each reader, counting only the readers running
+ * from the injection to the end, the entries delivered more than once to
+ * the same reader and the traffic sent by each reader. The parameters are
+ * read from a properties file, see <tt>simulation.properties</tt>.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class PropagationSimulator {
+
+  static Logger logger = Logger.getLogger(PropagationSimulator.class);
+
+  public static String FEED_NAME = "simulation";
+
+  public static String INJECT_CLOUD = "cloud";
+  public static String INJECT_PEER = "peer";
+
+  /**
+   * Reader taking part to the simulation
+   */
+  private class Peer implements StoreUpdateHandler {
+    private int id;
+    private CloudyFeedReader reader;
+    private long joined;
+    private volatile long left = -1;
+
+    private HashMap<String, Long> delivered = new HashMap<String, Long>();
+    private long duplicates = 0;
+
+    public Peer(int id) {
+      this.id = id;
+    }
+
+    public synchronized void notifyUpdate(String keys[], Store store) {
+      long now = System.currentTimeMillis();
+      for (String key: keys) {
+        if (key.startsWith(FEED_NAME + "/")) key = key.substring(FEED_NAME.length() + 1);
+        if (!injected.containsKey(key)) continue;
+
+        if (delivered.containsKey(key)) {
+          duplicates++;
+        } else {
+          delivered.put(key, now);
+        }
+      }
+    }
+
+    /**
+     * Checks whether the peer was running from the given instant to the end
+     */
+    public boolean runningSince(long timestamp) {
+      return left < 0 && joined <= timestamp;
+    }
+
+    public SimulatedNetworkHelper getNetworkHelper() {
+      return (SimulatedNetworkHelper) reader.getNetworkHelper();
+    }
+
+    public String toString() {
+      return "peer" + id;
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private int peerCount;
+  private long warmup;
+  private long duration;
+  private long drain;
+  private double injectRate;
+  private String injectTarget;
+  private long churnPeriod;
+  private int antiEntropyPeriod;
+
+  private InetAddress ip;
+  private int basePort;
+  private String cloudProvider;
+  private URI cloudURI;
+  private StorageCloud storageCloud;
+  private File workDir;
+
+  private List<Peer> peers = new ArrayList<Peer>();
+  private List<Peer> running = new ArrayList<Peer>();
+  private Map<String, Long> injected = new ConcurrentHashMap<String, Long>();
+  private Random random = new Random();
+  private int joins = 0;
+  private int leaves = 0;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public PropagationSimulator(Properties conf) throws CloudyRSSException {
+    this.peerCount = Integer.parseInt(conf.getProperty("peers", "50"));
+    this.warmup = Long.parseLong(conf.getProperty("warmup", "10")) * 1000;
+    this.duration = Long.parseLong(conf.getProperty("duration", "120")) * 1000;
+    this.drain = Long.parseLong(conf.getProperty("drain", "60")) * 1000;
+    this.injectRate = Double.parseDouble(conf.getProperty("inject-rate", "1"));
+    this.injectTarget = conf.getProperty("inject-target", INJECT_CLOUD).trim();
+    this.churnPeriod = Long.parseLong(conf.getProperty("churn-period", "0")) * 1000;
+    this.antiEntropyPeriod = Integer.parseInt(conf.getProperty("anti-entropy-period", "60"));
+    this.basePort = Integer.parseInt(conf.getProperty("base-port", "20000"));
+    this.cloudProvider = conf.getProperty("cloud-provider", "hsqldb").trim();
+    this.workDir = new File(conf.getProperty("work-dir", System.getProperty("java.io.tmpdir")));
+
+    if (!injectTarget.equals(INJECT_CLOUD) && !injectTarget.equals(INJECT_PEER))
+      throw new IllegalArgumentException("Unknown injection target: " + injectTarget);
+
+    /* Parameters under study */
+    CloudyFeedReader.PERSISTENCE = Integer.parseInt(conf.getProperty("persistence", "" + CloudyFeedReader.PERSISTENCE));
+    CloudyFeedReader.DEFAULT_PERIOD_RUMOR_MONGERING =
+      Integer.parseInt(conf.getProperty("rumor-period", "" + CloudyFeedReader.DEFAULT_PERIOD_RUMOR_MONGERING));
+    CloudyFeedReader.ANTI_ENTROPY = conf.getProperty("anti-entropy", CloudyFeedReader.ANTI_ENTROPY).trim();
+
+    /* Environment */
+    CloudyFeedReader.NETWORK = "simulated";
+    CloudyFeedReader.PEER_SAMPLING = "local";
+    CloudyFeedReader.SEGMENT_BOOTSTRAP = false;
+    CloudyFeedReader.CLOUD_CACHE = Boolean.parseBoolean(conf.getProperty("cloud-cache", "false"));
+    AsyncStorageCloud.DEFAULT_CONCURRENCY = Math.max(AsyncStorageCloud.DEFAULT_CONCURRENCY, peerCount);
+    SimulatedNetworkHelper.DEFAULT_LOSS = Double.parseDouble(conf.getProperty("loss", "0"));
+    LocalStorageCloud.setLatency(Long.parseLong(conf.getProperty("cloud-latency", "20")),
+                                 Long.parseLong(conf.getProperty("cloud-jitter", "10")));
+
+    try {
+      this.ip = InetAddress.getByName("127.0.0.1");
+      this.cloudURI = new URI(conf.getProperty("cloud-uri", "hsqldb://mem/simulation/feeds").trim());
+      this.storageCloud = StorageCloud.getInstance(cloudProvider, CloudURI.getInstance(cloudProvider, cloudURI));
+    } catch (IOException e) {
+      throw new CloudyRSSException("Cannot resolve the loopback address", e);
+    } catch (URISyntaxException e) {
+      throw new CloudyRSSException("Invalid cloud URI", e);
+    } catch (InstantiationException e) {
+      throw new CloudyRSSException("Problem loading the specified cloud provider", e);
+    }
+  }
+
+  /* ***********************************************************
+   *  Peers
+   *************************************************************/
+
+  private Peer join() throws CloudyRSSException {
+    Peer peer = new Peer(peers.size());
+    File rssFile = new File(workDir, FEED_NAME + "-" + peer + ".rss");
+    peer.reader = new CloudyFeedReader(ip, basePort, rssFile, FEED_NAME, "", cloudProvider, cloudURI,
+                                       antiEntropyPeriod);
+    peer.reader.getLocalStore().addUpdateHandler(peer);
+    peer.joined = System.currentTimeMillis();
+    peer.reader.start();
+
+    peers.add(peer);
+    running.add(peer);
+    logger.debug(String.format("%s joined on %s", peer, peer.getNetworkHelper().getLocalNode()));
+    return peer;
+  }
+
+  private void leave(Peer peer) {
+    running.remove(peer);
+    try {
+      peer.reader.terminate();
+    } catch (RuntimeException e) {
+      logger.warn("Error terminating " + peer, e);
+    }
+    peer.left = System.currentTimeMillis();
+    logger.debug(peer + " left");
+  }
+
+  /**
+   * Replaces a random running peer with a new one
+   */
+  private void churn() throws CloudyRSSException {
+    if (running.isEmpty()) return;
+    leave(running.get(random.nextInt(running.size())));
+    leaves++;
+    join();
+    joins++;
+  }
+
+  /* ***********************************************************
+   *  Injection
+   *************************************************************/
+
+  private void inject(int n) {
+    RSSEntry entry;
+    try {
+      entry = new RSSEntry("Simulated entry " + n, "Entry " + n + " injected by the propagation simulator",
+                           new URL("http://localhost/" + FEED_NAME + "/" + n), new Date());
+    } catch (IOException e) {
+      throw new CloudyRSSException("Invalid entry link", e);
+    }
+
+    try {
+      String key = entry.getKey();
+      injected.put(key, System.currentTimeMillis());
+      ByteArrayInputStream in = new ByteArrayInputStream(RSSFeedBridge.encodeEntry(entry));
+
+      if (injectTarget.equals(INJECT_CLOUD)) {
+        storageCloud.put(FEED_NAME + "/" + key, "test.simple.RSSEntry", in, null);
+      } else {
+        Peer peer = running.get(random.nextInt(running.size()));
+        peer.reader.getLocalStore().putStoreEntry(key, in, "test.simple.RSSEntry", new HashMap<String, String>());
+      }
+    } catch (IOException e) {
+      logger.error("I/O error injecting entry " + entry, e);
+    } catch (CloudException e) {
+      logger.error("Cloud error injecting entry " + entry, e);
+    } catch (StoreException e) {
+      logger.error("Store error injecting entry " + entry, e);
+    }
+  }
+
+  /* ***********************************************************
+   *  Simulation
+   *************************************************************/
+
+  public void run() throws CloudyRSSException, InterruptedException {
+    logger.info(String.format("Starting %s peers", peerCount));
+    for (int i = 0; i < peerCount; i++) join();
+    Thread.sleep(warmup);
+
+    logger.info(String.format("Injecting %s entries per second in the %s for %s seconds", injectRate, injectTarget,
+                              duration / 1000));
+    long start = System.currentTimeMillis();
+    long end = start + duration;
+    long nextChurn = (churnPeriod > 0) ? start + churnPeriod : Long.MAX_VALUE;
+    int injections = 0;
+
+    while (true) {
+      long now = System.currentTimeMillis();
+      long nextInjection = (injectRate > 0) ? start + (long) (injections * 1000 / injectRate) : Long.MAX_VALUE;
+      long next = Math.min(nextInjection, nextChurn);
+      if (next >= end) break;
+
+      if (next > now) {
+        Thread.sleep(next - now);
+      } else if (next == nextInjection) {
+        inject(injections++);
+      } else {
+        churn();
+        nextChurn += churnPeriod;
+      }
+    }
+
+    logger.info(String.format("Injected %s entries, waiting %s seconds for the propagation", injections,
+                              drain / 1000));
+    Thread.sleep(Math.max(0, end - System.currentTimeMillis()) + drain);
+
+    report();
+    for (Peer peer: new ArrayList<Peer>(running)) leave(peer);
+  }
+
+  /* ***********************************************************
+   *  Report
+   *************************************************************/
+
+  static long percentile(long sorted[], double p) {
+    if (sorted.length == 0) return 0;
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+  }
+
+  static String distribution(long values[]) {
+    Arrays.sort(values);
+    long sum = 0;
+    for (long v: values) sum += v;
+    return String.format("mean %s, p50 %s, p90 %s, p99 %s, max %s", (values.length == 0) ? 0 : sum / values.length,
+                         percentile(values, 0.5), percentile(values, 0.9), percentile(values, 0.99),
+                         percentile(values, 1));
+  }
+
+  private void report() {
+    List<Long> latencies = new ArrayList<Long>();
+    long expected = 0;
+    long deliveries = 0;
+    long duplicates = 0;
+
+    for (Peer peer: peers) {
+      synchronized (peer) {
+        deliveries += peer.delivered.size();
+        duplicates += peer.duplicates;
+        for (Map.Entry<String, Long> e: injected.entrySet()) {
+          if (!peer.runningSince(e.getValue())) continue;
+          expected++;
+          Long delivered = peer.delivered.get(e.getKey());
+          if (delivered != null) latencies.add(Math.max(0, delivered - e.getValue()));
+        }
+      }
+    }
+
+    long latency[] = new long[latencies.size()];
+    for (int i = 0; i < latency.length; i++) latency[i] = latencies.get(i);
+
+    long bytes[] = new long[peers.size()];
+    long messages = 0;
+    long lost = 0;
+    for (int i = 0; i < bytes.length; i++) {
+      SimulatedNetworkHelper net = peers.get(i).getNetworkHelper();
+      bytes[i] = net.getBytesSent();
+      messages += net.getMessagesSent();
+      lost += net.getMessagesLost();
+    }
+
+    long cloudRequests = -1;
+    if (CloudyFeedReader.CLOUD_ASYNC) cloudRequests = AsyncStorageCloud.getShared(storageCloud).getRequests();
+
+    System.out.println(String.format("Peers: %s running, %s joined and %s left during the run", running.size(),
+                                     joins, leaves));
+    System.out.println(String.format("Parameters: persistence %s, rumor mongering period %ss, anti-entropy "
+                                     + "period %ss (%s), message loss %s", CloudyFeedReader.PERSISTENCE,
+                                     CloudyFeedReader.DEFAULT_PERIOD_RUMOR_MONGERING, antiEntropyPeriod,
+                                     CloudyFeedReader.ANTI_ENTROPY, SimulatedNetworkHelper.DEFAULT_LOSS));
+    System.out.println(String.format("Entries injected in the %s: %s", injectTarget, injected.size()));
+    System.out.println(String.format("Coverage: %s of %s deliveries (%.2f%%)", latency.length, expected,
+                                     (expected == 0) ? 100.0 : 100.0 * latency.length / expected));
+    System.out.println("Propagation delay (ms): " + distribution(latency));
+    System.out.println(String.format("Duplicate deliveries: %s (%.3f per delivery)", duplicates,
+                                     (deliveries == 0) ? 0.0 : (double) duplicates / deliveries));
+    System.out.println("Bytes sent per peer: " + distribution(bytes));
+    System.out.println(String.format("Messages sent: %s, lost: %s", messages, lost));
+    if (cloudRequests >= 0) System.out.println("Cloud requests: " + cloudRequests);
+  }
+
+  /* ***********************************************************
+   *  Main
+   *************************************************************/
+
+  public static void main(String args[]) {
+    Properties conf = new Properties();
+    if (args.length > 0) {
+      FileInputStream in = null;
+      try {
+        in = new FileInputStream(args[0]);
+        conf.load(in);
+      } catch (IOException e) {
+        System.err.println("Error reading configuration file " + args[0] + ": " + e.getMessage());
+        System.exit(1);
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {}
+        }
+      }
+    }
+
+    try {
+      new PropagationSimulator(conf).run();
+    } catch (Exception e) {
+      logger.error("Simulation failed", e);
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+}
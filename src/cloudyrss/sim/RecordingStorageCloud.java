@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import cloudypeer.cloud.CloudException;
+import cloudypeer.cloud.CloudURI;
+import cloudyrss.cloud.HSQLDBStorageCloud;
+
+/**
+ * HSQLDB storage cloud notifying a listener of every object stored, so the
+ * load driver can time the uploads of the bridge without touching it.
+ * <p>
+ * Registered as the <tt>recording</tt> provider; it takes the same URIs as
+ * the <tt>hsqldb</tt> one.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class RecordingStorageCloud extends HSQLDBStorageCloud {
+
+  /**
+   * Receives the objects stored in any recording cloud
+   */
+  public interface UploadListener {
+
+    /**
+     * Notifies an object stored, once the put completed
+     */
+    public void uploaded(String key, byte data[]);
+  }
+
+  private static volatile UploadListener listener;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public RecordingStorageCloud(CloudURI cloudURI) throws IllegalArgumentException, CloudException {
+    super(cloudURI);
+  }
+
+  public static void setUploadListener(UploadListener listener) {
+    RecordingStorageCloud.listener = listener;
+  }
+
+  /* ***********************************************************
+   *  StorageCloud implementation
+   *************************************************************/
+
+  public void put(String key, String contentType, InputStream data, Map<String, String> metadata)
+    throws IOException, CloudException
+  {
+    UploadListener l = listener;
+    if (l == null) {
+      super.put(key, contentType, data, metadata);
+      return;
+    }
+
+    ByteArrayOutputStream value = new ByteArrayOutputStream();
+    try {
+      byte buf[] = new byte[4096];
+      int n;
+      while ((n = data.read(buf)) > 0) value.write(buf, 0, n);
+    } finally {
+      data.close();
+    }
+
+    super.put(key, contentType, new ByteArrayInputStream(value.toByteArray()), metadata);
+    l.uploaded(key, value.toByteArray());
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cloudypeer.PeerNode;
+import cloudypeer.network.NetworkConnection;
+import cloudypeer.network.NetworkException;
+import cloudypeer.network.NetworkMessage;
+import cloudypeer.network.simple.SimpleNetworkHelper;
+import org.apache.log4j.Logger;
+
+/**
+ * Network helper counting the traffic of its node and losing messages.
+ * <p>
+ * Connections, both opened and accepted, are wrapped to count the bytes
+ * and the messages sent through them. Every message is lost with
+ * probability {@link #DEFAULT_LOSS}: a lost datagram is silently dropped,
+ * while a message lost on a connection breaks the connection, which is
+ * what a peer observes when a TCP session fails.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class SimulatedNetworkHelper extends SimpleNetworkHelper {
+
+  static Logger logger = Logger.getLogger(SimulatedNetworkHelper.class);
+
+  public static double DEFAULT_LOSS = 0;
+
+  /**
+   * Connection counting and losing the messages sent
+   */
+  private class SimulatedConnection implements NetworkConnection {
+    private NetworkConnection conn;
+
+    public SimulatedConnection(NetworkConnection conn) {
+      this.conn = conn;
+    }
+
+    public void send(Serializable message) throws IOException, NetworkException {
+      if (isLost()) {
+        conn.close();
+        throw new IOException("Simulated message loss");
+      }
+      conn.send(measure(message));
+    }
+
+    public Object receive(int timeout) throws IOException, NetworkException, SocketTimeoutException {
+      return conn.receive(timeout);
+    }
+
+    public InputStream getInputStream() throws IOException, NetworkException {
+      return conn.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException, NetworkException {
+      return new FilterOutputStream(conn.getOutputStream()) {
+          public void write(int b) throws IOException {
+            out.write(b);
+            bytesSent.incrementAndGet();
+          }
+
+          public void write(byte b[], int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesSent.addAndGet(len);
+          }
+        };
+    }
+
+    public void close() throws IOException, NetworkException {
+      conn.close();
+    }
+  }
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private double loss = DEFAULT_LOSS;
+  private Random random = new Random();
+
+  private AtomicLong bytesSent = new AtomicLong();
+  private AtomicLong messagesSent = new AtomicLong();
+  private AtomicLong messagesLost = new AtomicLong();
+  private AtomicLong connections = new AtomicLong();
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+  public SimulatedNetworkHelper(InetAddress ip, int port) throws IOException {
+    super(ip, port);
+  }
+
+  /* ***********************************************************
+   *  Getters/Setters
+   *************************************************************/
+
+  public double getLoss() {
+    return loss;
+  }
+
+  public void setLoss(double loss) {
+    this.loss = loss;
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  public long getMessagesLost() {
+    return messagesLost.get();
+  }
+
+  public long getConnections() {
+    return connections.get();
+  }
+
+  /* ***********************************************************
+   *  Private methods
+   *************************************************************/
+
+  private boolean isLost() {
+    double p;
+    synchronized (random) {
+      p = random.nextDouble();
+    }
+    if (p >= loss) return false;
+    messagesLost.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Counts a message about to be sent. Messages may carry streams which are
+   * consumed when serialized, so the message is replaced with the copy
+   * obtained deserializing the measured data.
+   */
+  private Serializable measure(Serializable message) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream objOut = new ObjectOutputStream(out);
+    objOut.writeObject(message);
+    objOut.close();
+
+    messagesSent.incrementAndGet();
+    bytesSent.addAndGet(out.size());
+    try {
+      return (Serializable) new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Cannot copy message " + message + ": " + e.getMessage());
+    }
+  }
+
+  /* ***********************************************************
+   *  NetworkHelper implementation
+   *************************************************************/
+
+  protected void sendDatagramMessageImpl(PeerNode destination, NetworkMessage message)
+    throws IOException, NetworkException
+  {
+    if (isLost()) {
+      logger.trace("Dropping datagram to " + destination);
+      return;
+    }
+    super.sendDatagramMessageImpl(destination, (NetworkMessage) measure(message));
+  }
+
+  protected NetworkConnection createConnectionImpl(PeerNode destination, int clientID, int timeout)
+    throws IOException, NetworkException, SocketTimeoutException
+  {
+    NetworkConnection conn = super.createConnectionImpl(destination, clientID, timeout);
+    connections.incrementAndGet();
+    return new SimulatedConnection(conn);
+  }
+
+  protected boolean dispatchConnection(int clientID, NetworkConnection conn) {
+    return super.dispatchConnection(clientID, new SimulatedConnection(conn));
+  }
+}
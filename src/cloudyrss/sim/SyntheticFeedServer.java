@@ -0,0 +1,461 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss.sim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+/**
+ * Local HTTP server publishing synthetic feeds, used to load test the bridge.
+ * <p>
+ * Source <i>s</i> is served at <tt>/feeds/s</tt> and publishes a new item
+ * every <tt>1 / itemRate</tt> seconds, the sources being staggered over the
+ * interval. Each document lists the most recent items, newest first, in RSS
+ * 2.0 or Atom. A share of the items repeats the title and description of
+ * the previous item of the same source under a new link, as syndicated
+ * copies do. Items are generated from their index, so nothing is kept in
+ * memory but the instant each item was first served, which is when the
+ * bridge discovered it.
+ * <p>
+ * Responses can be delayed and replaced by server errors, and carry the
+ * validators needed by conditional requests unless disabled.
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class SyntheticFeedServer {
+
+  static Logger logger = Logger.getLogger(SyntheticFeedServer.class);
+
+  public static String FORMAT_RSS = "rss";
+  public static String FORMAT_ATOM = "atom";
+  public static String FORMAT_MIXED = "mixed";
+
+  public static int DEFAULT_ITEMS_PER_DOCUMENT = 20;
+  public static int DEFAULT_ITEM_SIZE = 500;
+  public static int DEFAULT_THREADS = 16;
+
+  private static final String WORDS[] = new String[] {
+    "market", "cloud", "peer", "network", "release", "report", "storage", "update", "growth", "energy",
+    "science", "policy", "research", "election", "season", "weather", "transport", "health", "city",
+    "council", "budget", "project", "festival", "museum", "league", "student", "company", "software",
+    "protocol", "gossip", "feed", "reader", "summit", "river", "mountain", "harbour", "railway", "satellite"
+  };
+
+  /* ***********************************************************
+   *  Instance variables
+   *************************************************************/
+  private int sources;
+  private double itemRate;
+  private String format;
+  private int itemsPerDocument = DEFAULT_ITEMS_PER_DOCUMENT;
+  private int itemSize = DEFAULT_ITEM_SIZE;
+  private double duplicateRatio = 0;
+  private long latency = 0;
+  private long jitter = 0;
+  private double errorRatio = 0;
+  private boolean conditionalGet = true;
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private Random random = new Random();
+  private volatile long start = -1;
+  private volatile long end = Long.MAX_VALUE;
+  private Map<String, Long> discovered = new ConcurrentHashMap<String, Long>();
+
+  private long requests;
+  private long notModified;
+  private long errors;
+  private long bytes;
+
+  /* ***********************************************************
+   *  Constructors
+   *************************************************************/
+
+  /**
+   * Creates a new server
+   *
+   * @param port The port to listen on, 0 to pick a free one
+   * @param sources Number of feeds served
+   * @param itemRate Items published per second by each source
+   * @param format One of {@link #FORMAT_RSS}, {@link #FORMAT_ATOM} or
+   * {@link #FORMAT_MIXED}, which alternates the two among sources
+   */
+  public SyntheticFeedServer(int port, int sources, double itemRate, String format) throws IOException {
+    if (sources <= 0) throw new IllegalArgumentException("Number of sources must be positive");
+    if (itemRate <= 0) throw new IllegalArgumentException("Item rate must be positive");
+    if (!format.equals(FORMAT_RSS) && !format.equals(FORMAT_ATOM) && !format.equals(FORMAT_MIXED))
+      throw new IllegalArgumentException("Unknown feed format: " + format);
+
+    this.sources = sources;
+    this.itemRate = itemRate;
+    this.format = format;
+
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    this.server.createContext("/feeds/", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          try {
+            serve(exchange);
+          } finally {
+            exchange.close();
+          }
+        }
+      });
+  }
+
+  /* ***********************************************************
+   *  Getters/Setters
+   *************************************************************/
+
+  public void setItemsPerDocument(int itemsPerDocument) {
+    this.itemsPerDocument = Math.max(1, itemsPerDocument);
+  }
+
+  public void setItemSize(int itemSize) {
+    this.itemSize = Math.max(0, itemSize);
+  }
+
+  public void setDuplicateRatio(double duplicateRatio) {
+    this.duplicateRatio = duplicateRatio;
+  }
+
+  /**
+   * Sets the delay of every response, a fixed latency plus a uniformly
+   * distributed jitter, both in milliseconds
+   */
+  public void setLatency(long latency, long jitter) {
+    this.latency = latency;
+    this.jitter = jitter;
+  }
+
+  public void setErrorRatio(double errorRatio) {
+    this.errorRatio = errorRatio;
+  }
+
+  public void setConditionalGet(boolean conditionalGet) {
+    this.conditionalGet = conditionalGet;
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public int getSources() {
+    return sources;
+  }
+
+  /**
+   * Returns the URL of a source
+   */
+  public String getFeedURL(int source) {
+    return String.format("http://127.0.0.1:%s/feeds/%s", getPort(), source);
+  }
+
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  public synchronized long getNotModified() {
+    return notModified;
+  }
+
+  public synchronized long getErrors() {
+    return errors;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /* ***********************************************************
+   *  Lifecycle
+   *************************************************************/
+
+  /**
+   * Starts serving and publishing items
+   */
+  public void start() {
+    executor = Executors.newFixedThreadPool(DEFAULT_THREADS);
+    server.setExecutor(executor);
+    start = System.currentTimeMillis();
+    server.start();
+    logger.info(String.format("Serving %s synthetic feeds on port %s", sources, getPort()));
+  }
+
+  /**
+   * Stops publishing new items. Sources keep being served.
+   */
+  public void stopPublishing() {
+    end = System.currentTimeMillis();
+  }
+
+  public void terminate() {
+    server.stop(0);
+    if (executor != null) executor.shutdownNow();
+  }
+
+  /* ***********************************************************
+   *  Items
+   *************************************************************/
+
+  /**
+   * Returns the publication instant of an item
+   */
+  public long published(int source, long item) {
+    double interval = 1000 / itemRate;
+    return start + (long) (interval * source / sources + interval * item);
+  }
+
+  /**
+   * Returns the number of items published by a source so far
+   */
+  public long publishedItems(int source) {
+    long now = Math.min(System.currentTimeMillis(), end);
+    double interval = 1000 / itemRate;
+    long elapsed = now - start - (long) (interval * source / sources);
+    return (start < 0 || elapsed < 0) ? 0 : (long) (elapsed / interval) + 1;
+  }
+
+  /**
+   * Checks whether an item repeats the content of the previous one
+   */
+  public boolean isDuplicate(int source, long item) {
+    if (item == 0 || duplicateRatio <= 0) return false;
+    return new Random(seed(source, item)).nextDouble() < duplicateRatio;
+  }
+
+  /**
+   * Returns the instant an item was first served, or null if it was never
+   * served
+   */
+  public Long discovered(int source, long item) {
+    return discovered.get(source + "/" + item);
+  }
+
+  /**
+   * Returns the link of an item, which is also its guid
+   */
+  public String itemLink(int source, long item) {
+    return String.format("http://127.0.0.1:%s/feeds/%s/items/%s", getPort(), source, item);
+  }
+
+  /**
+   * Extracts source and item index from a link built by
+   * {@link #itemLink(int, long)}
+   *
+   * @return A two elements array or null if the link does not point to an
+   * item of this server
+   */
+  public static long[] parseItemLink(String link) {
+    int i = link.indexOf("/feeds/");
+    int j = link.indexOf("/items/");
+    if (i < 0 || j < i) return null;
+
+    try {
+      return new long[] { Long.parseLong(link.substring(i + 7, j)), Long.parseLong(link.substring(j + 7)) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /* Consecutive seeds give correlated first values, so they are scrambled */
+  private static long seed(int source, long item) {
+    return (source * 1000003L + item) * 0x9E3779B97F4A7C15L;
+  }
+
+  /**
+   * Generates the title and description of an item
+   */
+  private String[] content(int source, long item) {
+    while (isDuplicate(source, item)) item--;
+
+    Random r = new Random(~seed(source, item));
+    StringBuilder title = new StringBuilder();
+    for (int i = 0; i < 6; i++) title.append(i == 0 ? "" : " ").append(WORDS[r.nextInt(WORDS.length)]);
+
+    StringBuilder description = new StringBuilder(itemSize + 16);
+    while (description.length() < itemSize) description.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+    description.setLength(itemSize);
+
+    return new String[] { title.toString(), description.toString().trim() };
+  }
+
+  /* ***********************************************************
+   *  Serving
+   *************************************************************/
+
+  private void serve(HttpExchange exchange) throws IOException {
+    long delay = latency;
+    if (jitter > 0) {
+      synchronized (random) {
+        delay += (long) (random.nextDouble() * jitter);
+      }
+    }
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+
+    boolean error;
+    synchronized (random) {
+      error = errorRatio > 0 && random.nextDouble() < errorRatio;
+    }
+    synchronized (this) {
+      requests++;
+      if (error) errors++;
+    }
+    if (error) {
+      exchange.sendResponseHeaders(503, -1);
+      return;
+    }
+
+    int source;
+    try {
+      source = Integer.parseInt(exchange.getRequestURI().getPath().substring("/feeds/".length()));
+    } catch (NumberFormatException e) {
+      source = -1;
+    }
+    if (source < 0 || source >= sources) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+
+    long count = publishedItems(source);
+    boolean atom = format.equals(FORMAT_ATOM) || (format.equals(FORMAT_MIXED) && source % 2 == 1);
+
+    if (conditionalGet) {
+      String etag = "\"" + source + "-" + count + "\"";
+      String lastModified = httpDate(new Date((count > 0) ? published(source, count - 1) : start));
+      String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+      String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+
+      boolean unchanged;
+      if (ifNoneMatch != null) {
+        unchanged = ifNoneMatch.equals(etag);
+      } else {
+        unchanged = ifModifiedSince != null && !newerThan(lastModified, ifModifiedSince);
+      }
+      if (unchanged) {
+        synchronized (this) {
+          notModified++;
+        }
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+
+      exchange.getResponseHeaders().set("ETag", etag);
+      exchange.getResponseHeaders().set("Last-Modified", lastModified);
+    }
+
+    byte document[] = (atom ? atomDocument(source, count) : rssDocument(source, count)).getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", atom ? "application/atom+xml; charset=utf-8"
+                                      : "application/rss+xml; charset=utf-8");
+    exchange.sendResponseHeaders(200, document.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(document);
+    out.close();
+
+    long now = System.currentTimeMillis();
+    for (long i = Math.max(0, count - itemsPerDocument); i < count; i++) {
+      String key = source + "/" + i;
+      if (!discovered.containsKey(key)) discovered.put(key, now);
+    }
+    synchronized (this) {
+      bytes += document.length;
+    }
+  }
+
+  private String rssDocument(int source, long count) {
+    StringBuilder doc = new StringBuilder(256 + itemsPerDocument * (itemSize + 256));
+    doc.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rss version=\"2.0\"><channel>\n");
+    doc.append("<title>Synthetic feed ").append(source).append("</title>\n");
+    doc.append("<link>").append(getFeedURL(source)).append("</link>\n");
+    doc.append("<description>Feed generated by the load test server</description>\n");
+
+    for (long i = count - 1; i >= Math.max(0, count - itemsPerDocument); i--) {
+      String content[] = content(source, i);
+      String link = itemLink(source, i);
+      doc.append("<item><title>").append(content[0]).append("</title>");
+      doc.append("<link>").append(link).append("</link>");
+      doc.append("<guid isPermaLink=\"true\">").append(link).append("</guid>");
+      doc.append("<pubDate>").append(rfc822Date(new Date(published(source, i)))).append("</pubDate>");
+      doc.append("<description>").append(content[1]).append("</description></item>\n");
+    }
+    doc.append("</channel></rss>\n");
+    return doc.toString();
+  }
+
+  private String atomDocument(int source, long count) {
+    Date updated = new Date((count > 0) ? published(source, count - 1) : start);
+    StringBuilder doc = new StringBuilder(256 + itemsPerDocument * (itemSize + 256));
+    doc.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+    doc.append("<title>Synthetic feed ").append(source).append("</title>\n");
+    doc.append("<id>").append(getFeedURL(source)).append("</id>\n");
+    doc.append("<updated>").append(w3cDate(updated)).append("</updated>\n");
+
+    for (long i = count - 1; i >= Math.max(0, count - itemsPerDocument); i--) {
+      String content[] = content(source, i);
+      String link = itemLink(source, i);
+      doc.append("<entry><title>").append(content[0]).append("</title>");
+      doc.append("<link rel=\"alternate\" href=\"").append(link).append("\"/>");
+      doc.append("<id>").append(link).append("</id>");
+      doc.append("<updated>").append(w3cDate(new Date(published(source, i)))).append("</updated>");
+      doc.append("<summary>").append(content[1]).append("</summary></entry>\n");
+    }
+    doc.append("</feed>\n");
+    return doc.toString();
+  }
+
+  /* ***********************************************************
+   *  Dates
+   *************************************************************/
+
+  private static SimpleDateFormat utcFormat(String pattern) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format;
+  }
+
+  private static String httpDate(Date date) {
+    return utcFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'").format(date);
+  }
+
+  private static String rfc822Date(Date date) {
+    return utcFormat("EEE, d MMM yyyy HH:mm:ss Z").format(date);
+  }
+
+  private static String w3cDate(Date date) {
+    return utcFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").format(date);
+  }
+
+  private static boolean newerThan(String date, String reference) {
+    SimpleDateFormat format = utcFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+    try {
+      return format.parse(date).after(format.parse(reference));
+    } catch (ParseException e) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import cloudyrss.sim.RecordingStorageCloud;
+import junit.framework.TestCase;
+
+/**
+ * Hands a source over from a sharded bridge instance to another and checks
+ * that the entries uploaded by the first are not uploaded again
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class BridgeHandoverTest extends TestCase {
+
+  private static final long TIMEOUT = 20000;
+
+  private File feed;
+  private List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+
+  protected void setUp() throws IOException {
+    feed = File.createTempFile("handover", ".xml");
+    RecordingStorageCloud.setUploadListener(new RecordingStorageCloud.UploadListener() {
+        public void uploaded(String key, byte data[]) {
+          if (key.startsWith("feed/")) uploads.add(key);
+        }
+      });
+  }
+
+  protected void tearDown() {
+    RecordingStorageCloud.setUploadListener(null);
+    feed.delete();
+  }
+
+  private void writeFeed(int items) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(feed), "UTF-8");
+    try {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rss version=\"2.0\"><channel>"
+                + "<title>Handover</title><link>http://example.com/</link><description>Test</description>\n");
+      for (int i = items; i > 0; i--) {
+        out.write(String.format("<item><title>Item %s</title><link>http://example.com/%s</link>"
+                                + "<description>Story number %s</description><guid>item-%s</guid>"
+                                + "<pubDate>Mon, 0%s Mar 2026 10:00:00 GMT</pubDate></item>\n",
+                                i, i, i, i, i));
+      }
+      out.write("</channel></rss>\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  private Thread startBridge(String instanceId) {
+    Properties conf = new Properties();
+    conf.setProperty("feeds", "feed");
+    conf.setProperty("feed.feedurls", feed.toURI().toString());
+    conf.setProperty("feed.cloudProvider", "recording");
+    conf.setProperty("feed.cloudURI", "hsqldb://mem/handover/feeds");
+    conf.setProperty("fetch-period", "1");
+    conf.setProperty("cloud-async", "false");
+    conf.setProperty("segment-period", "0");
+    conf.setProperty("sharding", "true");
+    conf.setProperty("shard-heartbeat", "1");
+    conf.setProperty("bridge-id", instanceId);
+
+    final RSSFeedBridge bridge = new RSSFeedBridge(conf);
+    Thread thread = new Thread("Bridge " + instanceId) {
+        public void run() {
+          bridge.run();
+        }
+      };
+    thread.start();
+    return thread;
+  }
+
+  private void awaitUploads(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (uploads.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(100);
+    assertTrue("Expected " + count + " uploads, got " + uploads, uploads.size() >= count);
+  }
+
+  public void testHandoverDoesNotUploadAgain() throws Exception {
+    writeFeed(3);
+    Thread first = startBridge("first");
+    awaitUploads(3);
+    first.interrupt();
+    first.join();
+
+    /* The new item tells when the second instance polled the source */
+    writeFeed(4);
+    Thread second = startBridge("second");
+    try {
+      awaitUploads(4);
+      Thread.sleep(2000);
+    } finally {
+      second.interrupt();
+      second.join();
+    }
+
+    assertEquals(uploads.toString(), 4, uploads.size());
+    assertEquals(4, new HashSet<String>(uploads).size());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ChannelItemWindow}
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class ChannelItemWindowTest extends TestCase {
+
+  private static SeenItemIndex.ItemId id(int n) {
+    return SeenItemIndex.ItemId.forIdentity("item-" + n);
+  }
+
+  public void testRejectsItemsAlreadyPresent() {
+    ChannelItemWindow window = new ChannelItemWindow(3);
+    assertTrue(window.add(id(1), 10));
+    assertFalse(window.add(id(1), 10));
+    assertFalse(window.isCandidate(id(1), 10));
+    assertEquals(1, window.size());
+    assertNull(window.getThreshold());
+  }
+
+  public void testEvictsOldestItem() {
+    ChannelItemWindow window = new ChannelItemWindow(3);
+    assertTrue(window.add(id(2), 20));
+    assertTrue(window.add(id(1), 10));
+    assertTrue(window.add(id(3), 30));
+    assertTrue(window.add(id(4), 40));
+
+    assertEquals(3, window.size());
+    assertEquals(10, window.getThreshold().getTime());
+    assertTrue(window.isCandidate(id(5), 15));
+    assertFalse(window.isCandidate(id(5), 10));
+    assertFalse(window.isCandidate(id(2), 20));
+  }
+
+  public void testRejectsItemsOlderThanFullWindow() {
+    ChannelItemWindow window = new ChannelItemWindow(2);
+    assertTrue(window.add(id(1), 10));
+    assertTrue(window.add(id(2), 20));
+    assertFalse(window.add(id(3), 5));
+
+    assertEquals(2, window.size());
+    assertEquals(5, window.getThreshold().getTime());
+  }
+
+  public void testExportAndMerge() {
+    ChannelItemWindow window = new ChannelItemWindow(2);
+    window.add(id(1), 10);
+    window.add(id(2), 20);
+    window.add(id(3), 30);
+
+    ChannelItemWindow copy = new ChannelItemWindow(2);
+    copy.merge(window.export());
+    assertEquals(window.export(), copy.export());
+    assertFalse(copy.isCandidate(id(3), 30));
+    assertFalse(copy.isCandidate(id(4), 10));
+    assertTrue(copy.isCandidate(id(4), 40));
+  }
+
+  public void testMergeRejectsMalformedState() {
+    ChannelItemWindow window = new ChannelItemWindow(2);
+    try {
+      window.merge("10\n20 nothex");
+      fail("Malformed state accepted");
+    } catch (IllegalArgumentException e) {
+      /* Expected */
+    }
+    assertEquals(0, window.size());
+  }
+}
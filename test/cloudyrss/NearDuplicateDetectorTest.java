@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link NearDuplicateDetector}
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class NearDuplicateDetectorTest extends TestCase {
+
+  private NearDuplicateDetector detector;
+
+  protected void setUp() {
+    detector = new NearDuplicateDetector(3, NearDuplicateDetector.DEFAULT_WINDOW);
+  }
+
+  private static RSSEntry entry(String title, String description) {
+    return new RSSEntry(title, description, null, new Date());
+  }
+
+  public void testRepeatedStoryIsDuplicate() {
+    assertFalse(detector.isDuplicate(entry("Storm hits the coast",
+                                           "A strong storm hit the coast this morning, closing roads.")));
+    assertTrue(detector.isDuplicate(entry("Storm hits the coast!",
+                                          "<p>A strong storm hit the coast this morning, closing roads.</p>")));
+  }
+
+  public void testDifferentStoriesAreNotDuplicates() {
+    assertFalse(detector.isDuplicate(entry("Storm hits the coast", "Roads are closed.")));
+    assertFalse(detector.isDuplicate(entry("Elections results", "The new parliament meets next week.")));
+    assertEquals(2, detector.size());
+  }
+
+  public void testEntriesWithoutFeaturesAreNotDuplicates() {
+    assertFalse(detector.isDuplicate(entry("", "")));
+    assertFalse(detector.isDuplicate(entry(null, null)));
+    assertFalse(detector.isDuplicate(entry("<img src=\"a.png\"/>", "<br/> - ")));
+    assertFalse(detector.isDuplicate(entry("", "<p></p>")));
+    assertEquals(0, detector.size());
+
+    /* Featureless entries do not shadow entries with text either */
+    assertFalse(detector.isDuplicate(entry("Storm hits the coast", "")));
+    assertFalse(detector.isDuplicate(entry("", "")));
+    assertEquals(1, detector.size());
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Copyright (c) 2011 Andrea Zito
+ *
+ *  This is free software; see lgpl-2.1.txt
+ */
+package cloudyrss;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the keys of {@link RSSEntry}
+ *
+ * @author Andrea Zito <zito.andrea@gmail.com>
+ * @version 1.0
+ */
+public class RSSEntryTest extends TestCase {
+
+  public void testDatedKey() {
+    long time = 1773136862000L; /* 2026-03-10 10:01:02 UTC */
+    String key = new RSSEntry("Title", "Description", null, new Date(time)).getKey();
+
+    assertTrue(key, key.startsWith("20260310-100102/"));
+    assertEquals(15 + 1 + 32, key.length());
+    assertEquals(time, RSSEntry.parseKeyTimestamp("feed/" + key));
+  }
+
+  public void testUndatedKey() {
+    RSSEntry entry = new RSSEntry("Title", "Description", null, null);
+    String key = entry.getKey();
+
+    assertTrue(key, key.startsWith(RSSEntry.UNDATED_PREFIX + "/"));
+    assertEquals(15 + 1 + 32, key.length());
+    assertEquals(-1, RSSEntry.parseKeyTimestamp(key));
+    assertEquals(-1, RSSEntry.parseKeyTimestamp("feed/" + key));
+  }
+
+  public void testUndatedLegacyKey() {
+    String key = new RSSEntry("Title", "Description", null, null).getLegacyKey();
+
+    assertTrue(key, RSSEntry.isLegacyKey(key));
+    assertEquals(-1, RSSEntry.parseKeyTimestamp("feed/" + key));
+  }
+
+  public void testUnrecognizedKey() {
+    assertEquals(-1, RSSEntry.parseKeyTimestamp("feed/nokey"));
+    assertEquals(-1, RSSEntry.parseKeyTimestamp("feed/2026-03-10/hash"));
+  }
+}